@@ -0,0 +1,272 @@
+package com.example.parallelsort;
+
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * Bounded pool of direct byte buffers and primitive arrays shared by tasks of one sort.
+ * Released buffers and arrays are kept in free lists by size and handed out again,
+ * so steady state of a sort allocates nothing, while memory of all buffers and arrays is limited by pool capacity.
+ * When a new buffer or array doesn't fit, free ones of other sizes are dropped,
+ * and if leased ones don't leave enough room the caller waits for their release.
+ * A task leases everything it needs at once, so tasks never wait holding a part of their buffers.
+ *
+ * @author IVotinov
+ */
+final class BufferPool {
+	private final long capacity;
+	private final Object lock = new Object();
+	// bytes of buffers and arrays created by the pool and not dropped, both free and leased
+	private long allocated = 0;
+	// bytes of leased buffers and arrays
+	private long leased = 0;
+	private final Map<Integer, LinkedList<ByteBuffer>> freeBuffers = new HashMap<Integer, LinkedList<ByteBuffer>>();
+	// free arrays by component type and length
+	private final Map<Class<?>, Map<Integer, LinkedList<Object>>> freeArrays = new HashMap<Class<?>, Map<Integer, LinkedList<Object>>>();
+
+	/**
+	 * Constructs new BufferPool.
+	 *
+	 * @param capacity max size of pooled memory in bytes
+	 */
+	public BufferPool(long capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Leases byte buffers of given size.
+	 *
+	 * @param bufferSize size of each buffer in bytes
+	 * @param bufferCount number of buffers
+	 * @return lease holding the buffers
+	 * @throws InterruptedException
+	 */
+	public Lease acquire(int bufferSize, int bufferCount) throws InterruptedException {
+		return acquire(bufferSize, bufferCount, 0, 0);
+	}
+
+	/**
+	 * Leases byte buffers and int arrays of given sizes at once.
+	 *
+	 * @param bufferSize size of each buffer in bytes
+	 * @param bufferCount number of buffers
+	 * @param arrayLength length of each array
+	 * @param arrayCount number of arrays
+	 * @return lease holding the buffers and arrays
+	 * @throws InterruptedException
+	 */
+	public Lease acquire(int bufferSize, int bufferCount, int arrayLength, int arrayCount) throws InterruptedException {
+		return acquire(bufferSize, bufferCount, int.class, arrayLength, arrayCount);
+	}
+
+	/**
+	 * Leases byte buffers and primitive arrays of given sizes at once.
+	 *
+	 * @param bufferSize size of each buffer in bytes
+	 * @param bufferCount number of buffers
+	 * @param arrayType component type of arrays, {@code int.class} or {@code long.class}
+	 * @param arrayLength length of each array
+	 * @param arrayCount number of arrays
+	 * @return lease holding the buffers and arrays
+	 * @throws InterruptedException
+	 */
+	public Lease acquire(int bufferSize, int bufferCount, Class<?> arrayType, int arrayLength, int arrayCount) 
+			throws InterruptedException {
+		Class<?>[] arrayTypes = new Class<?>[arrayCount];
+		Arrays.fill(arrayTypes, arrayType);
+		return acquire(bufferSize, bufferCount, arrayTypes, arrayLength);
+	}
+
+	/**
+	 * Leases byte buffers and primitive arrays of given component types at once.
+	 * Waits until leased memory leaves enough room for them,
+	 * a request larger than pool capacity is only served when nothing else is leased.
+	 *
+	 * @param bufferSize size of each buffer in bytes
+	 * @param bufferCount number of buffers
+	 * @param arrayTypes component types of arrays, {@code int.class} or {@code long.class}, one per array
+	 * @param arrayLength length of each array
+	 * @return lease holding the buffers and arrays, in the order of types
+	 * @throws InterruptedException
+	 */
+	public Lease acquire(int bufferSize, int bufferCount, Class<?>[] arrayTypes, int arrayLength) 
+			throws InterruptedException {
+		long bytes = (long) bufferSize * bufferCount;
+		for (Class<?> arrayType : arrayTypes) {
+			bytes += (long) arrayLength * getElementSize(arrayType);
+		}
+		ByteBuffer[] buffers = new ByteBuffer[bufferCount];
+		Object[] arrays = new Object[arrayTypes.length];
+		int reusedBuffers;
+		synchronized (lock) {
+			while (leased > 0 && leased + bytes > capacity) {
+				lock.wait();
+			}
+			reusedBuffers = take(freeBuffers, bufferSize, buffers);
+			long created = (long) bufferSize * (bufferCount - reusedBuffers);
+			for (int i = 0; i < arrayTypes.length; i++) {
+				LinkedList<Object> list = getFreeArrays(arrayTypes[i]).get(arrayLength);
+				if (list != null && !list.isEmpty()) {
+					arrays[i] = list.removeFirst();
+				} else {
+					created += (long) arrayLength * getElementSize(arrayTypes[i]);
+				}
+			}
+			// free buffers are dropped until new ones fit, leased ones leave enough room for them
+			dropFree(freeBuffers, 1, created);
+			for (Map.Entry<Class<?>, Map<Integer, LinkedList<Object>>> entry : freeArrays.entrySet()) {
+				dropFree(entry.getValue(), getElementSize(entry.getKey()), created);
+			}
+			allocated += created;
+			leased += bytes;
+		}
+		// allocating outside the lock, as direct buffers are zeroed by allocation
+		for (int i = reusedBuffers; i < bufferCount; i++) {
+			buffers[i] = ByteBuffer.allocateDirect(bufferSize);
+		}
+		for (int i = 0; i < arrays.length; i++) {
+			if (arrays[i] == null) {
+				arrays[i] = Array.newInstance(arrayTypes[i], arrayLength);
+			}
+		}
+		return new Lease(buffers, arrays, bytes);
+	}
+
+	/**
+	 * Returns leased buffers and arrays to the pool.
+	 *
+	 * @param lease lease to release, may be null
+	 */
+	public void release(Lease lease) {
+		if (lease == null) {
+			return;
+		}
+		synchronized (lock) {
+			for (ByteBuffer buffer : lease.buffers) {
+				buffer.clear();
+				getFreeList(freeBuffers, buffer.capacity()).add(buffer);
+			}
+			for (Object array : lease.arrays) {
+				getFreeList(getFreeArrays(array.getClass().getComponentType()), Array.getLength(array)).add(array);
+			}
+			leased -= lease.bytes;
+			lock.notifyAll();
+		}
+	}
+
+	/**
+	 * Returns bytes of buffers and arrays kept by the pool, both free and leased.
+	 *
+	 * @return allocated bytes
+	 */
+	long getAllocatedBytes() {
+		synchronized (lock) {
+			return allocated;
+		}
+	}
+
+	private Map<Integer, LinkedList<Object>> getFreeArrays(Class<?> arrayType) {
+		Map<Integer, LinkedList<Object>> free = freeArrays.get(arrayType);
+		if (free == null) {
+			free = new HashMap<Integer, LinkedList<Object>>();
+			freeArrays.put(arrayType, free);
+		}
+		return free;
+	}
+
+	private static int getElementSize(Class<?> arrayType) {
+		if (arrayType == int.class) {
+			return IOUtils.INT_SIZE;
+		}
+		if (arrayType == long.class) {
+			return IOUtils.LONG_SIZE;
+		}
+		throw new IllegalArgumentException("Unsupported array type: " + arrayType);
+	}
+
+	private static <T> LinkedList<T> getFreeList(Map<Integer, LinkedList<T>> free, int size) {
+		LinkedList<T> list = free.get(size);
+		if (list == null) {
+			list = new LinkedList<T>();
+			free.put(size, list);
+		}
+		return list;
+	}
+
+	private static <T> int take(Map<Integer, LinkedList<T>> free, int size, T[] result) {
+		LinkedList<T> list = free.get(size);
+		int taken = 0;
+		while (list != null && taken < result.length && !list.isEmpty()) {
+			result[taken++] = list.removeFirst();
+		}
+		return taken;
+	}
+
+	private <T> void dropFree(Map<Integer, LinkedList<T>> free, int elementSize, long created) {
+		Iterator<Map.Entry<Integer, LinkedList<T>>> it = free.entrySet().iterator();
+		while (allocated + created > capacity && it.hasNext()) {
+			Map.Entry<Integer, LinkedList<T>> entry = it.next();
+			LinkedList<T> list = entry.getValue();
+			long size = (long) entry.getKey() * elementSize;
+			while (allocated + created > capacity && !list.isEmpty()) {
+				list.removeFirst();
+				allocated -= size;
+			}
+			if (list.isEmpty()) {
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Buffers and arrays leased from {@link BufferPool}, which must be released to the pool when not used.
+	 *
+	 * @author IVotinov
+	 */
+	static final class Lease {
+		private final ByteBuffer[] buffers;
+		private final Object[] arrays;
+		private final long bytes;
+
+		private Lease(ByteBuffer[] buffers, Object[] arrays, long bytes) {
+			this.buffers = buffers;
+			this.arrays = arrays;
+			this.bytes = bytes;
+		}
+
+		/**
+		 * Returns leased buffer.
+		 *
+		 * @param i index of buffer
+		 * @return buffer
+		 */
+		public ByteBuffer getBuffer(int i) {
+			return buffers[i];
+		}
+
+		/**
+		 * Returns leased int array.
+		 *
+		 * @param i index of array
+		 * @return array
+		 */
+		public int[] getArray(int i) {
+			return (int[]) arrays[i];
+		}
+
+		/**
+		 * Returns leased long array.
+		 *
+		 * @param i index of array
+		 * @return array
+		 */
+		public long[] getLongArray(int i) {
+			return (long[]) arrays[i];
+		}
+	}
+}
@@ -0,0 +1,203 @@
+package com.example.parallelsort;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Executor;
+
+import com.example.parallelsort.IOUtils.ByteSink;
+import com.example.parallelsort.IOUtils.ByteSource;
+import com.example.parallelsort.IOUtils.IntReader;
+import com.example.parallelsort.IOUtils.IntWriter;
+import com.example.parallelsort.IOUtils.KeyReader;
+import com.example.parallelsort.IOUtils.KeyWriter;
+
+/**
+ * Way of reading and writing files used by merge passes.
+ *
+ * @author IVotinov
+ */
+public enum IOBackend {
+	/**
+	 * Files are read and written by positional reads and writes through a buffer.
+	 * Buffer size is the size of this buffer.
+	 * With an executor for background I/O each source and sink uses two buffers:
+	 * next chunk is read and previous chunk is written while the current one is processed.
+	 */
+	STREAM {
+		@Override
+		public ByteSource openSource(FileChannel channel, long offset, long length, int bufferSize, ByteBuffer[] buffers, 
+				Executor executor) {
+			if (buffers == null) {
+				buffers = allocate((int) Math.max(0, Math.min(bufferSize, length)), executor);
+			}
+			if (executor != null) {
+				return new IOUtils.AsyncSource(channel, offset, length, buffers, executor);
+			}
+			return new IOUtils.StreamSource(channel, offset, length, buffers[0]);
+		}
+
+		@Override
+		public ByteSink openSink(FileChannel channel, long offset, long length, int bufferSize, ByteBuffer[] buffers, 
+				Executor executor) {
+			if (buffers == null) {
+				buffers = allocate(bufferSize, executor);
+			}
+			if (executor != null) {
+				return new IOUtils.AsyncSink(channel, offset, buffers, executor);
+			}
+			return new IOUtils.StreamSink(channel, offset, buffers[0]);
+		}
+
+		@Override
+		int getBufferCount(boolean async) {
+			return async ? 2 : 1;
+		}
+	},
+	/**
+	 * Files are read and written through memory-mapped windows, data is not copied to heap.
+	 * Buffer size is the max size of mapped window.
+	 * Pages are read and written back by the operating system, so no background I/O is performed.
+	 */
+	MAPPED {
+		@Override
+		public ByteSource openSource(FileChannel channel, long offset, long length, int bufferSize, ByteBuffer[] buffers, 
+				Executor executor) {
+			return new IOUtils.MappedSource(channel, offset, length, bufferSize);
+		}
+
+		@Override
+		public ByteSink openSink(FileChannel channel, long offset, long length, int bufferSize, ByteBuffer[] buffers, 
+				Executor executor) throws IOException {
+			return new IOUtils.MappedSink(channel, offset, length, bufferSize);
+		}
+
+		@Override
+		int getBufferCount(boolean async) {
+			return 0;
+		}
+	};
+
+	/**
+	 * Opens source of data stored in a part of the file.
+	 * The channel may be shared with other sources and sinks, it's not closed when the source is closed.
+	 *
+	 * @param channel channel of input file
+	 * @param offset offset of data in bytes
+	 * @param length length of data in bytes
+	 * @param bufferSize size of buffer or window in bytes, must be a multiple of element size
+	 * @param buffers {@link #getBufferCount(boolean) buffers} of {@code bufferSize} bytes to read to or null to allocate them
+	 * @param executor executor performing background reads or null to read synchronously
+	 * @return opened source
+	 * @throws IOException
+	 */
+	public abstract ByteSource openSource(FileChannel channel, long offset, long length, int bufferSize, ByteBuffer[] buffers, 
+			Executor executor) throws IOException;
+
+	/**
+	 * Opens sink writing data to a part of the file.
+	 * The channel may be shared with other sources and sinks, it's not closed when the sink is closed.
+	 *
+	 * @param channel channel of output file, opened for writing
+	 * @param offset offset of data in bytes
+	 * @param length length of data in bytes
+	 * @param bufferSize size of buffer or window in bytes, must be a multiple of element size
+	 * @param buffers {@link #getBufferCount(boolean) buffers} of {@code bufferSize} bytes to write from or null to allocate them
+	 * @param executor executor performing background writes or null to write synchronously
+	 * @return opened sink
+	 * @throws IOException
+	 */
+	public abstract ByteSink openSink(FileChannel channel, long offset, long length, int bufferSize, ByteBuffer[] buffers, 
+			Executor executor) throws IOException;
+
+	/**
+	 * Returns number of buffers used by each source and sink, which may be provided by caller, 
+	 * so buffers are taken from {@link BufferPool} for this backend.
+	 *
+	 * @param async true if sources and sinks perform background I/O
+	 * @return number of buffers, 0 if backend doesn't copy data through buffers
+	 */
+	abstract int getBufferCount(boolean async);
+	
+	private static ByteBuffer[] allocate(int bufferSize, Executor executor) {
+		ByteBuffer[] buffers = new ByteBuffer[executor == null ? 1 : 2];
+		for (int i = 0; i < buffers.length; i++) {
+			buffers[i] = ByteBuffer.allocate(bufferSize);
+		}
+		return buffers;
+	}
+
+	/**
+	 * Opens {@link IntReader} for {@code count} integers starting from {@code startNum} integer.
+	 *
+	 * @param channel channel of input file
+	 * @param startNum index of integer to start reading from
+	 * @param count number of integers to read
+	 * @param bufferSize size of buffer or window in bytes, must be a multiple of {@link IOUtils#INT_SIZE}
+	 * @param buffers buffers of {@code bufferSize} bytes or null to allocate them
+	 * @param executor executor performing background reads or null to read synchronously
+	 * @return opened reader
+	 * @throws IOException
+	 */
+	public IntReader openIntReader(FileChannel channel, long startNum, long count, int bufferSize, ByteBuffer[] buffers, 
+			Executor executor) throws IOException {
+		return new IntReader(openSource(channel, startNum * IOUtils.INT_SIZE, count * IOUtils.INT_SIZE, bufferSize, buffers, 
+				executor), count);
+	}
+
+	/**
+	 * Opens {@link IntWriter} for {@code count} integers starting from {@code startNum} integer.
+	 *
+	 * @param channel channel of output file, opened for writing
+	 * @param startNum index of integer to start writing from
+	 * @param count number of integers to write
+	 * @param bufferSize size of buffer or window in bytes, must be a multiple of {@link IOUtils#INT_SIZE}
+	 * @param buffers buffers of {@code bufferSize} bytes or null to allocate them
+	 * @param executor executor performing background writes or null to write synchronously
+	 * @return opened writer
+	 * @throws IOException
+	 */
+	public IntWriter openIntWriter(FileChannel channel, long startNum, long count, int bufferSize, ByteBuffer[] buffers, 
+			Executor executor) throws IOException {
+		return new IntWriter(openSink(channel, startNum * IOUtils.INT_SIZE, count * IOUtils.INT_SIZE, bufferSize, buffers, 
+				executor));
+	}
+
+	/**
+	 * Opens {@link KeyReader} for {@code count} values of given format starting from {@code startNum} value.
+	 *
+	 * @param format format of values
+	 * @param channel channel of input file
+	 * @param startNum index of value to start reading from
+	 * @param count number of values to read
+	 * @param bufferSize size of buffer or window in bytes, must be a multiple of value size
+	 * @param buffers buffers of {@code bufferSize} bytes or null to allocate them
+	 * @param executor executor performing background reads or null to read synchronously
+	 * @return opened reader
+	 * @throws IOException
+	 */
+	KeyReader openKeyReader(RecordFormat format, FileChannel channel, long startNum, long count, int bufferSize, 
+			ByteBuffer[] buffers, Executor executor) throws IOException {
+		return format.newReader(openSource(channel, startNum * format.getSize(), count * format.getSize(), bufferSize, 
+				buffers, executor), count);
+	}
+
+	/**
+	 * Opens {@link KeyWriter} for {@code count} values of given format starting from {@code startNum} value.
+	 *
+	 * @param format format of values
+	 * @param channel channel of output file, opened for writing
+	 * @param startNum index of value to start writing from
+	 * @param count number of values to write
+	 * @param bufferSize size of buffer or window in bytes, must be a multiple of value size
+	 * @param buffers buffers of {@code bufferSize} bytes or null to allocate them
+	 * @param executor executor performing background writes or null to write synchronously
+	 * @return opened writer
+	 * @throws IOException
+	 */
+	KeyWriter openKeyWriter(RecordFormat format, FileChannel channel, long startNum, long count, int bufferSize, 
+			ByteBuffer[] buffers, Executor executor) throws IOException {
+		return format.newWriter(openSink(channel, startNum * format.getSize(), count * format.getSize(), bufferSize, 
+				buffers, executor));
+	}
+}
@@ -1,17 +1,22 @@
 package com.example.parallelsort;
 
-import java.io.BufferedInputStream;
 import java.io.Closeable;
+import java.io.EOFException;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
 import java.util.NoSuchElementException;
+import java.util.concurrent.Executor;
 
 /**
  * Utility methods to operate with file I/O.
@@ -28,12 +33,18 @@ public final class IOUtils {
 	 */
 	public static final int INT_SIZE = 4;
 	/**
-	 * Byte order used to store integers.
+	 * long size in bytes.
 	 */
-	private static final ByteOrder BYTE_ORDER = ByteOrder.BIG_ENDIAN;
+	public static final int LONG_SIZE = 8;
+	/**
+	 * Default byte order of files, used unless another order is given.
+	 */
+	public static final ByteOrder BYTE_ORDER = ByteOrder.BIG_ENDIAN;
 
 	private static final String TMP_FILE_PREFIX = "ParallelSortTest";
 	
+	private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate(0);
+	
 	private IOUtils() {
 	}
 
@@ -47,255 +58,2570 @@ public final class IOUtils {
 		return File.createTempFile(TMP_FILE_PREFIX, null);
 	}
 	
+	/**
+	 * Creates temporary file of given length.
+	 * Blocks may be written to such file in any order, 
+	 * while {@link FileChannel#transferFrom} doesn't write beyond the end of file.
+	 * 
+	 * @param length file length in bytes
+	 * @return created temporary file
+	 * @throws IOException
+	 */
+	public static File createTempFile(long length) throws IOException {
+		File file = createTempFile();
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(length);
+		} finally {
+			raf.close();
+		}
+		return file;
+	}
+	
 	/**
 	 * Writes given {@code value} to {@code offset} position of {@code arr} byte array.
 	 * As a result value is converted to 4 bytes in the array.
+	 * This method doesn't allocate any objects.
 	 * 
 	 * @param value int value to set
 	 * @param arr byte array to set value to
 	 * @param offset offset in bytes
 	 */
 	public static void pack(int value, byte[] arr, int offset) {
-		ByteBuffer.wrap(arr, offset, INT_SIZE).order(BYTE_ORDER).putInt(value);
+		if (BYTE_ORDER == ByteOrder.BIG_ENDIAN) {
+			arr[offset] = (byte) (value >>> 24);
+			arr[offset + 1] = (byte) (value >>> 16);
+			arr[offset + 2] = (byte) (value >>> 8);
+			arr[offset + 3] = (byte) value;
+		} else {
+			arr[offset] = (byte) value;
+			arr[offset + 1] = (byte) (value >>> 8);
+			arr[offset + 2] = (byte) (value >>> 16);
+			arr[offset + 3] = (byte) (value >>> 24);
+		}
 	}
 
 	/**
 	 * Reads integer value from {@code offset} position of given byte array.
+	 * This method doesn't allocate any objects.
 	 * 
 	 * @param arr byte array to read value from
 	 * @param offset offset in bytes
 	 * @return value read
 	 */
 	public static int unpack(byte[] arr, int offset) {
-		return ByteBuffer.wrap(arr, offset, INT_SIZE).order(BYTE_ORDER).getInt();
+		if (BYTE_ORDER == ByteOrder.BIG_ENDIAN) {
+			return (arr[offset] << 24) 
+					| ((arr[offset + 1] & 0xFF) << 16) 
+					| ((arr[offset + 2] & 0xFF) << 8) 
+					| (arr[offset + 3] & 0xFF);
+		} else {
+			return (arr[offset + 3] << 24) 
+					| ((arr[offset + 2] & 0xFF) << 16) 
+					| ((arr[offset + 1] & 0xFF) << 8) 
+					| (arr[offset] & 0xFF);
+		}
+	}
+
+	/**
+	 * Maps bits of a float to an integer ordered the same way as floats, and back.
+	 * Magnitude bits of negative values are flipped, so the order is the IEEE 754 total order:
+	 * {@code -NaN < -Infinity < ... < -0.0 < 0.0 < ... < Infinity < NaN}.
+	 * The mapping is its own inverse and keeps all bits, so NaN payloads survive the sort.
+	 * 
+	 * @param bits raw bits of a float, or a mapped key
+	 * @return mapped key, or raw bits of a float
+	 */
+	public static int flipFloatBits(int bits) {
+		return bits ^ ((bits >> 31) >>> 1);
+	}
+
+	/**
+	 * Maps bits of a double to a long ordered the same way as doubles, and back, see {@link #flipFloatBits(int)}.
+	 * 
+	 * @param bits raw bits of a double, or a mapped key
+	 * @return mapped key, or raw bits of a double
+	 */
+	public static long flipDoubleBits(long bits) {
+		return bits ^ ((bits >> 63) >>> 1);
 	}
 
 	/**
-	 * Creates a buffered input stream with {@link IOUtils#BUFFER_SIZE} byte buffer.
-	 * Stream is started at given {@code offset} in {@code file}.
+	 * Reads a single integer at given index of the file.
 	 * 
-	 * @param file input file
-	 * @param startNum index of integer to start from
-	 * @return created buffered input stream
+	 * @param channel channel of the file to read from
+	 * @param buffer buffer of at least {@link IOUtils#INT_SIZE} bytes to read to
+	 * @param index index of integer to read
+	 * @return value read
 	 * @throws IOException
 	 */
-	public static InputStream createBufferedInputStreamWithOffset(File file, long startNum) throws IOException {
-		FileInputStream fis = new FileInputStream(file);
-		fis.skip(startNum * INT_SIZE);
-		return new BufferedInputStream(fis, BUFFER_SIZE);
+	public static int readInt(FileChannel channel, ByteBuffer buffer, long index) throws IOException {
+		buffer.clear().limit(INT_SIZE);
+		readFully(channel, buffer, index * INT_SIZE);
+		return buffer.order(BYTE_ORDER).getInt(0);
 	}
-		
+
 	/**
-	 * Reads {@code count} integers from {@code file} starting from {@code startNum} integer.
+	 * Reads a single key of given type at given position of the file.
 	 * 
-	 * @param file input file
-	 * @param startNum index of integer to start from
-	 * @param count number of integers to read
-	 * @return byte array containing read values
+	 * @param channel channel of the file to read from
+	 * @param buffer buffer of at least {@link KeyType#getSize()} bytes to read to
+	 * @param type type of the key
+	 * @param order byte order of the file
+	 * @param position position of the key in bytes
+	 * @return key as returned by {@link KeyReader#nextKey()}
 	 * @throws IOException
 	 */
-	public static byte[] readBufferFromFile(File file, long startNum, int count) throws IOException {
-		byte[] buffer = new byte[count * INT_SIZE];
-		InputStream is = createBufferedInputStreamWithOffset(file, startNum);
-		try {
-			is.read(buffer);
-		} finally {
-			is.close();
+	static long readKey(FileChannel channel, ByteBuffer buffer, KeyType type, ByteOrder order, long position) 
+			throws IOException {
+		buffer.clear().limit(type.getSize());
+		readFully(channel, buffer, position);
+		return type.getKey(buffer.order(order), 0);
+	}
+
+	/**
+	 * Copies a block of {@code count} values starting from given index 
+	 * from {@code in} file to the same position in {@code out} file.
+	 * Data is written from memory-mapped windows of input file, so no buffer memory is needed.
+	 * This method is used when data block has no pair to be merged with at current step.
+	 * 
+	 * @param in channel of input file
+	 * @param out channel of output file
+	 * @param startNum index of value to start from
+	 * @param count number of values to copy
+	 * @param valueSize size of value in bytes
+	 * @param windowSize max size of mapped window in bytes
+	 * @throws IOException
+	 */
+	public static void copyBlock(FileChannel in, FileChannel out, long startNum, long count, int valueSize, 
+			int windowSize) throws IOException {
+		copyBlock(in, startNum, out, startNum, count, valueSize, windowSize);
+	}
+	
+	/**
+	 * Copies a block of {@code count} values starting from index {@code inStartNum} of {@code in} file 
+	 * to index {@code outStartNum} of {@code out} file, see {@link #copyBlock(FileChannel, FileChannel, long, long, int, int)}.
+	 * 
+	 * @param in channel of input file
+	 * @param inStartNum index of value to start copying from
+	 * @param out channel of output file
+	 * @param outStartNum index of value to start writing from
+	 * @param count number of values to copy
+	 * @param valueSize size of value in bytes
+	 * @param windowSize max size of mapped window in bytes
+	 * @throws IOException
+	 */
+	public static void copyBlock(FileChannel in, long inStartNum, FileChannel out, long outStartNum, long count, 
+			int valueSize, int windowSize) throws IOException {
+		long position = inStartNum * valueSize;
+		long end = (inStartNum + count) * valueSize;
+		long shift = (outStartNum - inStartNum) * valueSize;
+		while (position < end) {
+			int size = (int) Math.min(windowSize, end - position);
+			writeFully(out, in.map(MapMode.READ_ONLY, position, size), position + shift);
+			position += size;
 		}
-		return buffer;
 	}
 	
 	/**
-	 * Writes provided {@code buffer} to {@code file} starting at {@code offset}.
+	 * Reads bytes from given position of the channel until the buffer is full.
 	 * 
-	 * @param file output file
-	 * @param buffer buffer to write
-	 * @param offset offset in bytes
+	 * @param channel channel to read from
+	 * @param buffer buffer to read to
+	 * @param position position in the channel to read from
 	 * @throws IOException
 	 */
-	public static void writeBufferToFile(File file, byte[] buffer, long offset) throws IOException {
-		RandomAccessFile raf = new RandomAccessFile(file, "rw");
-		try {
-			raf.seek(offset);
-			raf.write(buffer);
-		} finally {
-			raf.close();
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, position);
+			if (read < 0) {
+				throw new EOFException();
+			}
+			position += read;
 		}
 	}
 	
 	/**
-	 * Converts given byte array to int array.
+	 * Writes all remaining bytes of the buffer to given position of the channel.
 	 * 
-	 * @param buffer byte buffer to convert
-	 * @return converted int array
+	 * @param channel channel to write to
+	 * @param buffer buffer to write
+	 * @param position position in the channel to write to
+	 * @throws IOException
 	 */
-	public static int[] convertToIntArray(byte[] buffer) {
-		IntBuffer intBuffer = ByteBuffer.wrap(buffer).order(BYTE_ORDER).asIntBuffer(); 
-		int[] array = new int[buffer.length / INT_SIZE];
-		intBuffer.get(array);
-		return array;
+	private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
 	}
 	
 	/**
-	 * Puts all values from int array to provided byte array.
+	 * Source of data read from a file in chunks.
 	 * 
-	 * @param array int array to save to buffer
-	 * @param buffer buffer to save to
+	 * @author IVotinov
 	 */
-	public static void putToBuffer(int[] array, byte[] buffer) {
-		ByteBuffer.wrap(buffer).order(BYTE_ORDER).asIntBuffer().put(array); 
+	public interface ByteSource extends Closeable {
+		/**
+		 * Reads next chunk of data. 
+		 * Returned buffer is valid until the next call of this method, data is between its position and limit.
+		 * 
+		 * @return next chunk of data or null if all data has been read
+		 * @throws IOException
+		 */
+		ByteBuffer next() throws IOException;
 	}
-
+	
 	/**
-	 * Copies a block of {@code count} integers starting from given index 
-	 * from {@code in} file to the same position in {@code out} file.
-	 * This method is used when data block has no pair to be merged with at current step.
+	 * Destination of data written to a file in chunks.
 	 * 
-	 * @param in input file
-	 * @param out output file
-	 * @param startNum index of integer to start from
-	 * @param count number of integers to copy
-	 * @throws IOException
+	 * @author IVotinov
 	 */
-	public static void copyBlock(File in, File out, long startNum, long count) throws IOException {
-		RandomAccessFile raf = new RandomAccessFile(out, "rw");
-		try {
-			FileInputStream fis = new FileInputStream(in);
-			try {
-				FileChannel fc = fis.getChannel().position(startNum * INT_SIZE);
-				raf.getChannel().transferFrom(fc, startNum * INT_SIZE, count * INT_SIZE);
-			} finally {
-				fis.close();
-			}
-		} finally {
-			raf.close();
-		}
+	public interface ByteSink extends Closeable {
+		/**
+		 * Returns current buffer to put data to.
+		 * 
+		 * @return current buffer
+		 */
+		ByteBuffer buffer();
+		
+		/**
+		 * Writes data put to current buffer and returns buffer to put next data to.
+		 * 
+		 * @return new current buffer
+		 * @throws IOException
+		 */
+		ByteBuffer flush() throws IOException;
+		
+		/**
+		 * Writes data remaining in current buffer and closes underlying file.
+		 */
+		void close() throws IOException;
 	}
 	
 	/**
-	 * Utility class to read integers from the underlying file.
-	 * This class uses buffer of {@link IOUtils#BUFFER_SIZE} bytes to reduce I/O operations count. 
+	 * {@link ByteSource} reading a part of file into a buffer by positional reads from a {@link FileChannel},
+	 * so it can share the channel with other sources and sinks.
 	 * 
 	 * @author IVotinov
 	 */
-	public static class IntReader implements Closeable {
-		private InputStream is;
-		private byte[] intBytes = new byte[INT_SIZE];
-		private long count;
-		private long index = 0;
-		private boolean hasCahedValue = false;
-		private int cachedValue;
-
+	static class StreamSource implements ByteSource {
+		// file opened by this source or null if channel is shared
+		private RandomAccessFile raf;
+		private FileChannel channel;
+		private ByteBuffer buffer;
+		private long position;
+		private long remaining;
+		
 		/**
-		 * Constructs new IntReader for given file, start position and count.
+		 * Constructs new StreamSource opening given file and allocating a heap buffer.
 		 * 
 		 * @param file input file
-		 * @param startNum index of integer to start writing from
-		 * @param count number of integers to read
+		 * @param offset offset of data in bytes
+		 * @param length length of data in bytes
+		 * @param bufferSize size of buffer in bytes
 		 * @throws IOException
 		 */
-		public IntReader(File file, long startNum, long count) throws IOException {
-			is = createBufferedInputStreamWithOffset(file, startNum);
-			this.count = count;
+		public StreamSource(File file, long offset, long length, int bufferSize) throws IOException {
+			this(new RandomAccessFile(file, "r"), offset, length, 
+					ByteBuffer.allocate((int) Math.max(0, Math.min(bufferSize, length))));
+		}
+		
+		private StreamSource(RandomAccessFile raf, long offset, long length, ByteBuffer buffer) {
+			this(raf.getChannel(), offset, length, buffer);
+			this.raf = raf;
 		}
 		
 		/**
-		 * Returns true if there are elements left to read.
+		 * Constructs new StreamSource reading from given channel to given buffer.
+		 * The channel is not closed by this source.
 		 * 
-		 * @return true if there are elements left to read
+		 * @param channel channel of input file
+		 * @param offset offset of data in bytes
+		 * @param length length of data in bytes
+		 * @param buffer buffer to read to, heap or direct
 		 */
-		public boolean hasNext() {
-			return hasCahedValue || index < count;
+		public StreamSource(FileChannel channel, long offset, long length, ByteBuffer buffer) {
+			this.channel = channel;
+			this.buffer = buffer;
+			position = offset;
+			remaining = length;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		public ByteBuffer next() throws IOException {
+			if (remaining == 0) {
+				return null;
+			}
+			int size = (int) Math.min(buffer.capacity(), remaining);
+			buffer.clear();
+			buffer.limit(size);
+			readFully(channel, buffer, position);
+			position += size;
+			remaining -= size;
+			buffer.flip();
+			return buffer;
+		}
+
+		/**
+		 * Closes underlying file if it was opened by this source.
+		 */
+		public void close() throws IOException {
+			if (raf != null) {
+				raf.close();
+			}
 		}
+	}
+	
+	/**
+	 * {@link ByteSink} writing a part of file from a buffer by positional writes to a {@link FileChannel},
+	 * so it can share the channel with other sources and sinks.
+	 * 
+	 * @author IVotinov
+	 */
+	static class StreamSink implements ByteSink {
+		// file opened by this sink or null if channel is shared
+		private RandomAccessFile raf;
+		private FileChannel channel;
+		private ByteBuffer buffer;
+		private long position;
 		
 		/**
-		 * Retrieves next value from this reader.
-		 * If there are no more elements to read {@link NoSuchElementException} is thrown.
+		 * Constructs new StreamSink opening given file and allocating a heap buffer.
 		 * 
-		 * @return next value
+		 * @param file output file
+		 * @param offset offset of data in bytes
+		 * @param bufferSize size of buffer in bytes
 		 * @throws IOException
 		 */
-		public int next() throws IOException {
-			if (!hasNext()) {
-				throw new NoSuchElementException();
+		public StreamSink(File file, long offset, int bufferSize) throws IOException {
+			this(new RandomAccessFile(file, "rw"), offset, ByteBuffer.allocate(bufferSize));
+		}
+		
+		private StreamSink(RandomAccessFile raf, long offset, ByteBuffer buffer) {
+			this(raf.getChannel(), offset, buffer);
+			this.raf = raf;
+		}
+		
+		/**
+		 * Constructs new StreamSink writing to given channel from given buffer.
+		 * The channel is not closed by this sink.
+		 * 
+		 * @param channel channel of output file
+		 * @param offset offset of data in bytes
+		 * @param buffer buffer to write from, heap or direct
+		 */
+		public StreamSink(FileChannel channel, long offset, ByteBuffer buffer) {
+			this.channel = channel;
+			this.buffer = buffer;
+			position = offset;
+			buffer.clear();
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		public ByteBuffer buffer() {
+			return buffer;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		public ByteBuffer flush() throws IOException {
+			buffer.flip();
+			int size = buffer.limit();
+			writeFully(channel, buffer, position);
+			position += size;
+			buffer.clear();
+			return buffer;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		public void close() throws IOException {
+			try {
+				flush();
+			} finally {
+				if (raf != null) {
+					raf.close();
+				}
 			}
-			if (hasCahedValue) {
-				hasCahedValue = false;
-				return cachedValue;
-			} else {
-				is.read(intBytes);
-				index++;
-				return unpack(intBytes, 0);
+		}
+	}
+	
+	/**
+	 * {@link ByteSource} reading a part of file into two buffers by positional reads from a {@link FileChannel}.
+	 * While the caller processes one buffer, next chunk is read to the other one by a background task,
+	 * so the caller only waits for I/O if it processes data faster than the file is read.
+	 * 
+	 * @author IVotinov
+	 */
+	static class AsyncSource implements ByteSource {
+		private final BackgroundIO io;
+		private ByteBuffer[] buffers;
+		// index of buffer read by background task
+		private int current = 0;
+		private long position;
+		private long remaining;
+		// true if background read is started and its buffer is not returned yet
+		private boolean reading = false;
+		
+		/**
+		 * Constructs new AsyncSource reading from given channel to given buffers and starts reading first chunk.
+		 * The channel is not closed by this source.
+		 * 
+		 * @param channel channel of input file
+		 * @param offset offset of data in bytes
+		 * @param length length of data in bytes
+		 * @param buffers two buffers of the same capacity to read to, heap or direct
+		 * @param executor executor performing background reads
+		 */
+		public AsyncSource(FileChannel channel, long offset, long length, ByteBuffer[] buffers, Executor executor) {
+			this.io = new BackgroundIO(channel, executor, false);
+			this.buffers = buffers;
+			position = offset;
+			remaining = length;
+			readAhead();
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		public ByteBuffer next() throws IOException {
+			if (!reading) {
+				return null;
 			}
+			reading = false;
+			ByteBuffer buffer = io.await();
+			// buffer returned by previous call is not used by caller anymore
+			current ^= 1;
+			readAhead();
+			buffer.flip();
+			return buffer;
 		}
 
 		/**
-		 * Retrieves, but does not remove, next value from this reader.
-		 * 
-		 * @return next value
-		 * @throws IOException
+		 * Waits for background read, so buffers can be reused after this source is closed.
 		 */
-		public int peek() throws IOException {
-			if (!hasCahedValue) {
-				cachedValue = next();
-				hasCahedValue = true;
+		public void close() throws IOException {
+			if (reading) {
+				reading = false;
+				io.await();
+			}
+		}
+		
+		private void readAhead() {
+			if (remaining == 0) {
+				return;
 			}
-			return cachedValue;
+			ByteBuffer buffer = buffers[current];
+			int size = (int) Math.min(buffer.capacity(), remaining);
+			buffer.clear();
+			buffer.limit(size);
+			io.start(buffer, position);
+			position += size;
+			remaining -= size;
+			reading = true;
 		}
+	}
+	
+	/**
+	 * {@link ByteSink} writing a part of file from two buffers by positional writes to a {@link FileChannel}.
+	 * Flushed buffer is written by a background task while the caller fills the other one,
+	 * so the caller only waits for I/O if it produces data faster than the file is written.
+	 * 
+	 * @author IVotinov
+	 */
+	static class AsyncSink implements ByteSink {
+		private final BackgroundIO io;
+		private ByteBuffer[] buffers;
+		// index of buffer filled by caller
+		private int current = 0;
+		private long position;
+		// true if background write is started and not awaited yet
+		private boolean writing = false;
 		
 		/**
-		 * Closes underlying file.
+		 * Constructs new AsyncSink writing to given channel from given buffers.
+		 * The channel is not closed by this sink.
+		 * 
+		 * @param channel channel of output file
+		 * @param offset offset of data in bytes
+		 * @param buffers two buffers of the same capacity to write from, heap or direct
+		 * @param executor executor performing background writes
+		 */
+		public AsyncSink(FileChannel channel, long offset, ByteBuffer[] buffers, Executor executor) {
+			this.io = new BackgroundIO(channel, executor, true);
+			this.buffers = buffers;
+			position = offset;
+			buffers[0].clear();
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		public ByteBuffer buffer() {
+			return buffers[current];
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		public ByteBuffer flush() throws IOException {
+			ByteBuffer buffer = buffers[current];
+			buffer.flip();
+			int size = buffer.limit();
+			// the other buffer becomes current only when its write is completed
+			awaitWrite();
+			if (size > 0) {
+				io.start(buffer, position);
+				position += size;
+				writing = true;
+			}
+			current ^= 1;
+			buffer = buffers[current];
+			buffer.clear();
+			return buffer;
+		}
+
+		/**
+		 * Writes data remaining in current buffer and waits until all background writes are completed.
 		 */
 		public void close() throws IOException {
-			is.close();
+			try {
+				flush();
+			} finally {
+				awaitWrite();
+			}
+		}
+		
+		private void awaitWrite() throws IOException {
+			if (writing) {
+				writing = false;
+				io.await();
+			}
 		}
 	}
 	
 	/**
-	 * Utility class to write integers to the underlying file.
-	 * This class uses buffer of {@link IOUtils#BUFFER_SIZE} bytes to reduce I/O operations count. 
+	 * Positional read or write of a buffer performed by an {@link Executor}.
+	 * One instance is reused for all transfers of a source or sink, so background I/O allocates nothing.
 	 * 
 	 * @author IVotinov
 	 */
-	public static class IntWriter implements Closeable {
-		private RandomAccessFile raf;
-		private byte[] buffer = new byte[BUFFER_SIZE];
-		private int index = 0;
+	private static final class BackgroundIO implements Runnable {
+		private final FileChannel channel;
+		private final Executor executor;
+		private final boolean write;
+		private ByteBuffer buffer;
+		private long position;
+		private boolean done = true;
+		private Throwable failure;
+		
+		BackgroundIO(FileChannel channel, Executor executor, boolean write) {
+			this.channel = channel;
+			this.executor = executor;
+			this.write = write;
+		}
 		
 		/**
-		 * Constructs new {@code IntWriter} for given file and start position.
+		 * Starts transfer of remaining bytes of the buffer.
 		 * 
-		 * @param file output file
-		 * @param startNum index of integer to start writing from
-		 * @throws IOException
+		 * @param buffer buffer to read to or write from
+		 * @param position position in the channel
 		 */
-		public IntWriter(File file, long startNum) throws IOException {
-			raf = new RandomAccessFile(file, "rw");
-			raf.seek(startNum * INT_SIZE);
+		void start(ByteBuffer buffer, long position) {
+			synchronized (this) {
+				this.buffer = buffer;
+				this.position = position;
+				done = false;
+				failure = null;
+			}
+			try {
+				executor.execute(this);
+			} catch (RuntimeException e) {
+				synchronized (this) {
+					done = true;
+				}
+				throw e;
+			}
 		}
 		
 		/**
-		 * Writes next value to the buffer. 
-		 * If buffer gets full when it's written to the file and the buffer is cleared.
+		 * Waits until started transfer is completed.
 		 * 
-		 * @param value value to write
-		 * @throws IOException
+		 * @return transferred buffer
+		 * @throws IOException if transfer failed or waiting was interrupted
 		 */
-		public void write(int value) throws IOException {
-			pack(value, buffer, index);
-			index += INT_SIZE;
-			if (index == buffer.length) {
-				raf.write(buffer);
-				index = 0;
+		synchronized ByteBuffer await() throws IOException {
+			while (!done) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException();
+				}
+			}
+			if (failure instanceof IOException) {
+				throw (IOException) failure;
+			}
+			if (failure != null) {
+				throw new IOException(failure);
+			}
+			return buffer;
+		}
+
+		public void run() {
+			ByteBuffer buffer;
+			long position;
+			synchronized (this) {
+				buffer = this.buffer;
+				position = this.position;
+			}
+			Throwable failure = null;
+			try {
+				if (write) {
+					writeFully(channel, buffer, position);
+				} else {
+					readFully(channel, buffer, position);
+				}
+			} catch (Throwable e) {
+				failure = e;
+			}
+			synchronized (this) {
+				this.failure = failure;
+				done = true;
+				notifyAll();
 			}
 		}
+	}
+	
+	/**
+	 * {@link ByteSource} reading a part of file through memory-mapped windows.
+	 * Each chunk is a {@link MappedByteBuffer} over next window of the file,
+	 * so data is read without copying it to a buffer.
+	 * Windows are limited by given size, so files larger than 2 GB can be read.
+	 * 
+	 * @author IVotinov
+	 */
+	static class MappedSource implements ByteSource {
+		private FileChannel channel;
+		private long position;
+		private long end;
+		private int windowSize;
 		
 		/**
-		 * Writes remaining of the buffer to the file and closes it.
+		 * Constructs new MappedSource.
+		 * The channel is not closed by this source.
+		 * 
+		 * @param channel channel of input file
+		 * @param offset offset of data in bytes
+		 * @param length length of data in bytes
+		 * @param windowSize max size of mapped window in bytes
 		 */
-		public void close() throws IOException {
-			raf.write(buffer, 0, index);
-			raf.close();
+		public MappedSource(FileChannel channel, long offset, long length, int windowSize) {
+			this.channel = channel;
+			position = offset;
+			end = offset + length;
+			this.windowSize = windowSize;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		public ByteBuffer next() throws IOException {
+			if (position == end) {
+				return null;
+			}
+			long size = Math.min(windowSize, end - position);
+			MappedByteBuffer window = channel.map(MapMode.READ_ONLY, position, size);
+			position += size;
+			return window;
+		}
+
+		/**
+		 * Does nothing, mapped windows stay valid until they are garbage collected.
+		 */
+		public void close() {
+		}
+	}
+	
+	/**
+	 * {@link ByteSink} writing a part of file through memory-mapped windows.
+	 * Current buffer is a {@link MappedByteBuffer} over current window of the file,
+	 * so data is written without copying it from a buffer.
+	 * Windows are limited by given size, so files larger than 2 GB can be written.
+	 * 
+	 * @author IVotinov
+	 */
+	static class MappedSink implements ByteSink {
+		/**
+		 * Lock for growing files, mapping beyond the end of file may otherwise truncate data written concurrently.
+		 */
+		private static final Object RESIZE_LOCK = new Object();
+		
+		private FileChannel channel;
+		private ByteBuffer buffer;
+		private long position;
+		private long end;
+		private int windowSize;
+		
+		/**
+		 * Constructs new MappedSink.
+		 * The channel is not closed by this sink.
+		 * 
+		 * @param channel channel of output file, opened for writing
+		 * @param offset offset of data in bytes
+		 * @param length length of data in bytes
+		 * @param windowSize max size of mapped window in bytes
+		 * @throws IOException
+		 */
+		public MappedSink(FileChannel channel, long offset, long length, int windowSize) throws IOException {
+			this.channel = channel;
+			position = offset;
+			end = offset + length;
+			this.windowSize = windowSize;
+			synchronized (RESIZE_LOCK) {
+				if (length > 0 && channel.size() < end) {
+					// the last byte belongs to this sink, so it's overwritten later
+					writeFully(channel, ByteBuffer.allocate(1), end - 1);
+				}
+			}
+			buffer = map();
+		}
+		
+		private ByteBuffer map() throws IOException {
+			long size = Math.min(windowSize, end - position);
+			MappedByteBuffer window = channel.map(MapMode.READ_WRITE, position, size);
+			position += size;
+			return window;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		public ByteBuffer buffer() {
+			return buffer;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		public ByteBuffer flush() throws IOException {
+			if (buffer.hasRemaining()) {
+				return buffer;
+			}
+			buffer = map();
+			return buffer;
+		}
+
+		/**
+		 * Does nothing, mapped windows stay valid until they are garbage collected.
+		 */
+		public void close() {
+		}
+	}
+	
+	/**
+	 * Source giving a single buffer held in memory.
+	 * 
+	 * @author IVotinov
+	 */
+	static class BufferSource implements ByteSource {
+		private ByteBuffer buffer;
+		
+		/**
+		 * Constructs new BufferSource.
+		 * 
+		 * @param buffer data between position and limit, it's read in place
+		 */
+		public BufferSource(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+		
+		/**
+		 * {@inheritDoc}
+		 */
+		public ByteBuffer next() {
+			ByteBuffer result = buffer;
+			buffer = null;
+			return result;
+		}
+		
+		/**
+		 * Does nothing, buffer is owned by the caller.
+		 */
+		public void close() {
+		}
+	}
+	
+	/**
+	 * Sink putting data to a single buffer held in memory, which must have room for all of it.
+	 * 
+	 * @author IVotinov
+	 */
+	static class BufferSink implements ByteSink {
+		private final ByteBuffer buffer;
+		
+		/**
+		 * Constructs new BufferSink.
+		 * 
+		 * @param buffer buffer to put data to from its position
+		 */
+		public BufferSink(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+		
+		/**
+		 * {@inheritDoc}
+		 */
+		public ByteBuffer buffer() {
+			return buffer;
+		}
+		
+		/**
+		 * Is not supported, the buffer is consumed by the caller.
+		 * 
+		 * @throws IllegalStateException always
+		 */
+		public ByteBuffer flush() {
+			throw new IllegalStateException("Buffer is full");
+		}
+		
+		/**
+		 * Does nothing, buffer is owned by the caller.
+		 */
+		public void close() {
+		}
+	}
+	
+	/**
+	 * Reader of keys of one {@link KeyType} from chunks provided by a {@link ByteSource}.
+	 * Keys are returned as long values ordered the same way as keys, 
+	 * so merges handle all key types by the same code.
+	 * Sort order other than signed ascending is applied by a key mask xor-ed to keys, 
+	 * see {@link RecordFormat#getKeyMask()}.
+	 * 
+	 * @author IVotinov
+	 */
+	public abstract static class KeyReader implements Closeable {
+		private ByteSource source;
+		private ByteBuffer chunk = EMPTY_BUFFER;
+		private long count;
+		private long index = 0;
+		private final int valueSize;
+		private final ByteOrder order;
+		protected final long keyMask;
+		
+		/**
+		 * Constructs new KeyReader reading given count of values from given source.
+		 * 
+		 * @param source source of data
+		 * @param count number of values to read
+		 * @param valueSize size of value in bytes, chunks of the source must hold whole values
+		 * @param order byte order of the data
+		 * @param keyMask mask xor-ed to keys, 0 for signed ascending order
+		 */
+		protected KeyReader(ByteSource source, long count, int valueSize, ByteOrder order, long keyMask) {
+			this.source = source;
+			this.count = count;
+			this.valueSize = valueSize;
+			this.order = order;
+			this.keyMask = keyMask;
+		}
+		
+		/**
+		 * Returns true if there are elements left to read.
+		 * 
+		 * @return true if there are elements left to read
+		 */
+		public boolean hasNext() {
+			return index < count;
+		}
+		
+		/**
+		 * Retrieves next key from this reader.
+		 * If there are no more elements to read {@link NoSuchElementException} is thrown.
+		 * 
+		 * @return next key
+		 * @throws IOException
+		 */
+		public abstract long nextKey() throws IOException;
+		
+		/**
+		 * Retrieves, but does not remove, key of next value.
+		 * If there are no more elements to read {@link NoSuchElementException} is thrown.
+		 * 
+		 * @return key of next value
+		 * @throws IOException
+		 */
+		public abstract long peekKey() throws IOException;
+		
+		/**
+		 * Skips next value.
+		 * 
+		 * @throws IOException
+		 */
+		public void skip() throws IOException {
+			ByteBuffer c = nextValue();
+			c.position(c.position() + valueSize);
+		}
+		
+		/**
+		 * Moves next value to given writer as is, with all its bytes.
+		 * 
+		 * @param writer writer of values of the same size
+		 * @throws IOException
+		 */
+		public void transferTo(KeyWriter writer) throws IOException {
+			writer.put(nextValue(), valueSize);
+		}
+		
+		/**
+		 * Returns chunk positioned at next value and counts the value as read.
+		 * 
+		 * @return chunk containing next value
+		 * @throws IOException
+		 */
+		protected ByteBuffer nextValue() throws IOException {
+			ByteBuffer c = peekValue();
+			index++;
+			return c;
+		}
+		
+		/**
+		 * Returns chunk positioned at next value without counting the value as read.
+		 * 
+		 * @return chunk containing next value
+		 * @throws IOException
+		 */
+		protected ByteBuffer peekValue() throws IOException {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			if (!chunk.hasRemaining()) {
+				chunk = source.next();
+				if (chunk == null || !chunk.hasRemaining()) {
+					throw new EOFException();
+				}
+				chunk.order(order);
+			}
+			return chunk;
+		}
+		
+		/**
+		 * Closes underlying file.
+		 */
+		public void close() throws IOException {
+			source.close();
+		}
+	}
+	
+	/**
+	 * Writer of keys of one {@link KeyType} to chunks provided by a {@link ByteSink}.
+	 * 
+	 * @author IVotinov
+	 */
+	public abstract static class KeyWriter implements Closeable {
+		private ByteSink sink;
+		private ByteBuffer buffer;
+		private final ByteOrder order;
+		protected final long keyMask;
+		
+		/**
+		 * Constructs new KeyWriter writing to given sink.
+		 * 
+		 * @param sink destination of data
+		 * @param order byte order of the data
+		 * @param keyMask mask xor-ed to keys by {@link KeyReader}, 0 for signed ascending order
+		 */
+		protected KeyWriter(ByteSink sink, ByteOrder order, long keyMask) {
+			this.sink = sink;
+			this.order = order;
+			this.keyMask = keyMask;
+			this.buffer = sink.buffer().order(order);
+		}
+		
+		/**
+		 * Writes next key given as long value returned by {@link KeyReader#nextKey()}.
+		 * 
+		 * @param key key to write
+		 * @throws IOException
+		 */
+		public abstract void writeKey(long key) throws IOException;
+		
+		/**
+		 * Copies {@code size} bytes from given buffer, advancing its position.
+		 * 
+		 * @param src buffer positioned at the value
+		 * @param size size of value in bytes
+		 * @throws IOException
+		 */
+		protected void put(ByteBuffer src, int size) throws IOException {
+			ByteBuffer b = buffer(size);
+			int limit = src.limit();
+			src.limit(src.position() + size);
+			b.put(src);
+			src.limit(limit);
+		}
+		
+		/**
+		 * Returns buffer having room for a value of given size.
+		 * If current buffer is full it's written to the file and the next buffer is returned.
+		 * 
+		 * @param size size of value in bytes
+		 * @return buffer to put the value to
+		 * @throws IOException
+		 */
+		protected ByteBuffer buffer(int size) throws IOException {
+			if (buffer.remaining() < size) {
+				buffer = sink.flush().order(order);
+			}
+			return buffer;
+		}
+		
+		/**
+		 * Writes remaining of the buffer to the file and closes it.
+		 */
+		public void close() throws IOException {
+			sink.close();
+		}
+	}
+	
+	/**
+	 * Utility class to read integers from the underlying file.
+	 * Integers are read from chunks provided by a {@link ByteSource}, 
+	 * by default a buffer of {@link IOUtils#BUFFER_SIZE} bytes is used to reduce I/O operations count. 
+	 * Values are converted in place in the chunk, so no objects are allocated per value.
+	 * 
+	 * @author IVotinov
+	 */
+	public static class IntReader extends KeyReader {
+		/**
+		 * Constructs new IntReader for given file, start position and count.
+		 * 
+		 * @param file input file
+		 * @param startNum index of integer to start reading from
+		 * @param count number of integers to read
+		 * @throws IOException
+		 */
+		public IntReader(File file, long startNum, long count) throws IOException {
+			this(new StreamSource(file, startNum * INT_SIZE, count * INT_SIZE, BUFFER_SIZE), count);
+		}
+		
+		/**
+		 * Constructs new IntReader reading given count of integers from given source.
+		 * 
+		 * @param source source of data
+		 * @param count number of integers to read
+		 */
+		public IntReader(ByteSource source, long count) {
+			this(source, count, BYTE_ORDER);
+		}
+		
+		/**
+		 * Constructs new IntReader reading given count of integers in given byte order from given source.
+		 * 
+		 * @param source source of data
+		 * @param count number of integers to read
+		 * @param order byte order of the data
+		 */
+		public IntReader(ByteSource source, long count, ByteOrder order) {
+			this(source, count, order, 0);
+		}
+		
+		/**
+		 * Constructs new IntReader reading given count of integers in given byte order from given source,
+		 * returning keys in sort order defined by given key mask.
+		 * 
+		 * @param source source of data
+		 * @param count number of integers to read
+		 * @param order byte order of the data
+		 * @param keyMask mask xor-ed to keys
+		 */
+		public IntReader(ByteSource source, long count, ByteOrder order, long keyMask) {
+			super(source, count, INT_SIZE, order, keyMask);
+		}
+		
+		/**
+		 * Retrieves next value from this reader.
+		 * If there are no more elements to read {@link NoSuchElementException} is thrown.
+		 * 
+		 * @return next value
+		 * @throws IOException
+		 */
+		public int next() throws IOException {
+			return nextValue().getInt();
+		}
+
+		/**
+		 * Retrieves, but does not remove, next value from this reader.
+		 * If there are no more elements to read {@link NoSuchElementException} is thrown.
+		 * 
+		 * @return next value
+		 * @throws IOException
+		 */
+		public int peek() throws IOException {
+			ByteBuffer chunk = peekValue();
+			return chunk.getInt(chunk.position());
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public long nextKey() throws IOException {
+			return next() ^ keyMask;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public long peekKey() throws IOException {
+			return peek() ^ keyMask;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public void transferTo(KeyWriter writer) throws IOException {
+			writer.buffer(INT_SIZE).putInt(next());
+		}
+	}
+	
+	/**
+	 * Utility class to read longs from the underlying file, see {@link IntReader}.
+	 * 
+	 * @author IVotinov
+	 */
+	public static class LongReader extends KeyReader {
+		/**
+		 * Constructs new LongReader for given file, start position and count.
+		 * 
+		 * @param file input file
+		 * @param startNum index of long to start reading from
+		 * @param count number of longs to read
+		 * @throws IOException
+		 */
+		public LongReader(File file, long startNum, long count) throws IOException {
+			this(new StreamSource(file, startNum * LONG_SIZE, count * LONG_SIZE, BUFFER_SIZE), count);
+		}
+		
+		/**
+		 * Constructs new LongReader reading given count of longs from given source.
+		 * 
+		 * @param source source of data
+		 * @param count number of longs to read
+		 */
+		public LongReader(ByteSource source, long count) {
+			this(source, count, BYTE_ORDER);
+		}
+		
+		/**
+		 * Constructs new LongReader reading given count of longs in given byte order from given source.
+		 * 
+		 * @param source source of data
+		 * @param count number of longs to read
+		 * @param order byte order of the data
+		 */
+		public LongReader(ByteSource source, long count, ByteOrder order) {
+			this(source, count, order, 0);
+		}
+		
+		/**
+		 * Constructs new LongReader reading given count of longs in given byte order from given source,
+		 * returning keys in sort order defined by given key mask.
+		 * 
+		 * @param source source of data
+		 * @param count number of longs to read
+		 * @param order byte order of the data
+		 * @param keyMask mask xor-ed to keys
+		 */
+		public LongReader(ByteSource source, long count, ByteOrder order, long keyMask) {
+			super(source, count, LONG_SIZE, order, keyMask);
+		}
+		
+		/**
+		 * Retrieves next value from this reader.
+		 * If there are no more elements to read {@link NoSuchElementException} is thrown.
+		 * 
+		 * @return next value
+		 * @throws IOException
+		 */
+		public long next() throws IOException {
+			return nextValue().getLong();
+		}
+
+		/**
+		 * Retrieves, but does not remove, next value from this reader.
+		 * If there are no more elements to read {@link NoSuchElementException} is thrown.
+		 * 
+		 * @return next value
+		 * @throws IOException
+		 */
+		public long peek() throws IOException {
+			ByteBuffer chunk = peekValue();
+			return chunk.getLong(chunk.position());
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public long nextKey() throws IOException {
+			return next() ^ keyMask;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public long peekKey() throws IOException {
+			return peek() ^ keyMask;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public void transferTo(KeyWriter writer) throws IOException {
+			writer.buffer(LONG_SIZE).putLong(next());
+		}
+	}
+	
+	/**
+	 * Utility class to read floats from the underlying file, see {@link IntReader}.
+	 * Keys are bits of the floats {@link IOUtils#flipFloatBits(int) mapped} to integers of the same order.
+	 * 
+	 * @author IVotinov
+	 */
+	public static class FloatReader extends KeyReader {
+		/**
+		 * Constructs new FloatReader for given file, start position and count.
+		 * 
+		 * @param file input file
+		 * @param startNum index of float to start reading from
+		 * @param count number of floats to read
+		 * @throws IOException
+		 */
+		public FloatReader(File file, long startNum, long count) throws IOException {
+			this(new StreamSource(file, startNum * INT_SIZE, count * INT_SIZE, BUFFER_SIZE), count, BYTE_ORDER);
+		}
+		
+		/**
+		 * Constructs new FloatReader reading given count of floats in given byte order from given source.
+		 * 
+		 * @param source source of data
+		 * @param count number of floats to read
+		 * @param order byte order of the data
+		 */
+		public FloatReader(ByteSource source, long count, ByteOrder order) {
+			this(source, count, order, 0);
+		}
+		
+		/**
+		 * Constructs new FloatReader reading given count of floats in given byte order from given source,
+		 * returning keys in sort order defined by given key mask.
+		 * 
+		 * @param source source of data
+		 * @param count number of floats to read
+		 * @param order byte order of the data
+		 * @param keyMask mask xor-ed to keys
+		 */
+		public FloatReader(ByteSource source, long count, ByteOrder order, long keyMask) {
+			super(source, count, INT_SIZE, order, keyMask);
+		}
+		
+		/**
+		 * Retrieves next value from this reader.
+		 * If there are no more elements to read {@link NoSuchElementException} is thrown.
+		 * 
+		 * @return next value
+		 * @throws IOException
+		 */
+		public float next() throws IOException {
+			return nextValue().getFloat();
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public long nextKey() throws IOException {
+			return flipFloatBits(nextValue().getInt()) ^ keyMask;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public long peekKey() throws IOException {
+			ByteBuffer chunk = peekValue();
+			return flipFloatBits(chunk.getInt(chunk.position())) ^ keyMask;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public void transferTo(KeyWriter writer) throws IOException {
+			writer.buffer(INT_SIZE).putInt(nextValue().getInt());
+		}
+	}
+	
+	/**
+	 * Utility class to read doubles from the underlying file, see {@link FloatReader}.
+	 * 
+	 * @author IVotinov
+	 */
+	public static class DoubleReader extends KeyReader {
+		/**
+		 * Constructs new DoubleReader for given file, start position and count.
+		 * 
+		 * @param file input file
+		 * @param startNum index of double to start reading from
+		 * @param count number of doubles to read
+		 * @throws IOException
+		 */
+		public DoubleReader(File file, long startNum, long count) throws IOException {
+			this(new StreamSource(file, startNum * LONG_SIZE, count * LONG_SIZE, BUFFER_SIZE), count, BYTE_ORDER);
+		}
+		
+		/**
+		 * Constructs new DoubleReader reading given count of doubles in given byte order from given source.
+		 * 
+		 * @param source source of data
+		 * @param count number of doubles to read
+		 * @param order byte order of the data
+		 */
+		public DoubleReader(ByteSource source, long count, ByteOrder order) {
+			this(source, count, order, 0);
+		}
+		
+		/**
+		 * Constructs new DoubleReader reading given count of doubles in given byte order from given source,
+		 * returning keys in sort order defined by given key mask.
+		 * 
+		 * @param source source of data
+		 * @param count number of doubles to read
+		 * @param order byte order of the data
+		 * @param keyMask mask xor-ed to keys
+		 */
+		public DoubleReader(ByteSource source, long count, ByteOrder order, long keyMask) {
+			super(source, count, LONG_SIZE, order, keyMask);
+		}
+		
+		/**
+		 * Retrieves next value from this reader.
+		 * If there are no more elements to read {@link NoSuchElementException} is thrown.
+		 * 
+		 * @return next value
+		 * @throws IOException
+		 */
+		public double next() throws IOException {
+			return nextValue().getDouble();
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public long nextKey() throws IOException {
+			return flipDoubleBits(nextValue().getLong()) ^ keyMask;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public long peekKey() throws IOException {
+			ByteBuffer chunk = peekValue();
+			return flipDoubleBits(chunk.getLong(chunk.position())) ^ keyMask;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public void transferTo(KeyWriter writer) throws IOException {
+			writer.buffer(LONG_SIZE).putLong(nextValue().getLong());
+		}
+	}
+	
+	/**
+	 * Reader of fixed-width records having a key of one {@link KeyType} at fixed offset.
+	 * Keys are read in place in the chunk, and whole records are moved by {@link #transferTo(KeyWriter)}.
+	 * 
+	 * @author IVotinov
+	 */
+	public static class RecordReader extends KeyReader {
+		private final KeyType keyType;
+		private final int recordSize;
+		private final int keyOffset;
+		
+		/**
+		 * Constructs new RecordReader reading given count of records from given source.
+		 * 
+		 * @param source source of data
+		 * @param count number of records to read
+		 * @param keyType type of record keys
+		 * @param recordSize size of record in bytes
+		 * @param keyOffset offset of key in record in bytes
+		 * @param order byte order of keys
+		 * @param keyMask mask xor-ed to keys
+		 */
+		public RecordReader(ByteSource source, long count, KeyType keyType, int recordSize, int keyOffset, 
+				ByteOrder order, long keyMask) {
+			super(source, count, recordSize, order, keyMask);
+			this.keyType = keyType;
+			this.recordSize = recordSize;
+			this.keyOffset = keyOffset;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public long nextKey() throws IOException {
+			ByteBuffer chunk = nextValue();
+			int position = chunk.position();
+			chunk.position(position + recordSize);
+			return keyType.getKey(chunk, position + keyOffset) ^ keyMask;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public long peekKey() throws IOException {
+			ByteBuffer chunk = peekValue();
+			return keyType.getKey(chunk, chunk.position() + keyOffset) ^ keyMask;
+		}
+	}
+	
+	/**
+	 * Utility class to write integers to the underlying file.
+	 * Integers are written to chunks provided by a {@link ByteSink}, 
+	 * by default a buffer of {@link IOUtils#BUFFER_SIZE} bytes is used to reduce I/O operations count. 
+	 * Values are converted in place in the chunk, so no objects are allocated per value.
+	 * 
+	 * @author IVotinov
+	 */
+	public static class IntWriter extends KeyWriter {
+		/**
+		 * Constructs new {@code IntWriter} for given file and start position.
+		 * 
+		 * @param file output file
+		 * @param startNum index of integer to start writing from
+		 * @throws IOException
+		 */
+		public IntWriter(File file, long startNum) throws IOException {
+			this(new StreamSink(file, startNum * INT_SIZE, BUFFER_SIZE));
+		}
+		
+		/**
+		 * Constructs new {@code IntWriter} writing to given sink.
+		 * 
+		 * @param sink destination of data
+		 */
+		public IntWriter(ByteSink sink) {
+			this(sink, BYTE_ORDER);
+		}
+		
+		/**
+		 * Constructs new {@code IntWriter} writing to given sink in given byte order.
+		 * 
+		 * @param sink destination of data
+		 * @param order byte order of the data
+		 */
+		public IntWriter(ByteSink sink, ByteOrder order) {
+			this(sink, order, 0);
+		}
+		
+		/**
+		 * Constructs new {@code IntWriter} writing to given sink in given byte order 
+		 * keys in sort order defined by given key mask.
+		 * 
+		 * @param sink destination of data
+		 * @param order byte order of the data
+		 * @param keyMask mask xor-ed to keys by {@link KeyReader}
+		 */
+		public IntWriter(ByteSink sink, ByteOrder order, long keyMask) {
+			super(sink, order, keyMask);
+		}
+		
+		/**
+		 * Writes next value to the buffer. 
+		 * If buffer gets full when it's written to the file and the buffer is cleared.
+		 * 
+		 * @param value value to write
+		 * @throws IOException
+		 */
+		public void write(int value) throws IOException {
+			buffer(INT_SIZE).putInt(value);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public void writeKey(long key) throws IOException {
+			write((int) (key ^ keyMask));
+		}
+	}
+	
+	/**
+	 * Utility class to write longs to the underlying file, see {@link IntWriter}.
+	 * 
+	 * @author IVotinov
+	 */
+	public static class LongWriter extends KeyWriter {
+		/**
+		 * Constructs new {@code LongWriter} for given file and start position.
+		 * 
+		 * @param file output file
+		 * @param startNum index of long to start writing from
+		 * @throws IOException
+		 */
+		public LongWriter(File file, long startNum) throws IOException {
+			this(new StreamSink(file, startNum * LONG_SIZE, BUFFER_SIZE));
+		}
+		
+		/**
+		 * Constructs new {@code LongWriter} writing to given sink.
+		 * 
+		 * @param sink destination of data
+		 */
+		public LongWriter(ByteSink sink) {
+			this(sink, BYTE_ORDER);
+		}
+		
+		/**
+		 * Constructs new {@code LongWriter} writing to given sink in given byte order.
+		 * 
+		 * @param sink destination of data
+		 * @param order byte order of the data
+		 */
+		public LongWriter(ByteSink sink, ByteOrder order) {
+			this(sink, order, 0);
+		}
+		
+		/**
+		 * Constructs new {@code LongWriter} writing to given sink in given byte order 
+		 * keys in sort order defined by given key mask.
+		 * 
+		 * @param sink destination of data
+		 * @param order byte order of the data
+		 * @param keyMask mask xor-ed to keys by {@link KeyReader}
+		 */
+		public LongWriter(ByteSink sink, ByteOrder order, long keyMask) {
+			super(sink, order, keyMask);
+		}
+		
+		/**
+		 * Writes next value to the buffer. 
+		 * 
+		 * @param value value to write
+		 * @throws IOException
+		 */
+		public void write(long value) throws IOException {
+			buffer(LONG_SIZE).putLong(value);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public void writeKey(long key) throws IOException {
+			write(key ^ keyMask);
+		}
+	}
+	
+	/**
+	 * Utility class to write floats to the underlying file, see {@link IntWriter}.
+	 * 
+	 * @author IVotinov
+	 */
+	public static class FloatWriter extends KeyWriter {
+		/**
+		 * Constructs new {@code FloatWriter} for given file and start position.
+		 * 
+		 * @param file output file
+		 * @param startNum index of float to start writing from
+		 * @throws IOException
+		 */
+		public FloatWriter(File file, long startNum) throws IOException {
+			this(new StreamSink(file, startNum * INT_SIZE, BUFFER_SIZE), BYTE_ORDER);
+		}
+		
+		/**
+		 * Constructs new {@code FloatWriter} writing to given sink in given byte order.
+		 * 
+		 * @param sink destination of data
+		 * @param order byte order of the data
+		 */
+		public FloatWriter(ByteSink sink, ByteOrder order) {
+			this(sink, order, 0);
+		}
+		
+		/**
+		 * Constructs new {@code FloatWriter} writing to given sink in given byte order 
+		 * keys in sort order defined by given key mask.
+		 * 
+		 * @param sink destination of data
+		 * @param order byte order of the data
+		 * @param keyMask mask xor-ed to keys by {@link KeyReader}
+		 */
+		public FloatWriter(ByteSink sink, ByteOrder order, long keyMask) {
+			super(sink, order, keyMask);
+		}
+		
+		/**
+		 * Writes next value to the buffer. 
+		 * 
+		 * @param value value to write
+		 * @throws IOException
+		 */
+		public void write(float value) throws IOException {
+			buffer(INT_SIZE).putFloat(value);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public void writeKey(long key) throws IOException {
+			buffer(INT_SIZE).putInt(flipFloatBits((int) (key ^ keyMask)));
+		}
+	}
+	
+	/**
+	 * Utility class to write doubles to the underlying file, see {@link IntWriter}.
+	 * 
+	 * @author IVotinov
+	 */
+	public static class DoubleWriter extends KeyWriter {
+		/**
+		 * Constructs new {@code DoubleWriter} for given file and start position.
+		 * 
+		 * @param file output file
+		 * @param startNum index of double to start writing from
+		 * @throws IOException
+		 */
+		public DoubleWriter(File file, long startNum) throws IOException {
+			this(new StreamSink(file, startNum * LONG_SIZE, BUFFER_SIZE), BYTE_ORDER);
+		}
+		
+		/**
+		 * Constructs new {@code DoubleWriter} writing to given sink in given byte order.
+		 * 
+		 * @param sink destination of data
+		 * @param order byte order of the data
+		 */
+		public DoubleWriter(ByteSink sink, ByteOrder order) {
+			this(sink, order, 0);
+		}
+		
+		/**
+		 * Constructs new {@code DoubleWriter} writing to given sink in given byte order 
+		 * keys in sort order defined by given key mask.
+		 * 
+		 * @param sink destination of data
+		 * @param order byte order of the data
+		 * @param keyMask mask xor-ed to keys by {@link KeyReader}
+		 */
+		public DoubleWriter(ByteSink sink, ByteOrder order, long keyMask) {
+			super(sink, order, keyMask);
+		}
+		
+		/**
+		 * Writes next value to the buffer. 
+		 * 
+		 * @param value value to write
+		 * @throws IOException
+		 */
+		public void write(double value) throws IOException {
+			buffer(LONG_SIZE).putDouble(value);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public void writeKey(long key) throws IOException {
+			buffer(LONG_SIZE).putLong(flipDoubleBits(key ^ keyMask));
+		}
+	}
+	
+	/**
+	 * Writer of fixed-width records, which are only moved from a {@link RecordReader} as a whole.
+	 * 
+	 * @author IVotinov
+	 */
+	public static class RecordWriter extends KeyWriter {
+		/**
+		 * Constructs new {@code RecordWriter} writing to given sink.
+		 * Records are copied as is, so they keep byte order of the file.
+		 * 
+		 * @param sink destination of data
+		 */
+		public RecordWriter(ByteSink sink) {
+			super(sink, BYTE_ORDER, 0);
+		}
+
+		/**
+		 * Is not supported, key doesn't make a record.
+		 * 
+		 * @throws UnsupportedOperationException always
+		 */
+		@Override
+		public void writeKey(long key) {
+			throw new UnsupportedOperationException("Records are only written by RecordReader.transferTo");
+		}
+	}
+	
+	/**
+	 * Buffer for reading, sorting and writing whole blocks of keys of one {@link KeyType}.
+	 * Block is read from a file channel to a byte buffer, which is direct when it comes from {@link BufferPool},
+	 * and converted to a primitive array with a single bulk operation, 
+	 * which is the only copy needed for sorting with {@link SortKernel}.
+	 * Writing goes the same way back.
+	 * 
+	 * @author IVotinov
+	 */
+	public abstract static class BlockBuffer {
+		private final int valueSize;
+		protected final ByteBuffer bytes;
+		
+		/**
+		 * Constructs new {@code BlockBuffer} using given byte buffer.
+		 * 
+		 * @param bytes buffer for file I/O
+		 * @param valueSize size of value in bytes
+		 * @param order byte order of the file
+		 */
+		protected BlockBuffer(ByteBuffer bytes, int valueSize, ByteOrder order) {
+			this.valueSize = valueSize;
+			this.bytes = bytes.order(order);
+			this.bytes.clear();
+		}
+		
+		/**
+		 * Reads {@code count} values from the file starting from {@code startNum} value 
+		 * to the beginning of the array.
+		 * 
+		 * @param channel channel of input file
+		 * @param startNum index of value to start from
+		 * @param count number of values to read
+		 * @throws IOException
+		 */
+		public void read(FileChannel channel, long startNum, int count) throws IOException {
+			bytes.clear().limit(count * valueSize);
+			readFully(channel, bytes, startNum * valueSize);
+			getValues(count);
+		}
+		
+		/**
+		 * Reads up to {@code count} values from a blocking channel of unknown length, such as a pipe or a socket,
+		 * to the beginning of the array.
+		 * 
+		 * @param channel channel to read from
+		 * @param count max number of values to read
+		 * @return number of values read, less than {@code count} only if the channel has reached end of stream
+		 * @throws EOFException if the stream ends inside a value
+		 * @throws IOException
+		 */
+		public int read(ReadableByteChannel channel, int count) throws IOException {
+			bytes.clear().limit(count * valueSize);
+			while (bytes.hasRemaining() && channel.read(bytes) >= 0) {
+				// reading until the block is full or the stream ends
+			}
+			int read = bytes.position() / valueSize;
+			if (read * valueSize != bytes.position()) {
+				throw new EOFException("Stream ends inside a value");
+			}
+			getValues(read);
+			return read;
+		}
+		
+		/**
+		 * Writes {@code count} values from the beginning of the array 
+		 * to the file starting at {@code startNum} value.
+		 * 
+		 * @param channel channel of output file
+		 * @param startNum index of value to start writing from
+		 * @param count number of values to write
+		 * @throws IOException
+		 */
+		public void write(FileChannel channel, long startNum, int count) throws IOException {
+			ByteBuffer out = putValues(count);
+			out.clear().limit(count * valueSize);
+			writeFully(channel, out, startNum * valueSize);
+		}
+		
+		/**
+		 * Writes first values of the array in consecutive slices to different files.
+		 * Slice i holds values from {@code bounds[i]} to {@code bounds[i + 1]} exclusive 
+		 * and is written to {@code channels[i]} starting at {@code startNums[i]} value, empty slices are skipped.
+		 * 
+		 * @param channels channels of output files, a channel of an empty slice may be null
+		 * @param startNums indexes of values to start writing slices from
+		 * @param bounds boundaries of slices, from 0 to the number of written values
+		 * @throws IOException
+		 */
+		public void write(FileChannel[] channels, long[] startNums, int[] bounds) throws IOException {
+			ByteBuffer out = putValues(bounds[channels.length]);
+			for (int i = 0; i < channels.length; i++) {
+				if (bounds[i] < bounds[i + 1]) {
+					out.clear().limit(bounds[i + 1] * valueSize).position(bounds[i] * valueSize);
+					writeFully(channels[i], out, startNums[i] * valueSize);
+				}
+			}
+		}
+		
+		/**
+		 * Sorts first {@code count} keys of the array.
+		 * 
+		 * @param count number of keys
+		 * @param kernel algorithm to sort with
+		 */
+		public abstract void sort(int count, SortKernel kernel);
+		
+		/**
+		 * Moves first {@code count} keys of the array to buckets of their prefixes, keeping order within a bucket.
+		 * Bucket of a key is {@code (key - minKey) >>> shift}, so keys are distributed by a counting pass 
+		 * and a moving pass without comparisons, it needs the scratch array.
+		 * 
+		 * @param count number of keys
+		 * @param minKey key of the first bucket, not greater than any of the keys
+		 * @param shift number of low bits of a key not defining its bucket
+		 * @param bounds array receiving boundaries of buckets, bucket b holds keys from {@code bounds[b]} 
+		 * 		to {@code bounds[b + 1]} exclusive, its length is the number of buckets plus one
+		 */
+		public void partition(int count, long minKey, int shift, int[] bounds) {
+			partition(count, null, minKey, shift, bounds);
+		}
+		
+		/**
+		 * Moves first {@code count} keys of the array to buckets between given splitters, 
+		 * keeping order within a bucket.
+		 * Bucket of a key is found by binary search of splitters, and keys are distributed 
+		 * by a counting pass and a moving pass as by {@link #partition(int, long, int, int[])}, so they aren't sorted.
+		 * 
+		 * @param count number of keys
+		 * @param splitters ascending distinct splitters, bucket i holds keys greater than splitter {@code i - 1}
+		 * 		and not greater than splitter {@code i}, the last bucket holds keys greater than the last splitter
+		 * @param bounds array receiving boundaries of buckets, its length is the number of splitters plus two
+		 */
+		public void partition(int count, long[] splitters, int[] bounds) {
+			partition(count, splitters, 0, 0, bounds);
+		}
+		
+		/**
+		 * Moves first {@code count} keys of the array to buckets of their prefixes or between splitters.
+		 * 
+		 * @param count number of keys
+		 * @param splitters splitters of buckets, or null if buckets are key prefixes
+		 * @param minKey key of the first bucket of key prefixes
+		 * @param shift number of low bits of a key not defining its prefix
+		 * @param bounds array receiving boundaries of buckets
+		 */
+		private void partition(int count, long[] splitters, long minKey, int shift, int[] bounds) {
+			Arrays.fill(bounds, 0);
+			for (int i = 0; i < count; i++) {
+				bounds[getBucket(getKey(i), splitters, minKey, shift) + 1]++;
+			}
+			for (int b = 1; b < bounds.length; b++) {
+				bounds[b] += bounds[b - 1];
+			}
+			moveToBuckets(count, splitters, minKey, shift, Arrays.copyOf(bounds, bounds.length - 1));
+		}
+		
+		/**
+		 * Returns bucket of a key, see {@link #partition(int, long[], int[])} 
+		 * and {@link #partition(int, long, int, int[])}.
+		 * 
+		 * @param key key to find bucket of
+		 * @param splitters splitters of buckets, or null if buckets are key prefixes
+		 * @param minKey key of the first bucket of key prefixes
+		 * @param shift number of low bits of a key not defining its prefix
+		 * @return index of bucket
+		 */
+		protected static int getBucket(long key, long[] splitters, long minKey, int shift) {
+			if (splitters == null) {
+				return (int) ((key - minKey) >>> shift);
+			}
+			if (splitters.length == 0) {
+				return 0;
+			}
+			// the first splitter not less than the key, the range halves by a conditional move 
+			// instead of a branch, which is mispredicted for random keys
+			int base = 0;
+			int length = splitters.length;
+			while (length > 1) {
+				int half = length >>> 1;
+				base = splitters[base + half - 1] < key ? base + half : base;
+				length -= half;
+			}
+			return splitters[base] < key ? base + 1 : base;
+		}
+		
+		/**
+		 * Reverses order of first {@code count} keys of the array.
+		 * 
+		 * @param count number of keys
+		 */
+		public abstract void reverse(int count);
+		
+		/**
+		 * Returns key at given index of the array as value returned by {@link KeyReader#nextKey()}.
+		 * 
+		 * @param index index of key
+		 * @return key
+		 */
+		public abstract long getKey(int index);
+		
+		/**
+		 * Checks that first {@code count} keys are not decreasing.
+		 * 
+		 * @param count number of keys
+		 * @return true if keys are in ascending order
+		 */
+		public abstract boolean isAscending(int count);
+		
+		/**
+		 * Checks that first {@code count} keys are not increasing.
+		 * 
+		 * @param count number of keys
+		 * @return true if keys are in descending order
+		 */
+		public abstract boolean isDescending(int count);
+		
+		/**
+		 * Converts first {@code count} values of the byte buffer to the array.
+		 * 
+		 * @param count number of values
+		 */
+		protected abstract void getValues(int count);
+		
+		/**
+		 * Moves first {@code count} keys of the array to their buckets through the scratch array,
+		 * see {@link #getBucket(long, long[], long, int)}.
+		 * 
+		 * @param count number of keys
+		 * @param splitters splitters of buckets, or null if buckets are key prefixes
+		 * @param minKey key of the first bucket of key prefixes
+		 * @param shift number of low bits of a key not defining its prefix
+		 * @param positions next positions of buckets, advanced as keys are moved
+		 */
+		protected abstract void moveToBuckets(int count, long[] splitters, long minKey, int shift, int[] positions);
+		
+		/**
+		 * Converts first {@code count} values of the array to a byte buffer.
+		 * 
+		 * @param count number of values
+		 * @return buffer holding the values from its beginning
+		 */
+		protected abstract ByteBuffer putValues(int count);
+	}
+	
+	/**
+	 * {@link BlockBuffer} of integers.
+	 * 
+	 * @author IVotinov
+	 */
+	public static class IntBlockBuffer extends BlockBuffer {
+		private IntBuffer ints;
+		private int[] array;
+		private int[] scratch;
+		protected final int keyMask;
+		
+		/**
+		 * Constructs new {@code IntBlockBuffer} using given byte buffer and int array,
+		 * its capacity is the smallest of their capacities.
+		 * 
+		 * @param bytes buffer for file I/O
+		 * @param array array for values
+		 */
+		public IntBlockBuffer(ByteBuffer bytes, int[] array) {
+			this(bytes, array, null);
+		}
+		
+		/**
+		 * Constructs new {@code IntBlockBuffer} using given byte buffer, int array and scratch array for sorting.
+		 * 
+		 * @param bytes buffer for file I/O
+		 * @param array array for values
+		 * @param scratch array for {@link SortKernel} needing extra memory, may be null
+		 */
+		public IntBlockBuffer(ByteBuffer bytes, int[] array, int[] scratch) {
+			this(bytes, array, scratch, BYTE_ORDER);
+		}
+		
+		/**
+		 * Constructs new {@code IntBlockBuffer} for a file of given byte order.
+		 * Bulk conversion between the buffer and the array is a plain copy when the order is native.
+		 * 
+		 * @param bytes buffer for file I/O
+		 * @param array array for values
+		 * @param scratch array for {@link SortKernel} needing extra memory, may be null
+		 * @param order byte order of the file
+		 */
+		public IntBlockBuffer(ByteBuffer bytes, int[] array, int[] scratch, ByteOrder order) {
+			this(bytes, array, scratch, order, 0);
+		}
+		
+		/**
+		 * Constructs new {@code IntBlockBuffer} for a file of given byte order, 
+		 * sorting keys in order defined by given key mask.
+		 * Keys are xor-ed with the mask in place, so signed {@link SortKernel} sorts them in that order.
+		 * 
+		 * @param bytes buffer for file I/O
+		 * @param array array for keys
+		 * @param scratch array for {@link SortKernel} needing extra memory, may be null
+		 * @param order byte order of the file
+		 * @param keyMask mask xor-ed to keys, see {@link KeyReader}
+		 */
+		public IntBlockBuffer(ByteBuffer bytes, int[] array, int[] scratch, ByteOrder order, int keyMask) {
+			super(bytes, INT_SIZE, order);
+			this.ints = this.bytes.asIntBuffer();
+			this.array = array;
+			this.scratch = scratch;
+			this.keyMask = keyMask;
+		}
+		
+		/**
+		 * Returns array containing values of the last read block at its beginning.
+		 * 
+		 * @return array of values
+		 */
+		public int[] array() {
+			return array;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public void sort(int count, SortKernel kernel) {
+			kernel.sort(array, count, scratch);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public void reverse(int count) {
+			for (int i = 0, j = count - 1; i < j; i++, j--) {
+				int t = array[i];
+				array[i] = array[j];
+				array[j] = t;
+			}
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public long getKey(int index) {
+			return array[index];
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public boolean isAscending(int count) {
+			for (int i = 1; i < count; i++) {
+				if (array[i - 1] > array[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public boolean isDescending(int count) {
+			for (int i = 1; i < count; i++) {
+				if (array[i - 1] < array[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		protected void moveToBuckets(int count, long[] splitters, long minKey, int shift, int[] positions) {
+			for (int i = 0; i < count; i++) {
+				int key = array[i];
+				scratch[positions[getBucket(key, splitters, minKey, shift)]++] = key;
+			}
+			System.arraycopy(scratch, 0, array, 0, count);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		protected void getValues(int count) {
+			ints.clear();
+			ints.get(array, 0, count);
+			toKeys(count);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		protected ByteBuffer putValues(int count) {
+			toValues(count);
+			ints.clear();
+			ints.put(array, 0, count);
+			toKeys(count);
+			return bytes;
+		}
+		
+		/**
+		 * Maps first {@code count} values of the array to keys in place.
+		 * 
+		 * @param count number of values
+		 */
+		protected void toKeys(int count) {
+			if (keyMask != 0) {
+				for (int i = 0; i < count; i++) {
+					array[i] ^= keyMask;
+				}
+			}
+		}
+		
+		/**
+		 * Maps first {@code count} keys of the array back to values in place.
+		 * 
+		 * @param count number of keys
+		 */
+		protected void toValues(int count) {
+			toKeys(count);
+		}
+	}
+	
+	/**
+	 * {@link BlockBuffer} of longs.
+	 * 
+	 * @author IVotinov
+	 */
+	public static class LongBlockBuffer extends BlockBuffer {
+		private LongBuffer longs;
+		private long[] array;
+		private long[] scratch;
+		protected final long keyMask;
+		
+		/**
+		 * Constructs new {@code LongBlockBuffer} using given byte buffer, long array and scratch array for sorting.
+		 * 
+		 * @param bytes buffer for file I/O
+		 * @param array array for values
+		 * @param scratch array for {@link SortKernel} needing extra memory, may be null
+		 */
+		public LongBlockBuffer(ByteBuffer bytes, long[] array, long[] scratch) {
+			this(bytes, array, scratch, BYTE_ORDER);
+		}
+		
+		/**
+		 * Constructs new {@code LongBlockBuffer} for a file of given byte order, see {@link IntBlockBuffer}.
+		 * 
+		 * @param bytes buffer for file I/O
+		 * @param array array for values
+		 * @param scratch array for {@link SortKernel} needing extra memory, may be null
+		 * @param order byte order of the file
+		 */
+		public LongBlockBuffer(ByteBuffer bytes, long[] array, long[] scratch, ByteOrder order) {
+			this(bytes, array, scratch, order, 0);
+		}
+		
+		/**
+		 * Constructs new {@code LongBlockBuffer} for a file of given byte order, 
+		 * sorting keys in order defined by given key mask, see {@link IntBlockBuffer}.
+		 * 
+		 * @param bytes buffer for file I/O
+		 * @param array array for keys
+		 * @param scratch array for {@link SortKernel} needing extra memory, may be null
+		 * @param order byte order of the file
+		 * @param keyMask mask xor-ed to keys, see {@link KeyReader}
+		 */
+		public LongBlockBuffer(ByteBuffer bytes, long[] array, long[] scratch, ByteOrder order, long keyMask) {
+			super(bytes, LONG_SIZE, order);
+			this.longs = this.bytes.asLongBuffer();
+			this.array = array;
+			this.scratch = scratch;
+			this.keyMask = keyMask;
+		}
+		
+		/**
+		 * Returns array containing values of the last read block at its beginning.
+		 * 
+		 * @return array of values
+		 */
+		public long[] array() {
+			return array;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public void sort(int count, SortKernel kernel) {
+			kernel.sort(array, count, scratch);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public void reverse(int count) {
+			for (int i = 0, j = count - 1; i < j; i++, j--) {
+				long t = array[i];
+				array[i] = array[j];
+				array[j] = t;
+			}
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public long getKey(int index) {
+			return array[index];
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public boolean isAscending(int count) {
+			for (int i = 1; i < count; i++) {
+				if (array[i - 1] > array[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public boolean isDescending(int count) {
+			for (int i = 1; i < count; i++) {
+				if (array[i - 1] < array[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		protected void moveToBuckets(int count, long[] splitters, long minKey, int shift, int[] positions) {
+			for (int i = 0; i < count; i++) {
+				long key = array[i];
+				scratch[positions[getBucket(key, splitters, minKey, shift)]++] = key;
+			}
+			System.arraycopy(scratch, 0, array, 0, count);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		protected void getValues(int count) {
+			longs.clear();
+			longs.get(array, 0, count);
+			toKeys(count);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		protected ByteBuffer putValues(int count) {
+			toValues(count);
+			longs.clear();
+			longs.put(array, 0, count);
+			toKeys(count);
+			return bytes;
+		}
+		
+		/**
+		 * Maps first {@code count} values of the array to keys in place.
+		 * 
+		 * @param count number of values
+		 */
+		protected void toKeys(int count) {
+			if (keyMask != 0) {
+				for (int i = 0; i < count; i++) {
+					array[i] ^= keyMask;
+				}
+			}
+		}
+		
+		/**
+		 * Maps first {@code count} keys of the array back to values in place.
+		 * 
+		 * @param count number of keys
+		 */
+		protected void toValues(int count) {
+			toKeys(count);
+		}
+	}
+	
+	/**
+	 * {@link BlockBuffer} of floats, sorted as {@link IOUtils#flipFloatBits(int) mapped} integers.
+	 * Bits are mapped in place after the bulk conversion from the byte buffer, and mapped back around the bulk 
+	 * conversion to it, so the array keeps keys after the block is written.
+	 * 
+	 * @author IVotinov
+	 */
+	public static class FloatBlockBuffer extends IntBlockBuffer {
+		/**
+		 * Constructs new {@code FloatBlockBuffer} for a file of given byte order,
+		 * sorting keys in order defined by given key mask.
+		 * 
+		 * @param bytes buffer for file I/O
+		 * @param array array for keys
+		 * @param scratch array for {@link SortKernel} needing extra memory, may be null
+		 * @param order byte order of the file
+		 * @param keyMask mask xor-ed to keys, see {@link KeyReader}
+		 */
+		public FloatBlockBuffer(ByteBuffer bytes, int[] array, int[] scratch, ByteOrder order, int keyMask) {
+			super(bytes, array, scratch, order, keyMask);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		protected void toKeys(int count) {
+			int[] array = array();
+			for (int i = 0; i < count; i++) {
+				array[i] = flipFloatBits(array[i]) ^ keyMask;
+			}
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		protected void toValues(int count) {
+			int[] array = array();
+			for (int i = 0; i < count; i++) {
+				array[i] = flipFloatBits(array[i] ^ keyMask);
+			}
+		}
+	}
+	
+	/**
+	 * {@link BlockBuffer} of doubles, sorted as {@link IOUtils#flipDoubleBits(long) mapped} longs,
+	 * see {@link FloatBlockBuffer}.
+	 * 
+	 * @author IVotinov
+	 */
+	public static class DoubleBlockBuffer extends LongBlockBuffer {
+		/**
+		 * Constructs new {@code DoubleBlockBuffer} for a file of given byte order,
+		 * sorting keys in order defined by given key mask.
+		 * 
+		 * @param bytes buffer for file I/O
+		 * @param array array for keys
+		 * @param scratch array for {@link SortKernel} needing extra memory, may be null
+		 * @param order byte order of the file
+		 * @param keyMask mask xor-ed to keys, see {@link KeyReader}
+		 */
+		public DoubleBlockBuffer(ByteBuffer bytes, long[] array, long[] scratch, ByteOrder order, long keyMask) {
+			super(bytes, array, scratch, order, keyMask);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		protected void toKeys(int count) {
+			long[] array = array();
+			for (int i = 0; i < count; i++) {
+				array[i] = flipDoubleBits(array[i]) ^ keyMask;
+			}
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		protected void toValues(int count) {
+			long[] array = array();
+			for (int i = 0; i < count; i++) {
+				array[i] = flipDoubleBits(array[i] ^ keyMask);
+			}
+		}
+	}
+	
+	/**
+	 * {@link BlockBuffer} of fixed-width records.
+	 * Records stay where they are read, while pairs of key and record index are sorted in arrays,
+	 * so payload is moved only once, when records are gathered in sorted order to the output buffer.
+	 * 
+	 * @author IVotinov
+	 */
+	public static class RecordBlockBuffer extends BlockBuffer {
+		private final ByteBuffer records;
+		private final ByteBuffer sorted;
+		private final KeyType keyType;
+		private final int recordSize;
+		private final int keyOffset;
+		private final long keyMask;
+		private long[] keys;
+		private int[] indexes;
+		private long[] keyScratch;
+		private int[] indexScratch;
+		
+		/**
+		 * Constructs new {@code RecordBlockBuffer}.
+		 * 
+		 * @param bytes buffer for reading records
+		 * @param sorted buffer of the same size for writing records in sorted order
+		 * @param keyType type of record keys
+		 * @param recordSize size of record in bytes
+		 * @param keyOffset offset of key in record in bytes
+		 * @param keys array for keys
+		 * @param indexes array for indexes of records
+		 * @param keyScratch scratch array for keys, may be null if {@link SortKernel} needs no extra memory
+		 * @param indexScratch scratch array for indexes, may be null if {@link SortKernel} needs no extra memory
+		 * @param order byte order of keys
+		 * @param keyMask mask xor-ed to keys, see {@link KeyReader}
+		 */
+		public RecordBlockBuffer(ByteBuffer bytes, ByteBuffer sorted, KeyType keyType, int recordSize, int keyOffset, 
+				long[] keys, int[] indexes, long[] keyScratch, int[] indexScratch, ByteOrder order, long keyMask) {
+			super(bytes, recordSize, order);
+			this.records = this.bytes.duplicate();
+			this.sorted = sorted;
+			this.keyType = keyType;
+			this.recordSize = recordSize;
+			this.keyOffset = keyOffset;
+			this.keyMask = keyMask;
+			this.keys = keys;
+			this.indexes = indexes;
+			this.keyScratch = keyScratch;
+			this.indexScratch = indexScratch;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public void sort(int count, SortKernel kernel) {
+			kernel.sort(keys, indexes, count, keyScratch, indexScratch);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public void reverse(int count) {
+			for (int i = 0, j = count - 1; i < j; i++, j--) {
+				long t = keys[i];
+				keys[i] = keys[j];
+				keys[j] = t;
+				int index = indexes[i];
+				indexes[i] = indexes[j];
+				indexes[j] = index;
+			}
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public long getKey(int index) {
+			return keys[index];
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public boolean isAscending(int count) {
+			for (int i = 1; i < count; i++) {
+				if (keys[i - 1] > keys[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public boolean isDescending(int count) {
+			for (int i = 1; i < count; i++) {
+				if (keys[i - 1] < keys[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		protected void moveToBuckets(int count, long[] splitters, long minKey, int shift, int[] positions) {
+			for (int i = 0; i < count; i++) {
+				long key = keys[i];
+				int position = positions[getBucket(key, splitters, minKey, shift)]++;
+				keyScratch[position] = key;
+				indexScratch[position] = indexes[i];
+			}
+			System.arraycopy(keyScratch, 0, keys, 0, count);
+			System.arraycopy(indexScratch, 0, indexes, 0, count);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		protected void getValues(int count) {
+			for (int i = 0; i < count; i++) {
+				keys[i] = keyType.getKey(bytes, i * recordSize + keyOffset) ^ keyMask;
+				indexes[i] = i;
+			}
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		protected ByteBuffer putValues(int count) {
+			sorted.clear();
+			for (int i = 0; i < count; i++) {
+				int position = indexes[i] * recordSize;
+				records.clear();
+				records.position(position);
+				records.limit(position + recordSize);
+				sorted.put(records);
+			}
+			return sorted;
 		}
 	}
 }
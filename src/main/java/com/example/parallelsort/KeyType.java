@@ -0,0 +1,242 @@
+package com.example.parallelsort;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import com.example.parallelsort.IOUtils.BlockBuffer;
+import com.example.parallelsort.IOUtils.ByteSink;
+import com.example.parallelsort.IOUtils.ByteSource;
+import com.example.parallelsort.IOUtils.DoubleBlockBuffer;
+import com.example.parallelsort.IOUtils.DoubleReader;
+import com.example.parallelsort.IOUtils.DoubleWriter;
+import com.example.parallelsort.IOUtils.FloatBlockBuffer;
+import com.example.parallelsort.IOUtils.FloatReader;
+import com.example.parallelsort.IOUtils.FloatWriter;
+import com.example.parallelsort.IOUtils.IntBlockBuffer;
+import com.example.parallelsort.IOUtils.IntReader;
+import com.example.parallelsort.IOUtils.IntWriter;
+import com.example.parallelsort.IOUtils.KeyReader;
+import com.example.parallelsort.IOUtils.KeyWriter;
+import com.example.parallelsort.IOUtils.LongBlockBuffer;
+import com.example.parallelsort.IOUtils.LongReader;
+import com.example.parallelsort.IOUtils.LongWriter;
+
+/**
+ * Type of values stored in sorted file.
+ * Blocks are sorted in primitive arrays of integers or longs, floating point values as ordered bits,
+ * while merges read keys as long values ordered the same way as keys of the type,
+ * so all types share the same merge engine and nothing is boxed.
+ *
+ * @author IVotinov
+ */
+public enum KeyType {
+	/**
+	 * Signed 32-bit integers.
+	 */
+	INT(IOUtils.INT_SIZE, int.class, Integer.MIN_VALUE, Integer.MAX_VALUE, false) {
+		@Override
+		KeyReader newReader(ByteSource source, long count, ByteOrder order, long keyMask) {
+			return new IntReader(source, count, order, keyMask);
+		}
+
+		@Override
+		KeyWriter newWriter(ByteSink sink, ByteOrder order, long keyMask) {
+			return new IntWriter(sink, order, keyMask);
+		}
+
+		@Override
+		BlockBuffer newBlock(ByteBuffer bytes, BufferPool.Lease lease, boolean withScratch, ByteOrder order,
+			long keyMask) {
+			return new IntBlockBuffer(bytes, lease.getArray(0), withScratch ? lease.getArray(1) : null, order,
+					(int) keyMask);
+		}
+
+		@Override
+		long getKey(ByteBuffer buffer, int position) {
+			return buffer.getInt(position);
+		}
+	},
+	/**
+	 * Signed 64-bit integers.
+	 */
+	LONG(IOUtils.LONG_SIZE, long.class, Long.MIN_VALUE, Long.MAX_VALUE, false) {
+		@Override
+		KeyReader newReader(ByteSource source, long count, ByteOrder order, long keyMask) {
+			return new LongReader(source, count, order, keyMask);
+		}
+
+		@Override
+		KeyWriter newWriter(ByteSink sink, ByteOrder order, long keyMask) {
+			return new LongWriter(sink, order, keyMask);
+		}
+
+		@Override
+		BlockBuffer newBlock(ByteBuffer bytes, BufferPool.Lease lease, boolean withScratch, ByteOrder order,
+			long keyMask) {
+			return new LongBlockBuffer(bytes, lease.getLongArray(0), withScratch ? lease.getLongArray(1) : null,
+					order, keyMask);
+		}
+
+		@Override
+		long getKey(ByteBuffer buffer, int position) {
+			return buffer.getLong(position);
+		}
+	},
+	/**
+	 * 32-bit IEEE 754 floats in total order, negative NaNs first and positive NaNs last, 
+	 * {@code -0.0} before {@code 0.0}.
+	 * Keys are {@link IOUtils#flipFloatBits(int) mapped} bits, so blocks are sorted as integers.
+	 */
+	FLOAT(IOUtils.INT_SIZE, int.class, Integer.MIN_VALUE, Integer.MAX_VALUE, true) {
+		@Override
+		KeyReader newReader(ByteSource source, long count, ByteOrder order, long keyMask) {
+			return new FloatReader(source, count, order, keyMask);
+		}
+
+		@Override
+		KeyWriter newWriter(ByteSink sink, ByteOrder order, long keyMask) {
+			return new FloatWriter(sink, order, keyMask);
+		}
+
+		@Override
+		BlockBuffer newBlock(ByteBuffer bytes, BufferPool.Lease lease, boolean withScratch, ByteOrder order,
+			long keyMask) {
+			return new FloatBlockBuffer(bytes, lease.getArray(0), withScratch ? lease.getArray(1) : null, order,
+					(int) keyMask);
+		}
+
+		@Override
+		long getKey(ByteBuffer buffer, int position) {
+			return IOUtils.flipFloatBits(buffer.getInt(position));
+		}
+	},
+	/**
+	 * 64-bit IEEE 754 doubles in total order, see {@link #FLOAT}.
+	 */
+	DOUBLE(IOUtils.LONG_SIZE, long.class, Long.MIN_VALUE, Long.MAX_VALUE, true) {
+		@Override
+		KeyReader newReader(ByteSource source, long count, ByteOrder order, long keyMask) {
+			return new DoubleReader(source, count, order, keyMask);
+		}
+
+		@Override
+		KeyWriter newWriter(ByteSink sink, ByteOrder order, long keyMask) {
+			return new DoubleWriter(sink, order, keyMask);
+		}
+
+		@Override
+		BlockBuffer newBlock(ByteBuffer bytes, BufferPool.Lease lease, boolean withScratch, ByteOrder order,
+			long keyMask) {
+			return new DoubleBlockBuffer(bytes, lease.getLongArray(0), withScratch ? lease.getLongArray(1) : null,
+					order, keyMask);
+		}
+
+		@Override
+		long getKey(ByteBuffer buffer, int position) {
+			return IOUtils.flipDoubleBits(buffer.getLong(position));
+		}
+	};
+
+	private final int size;
+	private final Class<?> arrayType;
+	private final long minKey;
+	private final long maxKey;
+	private final boolean floatingPoint;
+
+	private KeyType(int size, Class<?> arrayType, long minKey, long maxKey, boolean floatingPoint) {
+		this.size = size;
+		this.arrayType = arrayType;
+		this.minKey = minKey;
+		this.maxKey = maxKey;
+		this.floatingPoint = floatingPoint;
+	}
+
+	/**
+	 * Returns size of value in bytes.
+	 *
+	 * @return value size
+	 */
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * Checks whether values are floating point numbers, which have no unsigned order.
+	 *
+	 * @return true for floats and doubles
+	 */
+	public boolean isFloatingPoint() {
+		return floatingPoint;
+	}
+
+	/**
+	 * Returns component type of arrays sorting blocks of this type, as leased from {@link BufferPool}.
+	 *
+	 * @return array component type
+	 */
+	Class<?> getArrayType() {
+		return arrayType;
+	}
+
+	/**
+	 * Returns the smallest key returned by readers of this type.
+	 * Key masks keep keys in range from min to max key.
+	 *
+	 * @return min key
+	 */
+	long getMinKey() {
+		return minKey;
+	}
+
+	/**
+	 * Returns the largest key returned by readers of this type.
+	 *
+	 * @return max key
+	 */
+	long getMaxKey() {
+		return maxKey;
+	}
+
+	/**
+	 * Creates reader of keys of this type.
+	 *
+	 * @param source source of data
+	 * @param count number of keys to read
+	 * @param order byte order of the data
+	 * @param keyMask mask xor-ed to keys, see {@link RecordFormat#getKeyMask()}
+	 * @return created reader
+	 */
+	abstract KeyReader newReader(ByteSource source, long count, ByteOrder order, long keyMask);
+
+	/**
+	 * Creates writer of keys of this type.
+	 *
+	 * @param sink destination of data
+	 * @param order byte order of the data
+	 * @param keyMask mask xor-ed to keys, see {@link RecordFormat#getKeyMask()}
+	 * @return created writer
+	 */
+	abstract KeyWriter newWriter(ByteSink sink, ByteOrder order, long keyMask);
+
+	/**
+	 * Creates block buffer over leased arrays of {@link #getArrayType() array type}.
+	 *
+	 * @param bytes buffer for file I/O
+	 * @param lease lease holding the array for values and optionally a scratch array
+	 * @param withScratch true if lease holds a scratch array for {@link SortKernel}
+	 * @param order byte order of the file
+	 * @param keyMask mask xor-ed to keys, see {@link RecordFormat#getKeyMask()}
+	 * @return created block buffer
+	 */
+	abstract BlockBuffer newBlock(ByteBuffer bytes, BufferPool.Lease lease, boolean withScratch, ByteOrder order,
+			long keyMask);
+
+	/**
+	 * Returns key stored at given position of the buffer.
+	 *
+	 * @param buffer buffer in byte order of the file
+	 * @param position position of the key in bytes
+	 * @return key as returned by {@link KeyReader#nextKey()}
+	 */
+	abstract long getKey(ByteBuffer buffer, int position);
+}
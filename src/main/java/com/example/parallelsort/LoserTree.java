@@ -0,0 +1,158 @@
+package com.example.parallelsort;
+
+import java.io.IOException;
+import java.util.NoSuchElementException;
+
+import com.example.parallelsort.IOUtils.KeyReader;
+import com.example.parallelsort.IOUtils.KeyWriter;
+
+/**
+ * Tournament (loser) tree used to merge any number of sorted {@link KeyReader}s in one pass.
+ * Each inner node of the tree keeps the index of the source that lost the match played at this node,
+ * node 0 keeps the overall winner. When the winner is consumed only the matches on the path
+ * from its leaf to the root are replayed, so each value costs {@code log2(k)} comparisons
+ * regardless of how many sources are exhausted.
+ * Head values stay in their sources until they are consumed, 
+ * so values are moved to output as is by {@link #transferNext(KeyWriter)}, including payload of records.
+ *
+ * @author IVotinov
+ */
+final class LoserTree {
+	private final KeyReader[] readers;
+	// current head key of each source
+	private final long[] keys;
+	// true if source is exhausted, exhausted source loses every match
+	private final boolean[] exhausted;
+	// tree[0] is the winner, tree[1..k-1] are losers of inner matches
+	private final int[] tree;
+	private final int k;
+
+	/**
+	 * Constructs new LoserTree over given sorted readers.
+	 * Readers are not closed by this class.
+	 *
+	 * @param readers sorted sources to merge
+	 * @throws IOException
+	 */
+	public LoserTree(KeyReader[] readers) throws IOException {
+		this.readers = readers;
+		this.k = readers.length;
+		this.keys = new long[k];
+		this.exhausted = new boolean[k + 1];
+		this.tree = new int[Math.max(k, 1)];
+		for (int i = 0; i < k; i++) {
+			if (readers[i].hasNext()) {
+				keys[i] = readers[i].peekKey();
+			} else {
+				exhausted[i] = true;
+			}
+		}
+		if (k == 0) {
+			exhausted[0] = true;
+			return;
+		}
+		// index k is a virtual source that wins every match,
+		// it is pushed out of the tree while real sources are inserted
+		for (int i = 0; i < k; i++) {
+			tree[i] = k;
+		}
+		for (int i = k - 1; i >= 0; i--) {
+			adjust(i);
+		}
+	}
+
+	/**
+	 * Returns true if there are elements left in any of the sources.
+	 *
+	 * @return true if there are elements left to read
+	 */
+	public boolean hasNext() {
+		return !exhausted[tree[0]];
+	}
+
+	/**
+	 * Retrieves the smallest of the head keys of all sources.
+	 * If there are no more elements to read {@link NoSuchElementException} is thrown.
+	 *
+	 * @return next key in merged order
+	 * @throws IOException
+	 */
+	public long next() throws IOException {
+		int winner = tree[0];
+		if (exhausted[winner]) {
+			throw new NoSuchElementException();
+		}
+		long value = keys[winner];
+		readers[winner].skip();
+		advance(winner);
+		return value;
+	}
+
+	/**
+	 * Moves the smallest of the head values of all sources to given writer.
+	 * If there are no more elements to read {@link NoSuchElementException} is thrown.
+	 *
+	 * @param writer writer of values of the same size as values of sources
+	 * @throws IOException
+	 */
+	public void transferNext(KeyWriter writer) throws IOException {
+		int winner = tree[0];
+		if (exhausted[winner]) {
+			throw new NoSuchElementException();
+		}
+		readers[winner].transferTo(writer);
+		advance(winner);
+	}
+
+	/**
+	 * Takes next head value of the source which head was consumed, and replays its matches.
+	 *
+	 * @param s index of the source
+	 * @throws IOException
+	 */
+	private void advance(int s) throws IOException {
+		KeyReader r = readers[s];
+		if (r.hasNext()) {
+			keys[s] = r.peekKey();
+		} else {
+			exhausted[s] = true;
+		}
+		adjust(s);
+	}
+
+	/**
+	 * Replays matches on the path from leaf of {@code s} source to the root.
+	 *
+	 * @param s index of the source which head value has changed
+	 */
+	private void adjust(int s) {
+		for (int t = (s + k) >> 1; t > 0; t >>= 1) {
+			int opponent = tree[t];
+			if (beats(opponent, s)) {
+				tree[t] = s;
+				s = opponent;
+			}
+		}
+		tree[0] = s;
+	}
+
+	/**
+	 * Checks whether source {@code a} wins the match against source {@code b}.
+	 *
+	 * @param a index of first source
+	 * @param b index of second source
+	 * @return true if head of {@code a} goes to output before head of {@code b}
+	 */
+	private boolean beats(int a, int b) {
+		if (a == k) {
+			return true;
+		}
+		if (b == k || exhausted[a]) {
+			return false;
+		}
+		if (exhausted[b]) {
+			return true;
+		}
+		return keys[a] < keys[b];
+	}
+}
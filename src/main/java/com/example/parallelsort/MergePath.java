@@ -0,0 +1,134 @@
+package com.example.parallelsort;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Co-ranking of sorted runs used to split one merge into independent slices.
+ * For an output rank {@code r} of the merged sequence this class finds a position in every run,
+ * such that exactly {@code r} values lie before these positions and none of them
+ * is greater than any value after them. So merging the parts of runs between split points
+ * of two ranks gives the part of merged output between these ranks,
+ * and slices can be merged by different threads at known output offsets.
+ *
+ * @author IVotinov
+ */
+final class MergePath {
+	private MergePath() {
+	}
+
+	/**
+	 * Finds split positions for given output rank of merged runs.
+	 *
+	 * @param channel channel of file containing sorted runs
+	 * @param format format of values in the file
+	 * @param runBounds boundaries of merged runs, run i occupies [runBounds[i], runBounds[i + 1])
+	 * @param rank number of values of merged output preceding the split
+	 * @return array of split positions, one per run, as indices of values in the file
+	 * @throws IOException
+	 */
+	public static long[] split(FileChannel channel, RecordFormat format, long[] runBounds, long rank) throws IOException {
+		int k = runBounds.length - 1;
+		long[] result = new long[k];
+		long total = runBounds[k] - runBounds[0];
+		if (rank <= 0 || rank >= total) {
+			for (int i = 0; i < k; i++) {
+				result[i] = rank <= 0 ? runBounds[i] : runBounds[i + 1];
+			}
+			return result;
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(format.getKeyType().getSize());
+		// search windows [low[i], high[i]] for count of values <= candidate in each run,
+		// they only shrink while candidate value is bisected
+		long[] low = new long[k];
+		long[] high = new long[k];
+		long[] counts = new long[k];
+		for (int i = 0; i < k; i++) {
+			low[i] = runBounds[i];
+			high[i] = runBounds[i + 1];
+		}
+		// searching for the smallest key v having at least rank keys <= v
+		long lo = format.getKeyType().getMinKey();
+		long hi = format.getKeyType().getMaxKey();
+		while (lo < hi) {
+			// difference of keys may overflow long, but not unsigned long
+			long mid = lo + ((hi - lo) >>> 1);
+			long c = 0;
+			for (int i = 0; i < k; i++) {
+				counts[i] = upperBound(channel, format, buffer, low[i], high[i], mid);
+				c += counts[i] - runBounds[i];
+			}
+			if (c >= rank) {
+				hi = mid;
+				System.arraycopy(counts, 0, high, 0, k);
+			} else {
+				lo = mid + 1;
+				System.arraycopy(counts, 0, low, 0, k);
+			}
+		}
+		// all values < v go before the split,
+		// remaining positions are taken from values equal to v in run order
+		long need = rank;
+		for (int i = 0; i < k; i++) {
+			result[i] = lowerBound(channel, format, buffer, runBounds[i], high[i], lo);
+			need -= result[i] - runBounds[i];
+		}
+		for (int i = 0; i < k && need > 0; i++) {
+			long equal = Math.min(need, high[i] - result[i]);
+			result[i] += equal;
+			need -= equal;
+		}
+		return result;
+	}
+
+	/**
+	 * Finds position of the first value greater than {@code value} in sorted range [from, to) of the file.
+	 *
+	 * @param channel channel of file containing sorted values
+	 * @param format format of values in the file
+	 * @param buffer buffer to read values to
+	 * @param from index of first value in range
+	 * @param to index of value following the range
+	 * @param value value to search for
+	 * @return position of first value greater than {@code value} or {@code to} if there is no such value
+	 * @throws IOException
+	 */
+	private static long upperBound(FileChannel channel, RecordFormat format, ByteBuffer buffer, long from, long to, long value) 
+			throws IOException {
+		while (from < to) {
+			long mid = (from + to) >>> 1;
+			if (format.readKey(channel, buffer, mid) <= value) {
+				from = mid + 1;
+			} else {
+				to = mid;
+			}
+		}
+		return from;
+	}
+
+	/**
+	 * Finds position of the first value not less than {@code value} in sorted range [from, to) of the file.
+	 *
+	 * @param channel channel of file containing sorted values
+	 * @param format format of values in the file
+	 * @param buffer buffer to read values to
+	 * @param from index of first value in range
+	 * @param to index of value following the range
+	 * @param value value to search for
+	 * @return position of first value not less than {@code value} or {@code to} if there is no such value
+	 * @throws IOException
+	 */
+	private static long lowerBound(FileChannel channel, RecordFormat format, ByteBuffer buffer, long from, long to, long value) 
+			throws IOException {
+		while (from < to) {
+			long mid = (from + to) >>> 1;
+			if (format.readKey(channel, buffer, mid) < value) {
+				from = mid + 1;
+			} else {
+				to = mid;
+			}
+		}
+		return from;
+	}
+}
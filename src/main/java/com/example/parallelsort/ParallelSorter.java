@@ -2,346 +2,2297 @@ package com.example.parallelsort;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.Callable;
+import java.util.NoSuchElementException;
+import java.util.Random;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.example.parallelsort.IOUtils.IntReader;
-import com.example.parallelsort.IOUtils.IntWriter;
+import com.example.parallelsort.IOUtils.BlockBuffer;
+import com.example.parallelsort.IOUtils.BufferSink;
+import com.example.parallelsort.IOUtils.KeyReader;
+import com.example.parallelsort.IOUtils.KeyWriter;
 
 /**
  * This class implements parallel sort algorithm.
- * First, input file is split into blocks that fit to memory (see {@link IOUtils#BUFFER_SIZE})
- * and each block is sorted using {@link Arrays#sort(int[])} method.
- * Then parallel merge sort is used to merge overall result.
+ * First, input file is split into blocks that fit to memory (see {@link SortOptions#getMemoryBudget()})
+ * and each block is sorted in memory by chosen {@link SortKernel}.
+ * Values are integers, longs, floats or doubles as chosen by {@link SortOptions#getKeyType()},
+ * or fixed-width records ordered by such keys (see {@link SortOptions#getRecordSize()}).
+ * Then sorted blocks (runs) are merged in passes, each pass merges groups of up to 
+ * merge fan-in consequent runs with a {@link LoserTree}, so only a few passes over the data are needed.
  * A temporary file with same size as input file is created to store intermediate results. 
+ * Data of unknown length, such as a pipe or a socket, is sorted by 
+ * {@link #sort(ReadableByteChannel, WritableByteChannel, SortOptions) streaming sort}.
+ * Alternatively a file is sorted without merge by partitioning it to buckets of key ranges, 
+ * see {@link SortMethod}.
  * 
  * @author IVotinov
  */
 public final class ParallelSorter {
 	private static final Logger LOG = LoggerFactory.getLogger(ParallelSorter.class);
 	
+	/**
+	 * Min number of values in a slice of merge split between threads.
+	 */
+	private static final long MIN_MERGE_SLICE_SIZE = IOUtils.BUFFER_SIZE / IOUtils.INT_SIZE;
+	
+	/**
+	 * Capacity of the top level of quantile sketches, giving rank error about 0.3% of the number of values.
+	 */
+	private static final int SKETCH_SIZE = 1024;
+	
+	/**
+	 * Number of sampled keys per bucket of sample sort, 
+	 * so bucket sizes deviate from planned ones by about an eighth.
+	 */
+	private static final int OVERSAMPLING = 64;
+	
+	/**
+	 * Max number of buckets of a partitioning, each bucket is a file open until its values are sorted.
+	 */
+	private static final int MAX_BUCKETS = 512;
+	
+	/**
+	 * Min number of key bits defining a bucket of radix partitioning.
+	 */
+	private static final int MIN_RADIX_BITS = 8;
+	
+	/**
+	 * Max number of recursive partitionings of a bucket, deeper buckets are sorted by merge.
+	 */
+	private static final int MAX_PARTITION_DEPTH = 4;
+	
 	private ParallelSorter() {
 	}
-	 
+	 
+	/**
+	 * Sorts given file in parallel using given number of threads.
+	 * Input file size MUST be a multiple of 4.
+	 * NOTE: call to this method MAY recreate {@code in} file. 
+	 * 
+	 * @param in input file
+	 * @param threadCount number of threads
+	 * @throws IOException
+	 * @throws ExecutionException 
+	 * @throws InterruptedException 
+	 */
+	public static void sort(File in, int threadCount) throws IOException, ExecutionException, InterruptedException {
+		SortOptions options = new SortOptions();
+		options.setThreadCount(threadCount);
+		sort(in, options);
+	}
+	
+	/**
+	 * Sorts given file in parallel with given options.
+	 * Input file size MUST be a multiple of value size of {@link SortOptions#getKeyType() key type}
+	 * or of {@link SortOptions#getRecordSize() record size}.
+	 * NOTE: call to this method MAY recreate {@code in} file. 
+	 * 
+	 * @param in input file
+	 * @param options sort options
+	 * @throws IOException
+	 * @throws ExecutionException 
+	 * @throws InterruptedException 
+	 */
+	public static void sort(File in, SortOptions options) throws IOException, ExecutionException, InterruptedException {
+		if (options.getSortMethod() != SortMethod.MERGE) {
+			partitionSort(in, options);
+			return;
+		}
+		RecordFormat format = options.getRecordFormat();
+		if (format.isRecord() && options.getRunGeneration() == RunGeneration.REPLACEMENT_SELECTION) {
+			throw new IllegalArgumentException("Replacement selection doesn't support records");
+		}
+		int threadCount = options.getThreadCount();
+		ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+		try{
+			// creating a temporary file to store intermediate results
+			// file size will be the same as provided input file
+			File out = IOUtils.createTempFile(in.length());
+	
+			long count = in.length() / format.getSize();
+			
+			SortContext context = new SortContext(options);
+			// tasks are submitted to the executors when tasks they depend on are completed,
+			// copies of blocks go to I/O threads
+			TaskGraph graph = new TaskGraph(executor, context.getIOExecutor());
+			
+			// resultInTemp will be true if sorted data ends up in temporary file
+			boolean resultInTemp;
+			// files of the sort are opened once and closed before cleanup
+			try {
+				if (options.getRunGeneration() == RunGeneration.REPLACEMENT_SELECTION) {
+					// run boundaries are known only when runs are generated, 
+					// so merge passes are planned by a task depending on all run generation tasks
+					List<ReplacementSelectionTask> selectionTasks = replacementSelection(graph, in, out, count, context);
+					MergePlanTask plan = graph.add(new MergePlanTask(graph, selectionTasks, in, out, context), selectionTasks);
+					await(graph);
+					resultInTemp = plan.isResultInTemp();
+				} else {
+					int blockSize = options.getRunSize();
+					int blocksCount = (int) (count / blockSize + (count % blockSize != 0 ? 1 : 0));
+					boolean detectOrder = options.isNaturalRunDetection();
+				
+					// add in-memory sort tasks to the graph
+					// returned list of tasks is used to keep track of tasks dependencies
+					List<InMemorySortTask> sortTasks = initialSort(graph, in, out, count, blockSize, blocksCount, 
+							detectOrder, context);
+				
+					if (detectOrder) {
+						// ordered blocks are coalesced into natural runs when all blocks are scanned 
+						NaturalRunsPlanTask plan = graph.add(new NaturalRunsPlanTask(graph, sortTasks, in, out, context), sortTasks);
+						await(graph);
+						resultInTemp = plan.isResultInTemp();
+					} else {
+						// add merge tasks to the graph
+						int passesCount = mergeBlocks(graph, sortTasks, in, out, count, blockSize, context);
+						await(graph);
+						resultInTemp = passesCount % 2 == 0;
+					}
+				}
+			} finally {
+				context.close();
+			}
+			
+			cleanup(in, out, resultInTemp);
+		} finally {
+			executor.shutdown();
+		}
+	}
+	
+	/**
+	 * Sorts data read from given stream and writes sorted data to given stream, see 
+	 * {@link #sort(ReadableByteChannel, WritableByteChannel, SortOptions)}.
+	 * Streams are not closed.
+	 * 
+	 * @param in input stream
+	 * @param out output stream
+	 * @param options sort options
+	 * @throws IOException
+	 * @throws ExecutionException 
+	 * @throws InterruptedException 
+	 */
+	public static void sort(InputStream in, OutputStream out, SortOptions options) 
+			throws IOException, ExecutionException, InterruptedException {
+		sort(Channels.newChannel(in), Channels.newChannel(out), options);
+	}
+	
+	/**
+	 * Sorts data read from given channel until end of stream and writes sorted data to given channel.
+	 * Length of input needn't be known, so pipes and sockets can be sorted.
+	 * Input is read by calling thread to blocks of {@link SortOptions#getRunSize() run size},
+	 * and as each block is read it's sorted and spilled to a temporary file by a sorting thread,
+	 * while the next block is read. 
+	 * Blocks wait for memory of the {@link SortOptions#getMemoryBudget() budget}, so reading is suspended 
+	 * while all memory is taken by blocks being sorted.
+	 * When input ends, runs are merged in passes as by {@link #sort(File, SortOptions)}, 
+	 * except for the last pass, which streams merged data to output channel as it's merged 
+	 * by a {@link SortedCursor}, so no sorted file is written.
+	 * Runs are always generated by block sort without natural run detection, 
+	 * since blocks of a stream can't be read again.
+	 * Input size MUST be a multiple of value size, channels must be blocking and are not closed.
+	 * 
+	 * @param in input channel
+	 * @param out output channel
+	 * @param options sort options
+	 * @throws IOException
+	 * @throws ExecutionException 
+	 * @throws InterruptedException 
+	 */
+	public static void sort(ReadableByteChannel in, WritableByteChannel out, SortOptions options) 
+			throws IOException, ExecutionException, InterruptedException {
+		SortedCursor cursor = openCursor(in, options);
+		try {
+			cursor.transferTo(out);
+		} finally {
+			cursor.close();
+		}
+	}
+	
+	/**
+	 * Sorts given file and returns cursor over sorted values, which performs the last merge as values are consumed.
+	 * So sorted data is never written to a file, which saves writing and reading it once more 
+	 * when sorted data is scanned once.
+	 * Input file is left intact, blocks are sorted to a temporary file 
+	 * and merged in passes as by {@link #sort(File, SortOptions)}, except for the last pass.
+	 * Runs are always generated by block sort without natural run detection.
+	 * Returned cursor must be closed.
+	 * 
+	 * @param in input file
+	 * @param options sort options
+	 * @return cursor over sorted values
+	 * @throws IOException
+	 * @throws ExecutionException 
+	 * @throws InterruptedException 
+	 */
+	public static SortedCursor openCursor(File in, SortOptions options) 
+			throws IOException, ExecutionException, InterruptedException {
+		return openCursor(in, null, options);
+	}
+	
+	/**
+	 * Sorts data read from given channel until end of stream and returns cursor over sorted values, 
+	 * see {@link #sort(ReadableByteChannel, WritableByteChannel, SortOptions)}.
+	 * Returned cursor must be closed.
+	 * 
+	 * @param in blocking input channel, it's not closed
+	 * @param options sort options
+	 * @return cursor over sorted values
+	 * @throws IOException
+	 * @throws ExecutionException 
+	 * @throws InterruptedException 
+	 */
+	public static SortedCursor openCursor(ReadableByteChannel in, SortOptions options) 
+			throws IOException, ExecutionException, InterruptedException {
+		return openCursor(null, in, options);
+	}
+	
+	/**
+	 * Selects the first {@code k} values of given file in sort order, 
+	 * which are the smallest values or, with {@link SortOptions#setDescending(boolean) descending order}, the largest ones.
+	 * File is split into a segment per thread, each segment is scanned once keeping the first values of it
+	 * in a {@link Selection}, and selections of segments are combined when all of them are scanned.
+	 * So the file is read once and left intact, no temporary file is created, 
+	 * and memory of selections is proportional to {@code k} and number of threads.
+	 * 
+	 * @param in input file
+	 * @param k number of values to select
+	 * @param options sort options
+	 * @return buffer in byte order of the file holding selected values sorted, fewer than {@code k} 
+	 * if the file is shorter
+	 * @throws IOException
+	 * @throws ExecutionException 
+	 * @throws InterruptedException 
+	 */
+	public static ByteBuffer selectFirst(File in, int k, SortOptions options) 
+			throws IOException, ExecutionException, InterruptedException {
+		RecordFormat format = options.getRecordFormat();
+		if (k < 0 || k > Selection.getMaxK(format)) {
+			throw new IllegalArgumentException("Can't select " + k + " values");
+		}
+		long count = in.length() / format.getSize();
+		if (k == 0 || count == 0) {
+			return ByteBuffer.allocate(0).order(format.getOrder());
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(options.getThreadCount());
+		try {
+			SortContext context = new SortContext(options);
+			try {
+				TaskGraph graph = new TaskGraph(executor, context.getIOExecutor());
+				// segments shorter than k would keep all their values
+				long segmentsCount = Math.min(options.getThreadCount(), (count + k - 1) / k);
+				List<SelectionTask> tasks = new ArrayList<SelectionTask>((int) segmentsCount);
+				for (long i = 0; i < segmentsCount; i++) {
+					long startNum = count * i / segmentsCount;
+					long endNum = count * (i + 1) / segmentsCount;
+					tasks.add(graph.add(new SelectionTask(in, startNum, endNum - startNum, k, context)));
+				}
+				await(graph);
+				// selection of a segment may be shorter than 2K values, so values of all segments are combined
+				// in a selection sized by the whole file
+				Selection result = new Selection(format, k, count, options.getSortKernel());
+				for (SelectionTask task : tasks) {
+					result.addAll(task.getSelection());
+				}
+				return result.getResult();
+			} finally {
+				context.close();
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+	
+	/**
+	 * Computes quantiles of given file of bare keys without sorting it.
+	 * Quantile of fraction {@code q} is the value at index {@code floor(q * (count - 1))} of sorted data,
+	 * so 0.5 is the median, 0 and 1 are the first and the last values in sort order.
+	 * File is split into a segment per thread, and each segment is read in blocks as by in-memory sort,
+	 * while keys of blocks are added to a mergeable {@link QuantileSketch} of the segment.
+	 * Approximate quantiles are estimated by merged sketches after a single pass,
+	 * with error of rank about 0.3% of the number of values.
+	 * Exact quantiles are refined in more passes: each pass counts values below and inside a window of keys
+	 * chosen by the last sketch around the quantile, and sketches values of the window, 
+	 * until values of the window fit memory of a run and are selected in memory.
+	 * Each pass narrows the window by the factor of sketch precision, so large files take a few passes.
+	 * File is left intact and no temporary file is created.
+	 * 
+	 * @param in input file
+	 * @param fractions fractions of quantiles, from 0 to 1
+	 * @param exact true for exact quantiles, false for approximate ones
+	 * @param options sort options, record size must be the key size
+	 * @return buffer in byte order of the file holding a value per fraction, in order of fractions
+	 * @throws IOException
+	 * @throws ExecutionException 
+	 * @throws InterruptedException 
+	 */
+	public static ByteBuffer quantiles(File in, double[] fractions, boolean exact, SortOptions options) 
+			throws IOException, ExecutionException, InterruptedException {
+		RecordFormat format = options.getRecordFormat();
+		if (format.isRecord()) {
+			throw new IllegalArgumentException("Quantiles are computed for bare keys only");
+		}
+		for (double fraction : fractions) {
+			if (!(fraction >= 0 && fraction <= 1)) {
+				throw new IllegalArgumentException("Fraction of quantile " + fraction + " is not in [0, 1]");
+			}
+		}
+		long count = in.length() / format.getSize();
+		if (count == 0) {
+			throw new NoSuchElementException("No values in " + in);
+		}
+		int n = fractions.length;
+		long[] ranks = new long[n];
+		// range of keys known to contain each quantile and window of keys counted in the next pass
+		long[] rangeFrom = new long[n];
+		long[] rangeTo = new long[n];
+		long[] windowFrom = new long[n];
+		long[] windowTo = new long[n];
+		long[] keys = new long[n];
+		boolean[] resolved = new boolean[n];
+		for (int i = 0; i < n; i++) {
+			ranks[i] = (long) Math.floor(fractions[i] * (count - 1));
+			rangeFrom[i] = windowFrom[i] = format.getKeyType().getMinKey();
+			rangeTo[i] = windowTo[i] = format.getKeyType().getMaxKey();
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(options.getThreadCount());
+		try {
+			SortContext context = new SortContext(options);
+			try {
+				int segmentsCount = (int) Math.min(options.getThreadCount(), count);
+				int unresolved = n;
+				while (unresolved > 0) {
+					List<QuantileTask> tasks = new ArrayList<QuantileTask>(segmentsCount);
+					// collected keys of all windows take at most memory of a run
+					int collectLimit = exact ? options.getRunSize() / segmentsCount / unresolved : 0;
+					TaskGraph graph = new TaskGraph(executor, context.getIOExecutor());
+					for (int s = 0; s < segmentsCount; s++) {
+						long startNum = count * s / segmentsCount;
+						long endNum = count * (s + 1) / segmentsCount;
+						tasks.add(graph.add(new QuantileTask(in, startNum, endNum - startNum, windowFrom, windowTo, 
+								resolved, collectLimit, context)));
+					}
+					await(graph);
+					for (int i = 0; i < n; i++) {
+						if (resolved[i]) {
+							continue;
+						}
+						long below = 0;
+						long inWindow = 0;
+						boolean collectedAll = true;
+						for (QuantileTask task : tasks) {
+							below += task.getBelowWindow()[i];
+							inWindow += task.getInWindow()[i];
+							collectedAll &= task.getCollectedCount()[i] == task.getInWindow()[i];
+						}
+						if (below > ranks[i] || below + inWindow <= ranks[i]) {
+							// sketch missed the quantile, the rest of the range is sketched by the next pass
+							if (below > ranks[i]) {
+								rangeTo[i] = windowFrom[i] - 1;
+							} else {
+								rangeFrom[i] = windowTo[i] + 1;
+							}
+							windowFrom[i] = rangeFrom[i];
+							windowTo[i] = rangeTo[i];
+							continue;
+						}
+						rangeFrom[i] = windowFrom[i];
+						rangeTo[i] = windowTo[i];
+						QuantileSketch sketch = new QuantileSketch(SKETCH_SIZE, new Random());
+						for (QuantileTask task : tasks) {
+							sketch.merge(task.getSketch(i));
+						}
+						if (!exact) {
+							keys[i] = sketch.getKey(ranks[i] - below);
+							resolved[i] = true;
+						} else if (windowFrom[i] == windowTo[i]) {
+							keys[i] = windowFrom[i];
+							resolved[i] = true;
+						} else if (collectedAll) {
+							keys[i] = selectCollected(tasks, i, (int) inWindow, ranks[i] - below);
+							resolved[i] = true;
+						}
+						if (resolved[i]) {
+							unresolved--;
+						} else {
+							setQuantileWindow(sketch, ranks[i] - below, i, rangeFrom, rangeTo, windowFrom, windowTo);
+						}
+					}
+				}
+			} finally {
+				context.close();
+			}
+		} finally {
+			executor.shutdown();
+		}
+		ByteBuffer result = ByteBuffer.allocate(n * format.getSize());
+		KeyWriter iw = format.newWriter(new BufferSink(result));
+		for (long key : keys) {
+			iw.writeKey(key);
+		}
+		result.flip();
+		return result.order(format.getOrder());
+	}
+	
+	/**
+	 * Chooses window of keys for the next pass refining a quantile, 
+	 * so that it contains the quantile with high probability and few other values.
+	 * Window spans twice the rank error of the sketch around estimated quantile.
+	 * If such a window doesn't narrow the range, the window is the single estimated key, 
+	 * so each pass either finds the quantile or narrows the range.
+	 * 
+	 * @param sketch sketch of values of the range
+	 * @param rank rank of the quantile in the range
+	 * @param i index of the quantile
+	 * @param rangeFrom first keys of ranges containing quantiles
+	 * @param rangeTo last keys of ranges containing quantiles
+	 * @param windowFrom first keys of windows, updated
+	 * @param windowTo last keys of windows, updated
+	 */
+	private static void setQuantileWindow(QuantileSketch sketch, long rank, int i, long[] rangeFrom, long[] rangeTo, 
+			long[] windowFrom, long[] windowTo) {
+		long sketched = sketch.getCount();
+		long margin = (long) Math.ceil(2 * sketch.getRankError() * sketched) + 1;
+		long from = sketch.getKey(Math.max(0, rank - margin));
+		long to = sketch.getKey(Math.min(sketched - 1, rank + margin));
+		if (from == rangeFrom[i] && to == rangeTo[i]) {
+			from = to = sketch.getKey(rank);
+		}
+		windowFrom[i] = from;
+		windowTo[i] = to;
+	}
+	
+	/**
+	 * Selects key of given rank from keys of a window collected by all tasks of a pass.
+	 * 
+	 * @param tasks tasks of the pass
+	 * @param i index of the quantile
+	 * @param count number of collected keys
+	 * @param rank rank of the key in the window
+	 * @return selected key
+	 */
+	private static long selectCollected(List<QuantileTask> tasks, int i, int count, long rank) {
+		long[] collected = new long[count];
+		int n = 0;
+		for (QuantileTask task : tasks) {
+			System.arraycopy(task.getCollected()[i], 0, collected, n, task.getCollectedCount()[i]);
+			n += task.getCollectedCount()[i];
+		}
+		Arrays.sort(collected);
+		return collected[(int) rank];
+	}
+	
+	/**
+	 * Sorts blocks of given file or channel to runs and merges them in passes until they form a single group,
+	 * then opens cursor merging the group.
+	 * 
+	 * @param inFile input file or null to read the channel
+	 * @param inChannel input channel, used if file is null
+	 * @param options sort options
+	 * @return cursor over sorted values
+	 * @throws IOException
+	 * @throws ExecutionException 
+	 * @throws InterruptedException 
+	 */
+	private static SortedCursor openCursor(File inFile, ReadableByteChannel inChannel, SortOptions options) 
+			throws IOException, ExecutionException, InterruptedException {
+		RecordFormat format = options.getRecordFormat();
+		ExecutorService executor = Executors.newFixedThreadPool(options.getThreadCount());
+		SortContext context = null;
+		// sorted blocks are written to runs file, other file is created for merge passes if needed
+		File runs = null;
+		File other = null;
+		SortedCursor cursor = null;
+		try {
+			context = new SortContext(options);
+			TaskGraph graph = new TaskGraph(executor, context.getIOExecutor());
+			List<? extends TaskGraph.Task> runTasks;
+			int[] runTaskBounds;
+			long[] runBounds = null;
+			if (inFile != null) {
+				long count = inFile.length() / format.getSize();
+				int blockSize = options.getRunSize();
+				int blocksCount = (int) (count / blockSize + (count % blockSize != 0 ? 1 : 0));
+				runs = IOUtils.createTempFile(inFile.length());
+				runTasks = initialSort(graph, inFile, runs, count, blockSize, blocksCount, false, context);
+				runBounds = new long[blocksCount + 1];
+				runTaskBounds = new int[blocksCount + 1];
+				for (int i = 1; i < runBounds.length; i++) {
+					runBounds[i] = Math.min((long) i * blockSize, count);
+					runTaskBounds[i] = i;
+				}
+			} else {
+				runs = IOUtils.createTempFile();
+				try {
+					runBounds = spillRuns(graph, inChannel, runs, context);
+				} finally {
+					if (runBounds == null) {
+						// tasks sorting spilled blocks must complete before files are closed,
+						// failure of reading is reported rather than theirs
+						try {
+							graph.await();
+						} catch (ExecutionException e) {
+							LOG.error("Unexpected exception", e);
+						}
+					}
+				}
+				// merge passes start when all blocks are spilled
+				await(graph);
+				runTasks = new ArrayList<TaskGraph.Task>(0);
+				runTaskBounds = new int[runBounds.length];
+			}
+			
+			// runs are merged in passes until they form a single group merged by the cursor
+			int fanIn = getBalancedFanIn(runBounds.length - 1, options.getEffectiveMergeFanIn());
+			File runsFile = runs;
+			if (runBounds.length - 1 > fanIn) {
+				other = IOUtils.createTempFile(runBounds[runBounds.length - 1] * format.getSize());
+				int passesCount = mergeAll(graph, runTasks, runTaskBounds, other, runs, runBounds, true, context);
+				for (int i = 0; i < passesCount; i++) {
+					runBounds = getNextRunBounds(runBounds, fanIn);
+				}
+				runsFile = passesCount % 2 == 0 ? runs : other;
+			}
+			await(graph);
+			cursor = openCursor(runsFile, runBounds, context, executor, runs, other);
+			return cursor;
+		} finally {
+			if (cursor == null) {
+				try {
+					if (context != null) {
+						context.close();
+					}
+				} finally {
+					executor.shutdown();
+					if (runs != null) {
+						runs.delete();
+					}
+					if (other != null) {
+						other.delete();
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Opens readers of given runs and cursor merging them.
+	 * Buffers of the readers and the buffer for merged batches are leased at once.
+	 * 
+	 * @param in file containing the runs
+	 * @param runBounds boundaries of the runs, run i occupies [runBounds[i], runBounds[i + 1])
+	 * @param context sort context, closed by the cursor
+	 * @param executor executor of sorting threads, shut down by the cursor
+	 * @param tempFiles temporary files of the sort, deleted by the cursor
+	 * @return opened cursor
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private static SortedCursor openCursor(File in, long[] runBounds, SortContext context, ExecutorService executor, 
+			File... tempFiles) throws IOException, InterruptedException {
+		IOBackend backend = context.getOptions().getIOBackend();
+		RecordFormat format = context.getOptions().getRecordFormat();
+		int bufferSize = context.getOptions().getIOBufferSize();
+		FileChannel inChannel = context.getChannel(in);
+		KeyReader[] readers = new KeyReader[runBounds.length - 1];
+		int ioBufferCount = getIOBufferCount(context);
+		BufferPool.Lease lease = context.getBufferPool().acquire(bufferSize, readers.length * ioBufferCount + 1);
+		SortedCursor cursor = null;
+		try {
+			for (int i = 0; i < readers.length; i++) {
+				readers[i] = backend.openKeyReader(format, inChannel, runBounds[i], runBounds[i + 1] - runBounds[i], 
+						bufferSize, ioBufferCount == 0 ? null : getIOBuffers(context, lease, i), 
+						context.getAsyncIOExecutor());
+			}
+			cursor = new SortedCursor(readers, lease, lease.getBuffer(readers.length * ioBufferCount), context, executor, 
+					tempFiles);
+			return cursor;
+		} finally {
+			if (cursor == null) {
+				try {
+					for (KeyReader ir : readers) {
+						if (ir != null) {
+							ir.close();
+						}
+					}
+				} finally {
+					context.getBufferPool().release(lease);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Reads given channel to blocks, adding a {@link SpilledBlockSortTask} for each block to the graph.
+	 * Each block is read to memory leased from the buffer pool of the sort, which is released by its task.
+	 * 
+	 * @param graph {@link TaskGraph} that will execute tasks
+	 * @param in input channel
+	 * @param runs file to spill sorted blocks to
+	 * @param context sort context
+	 * @return boundaries of spilled runs, run i occupies [runBounds[i], runBounds[i + 1])
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private static long[] spillRuns(TaskGraph graph, ReadableByteChannel in, File runs, SortContext context) 
+			throws IOException, InterruptedException {
+		SortOptions options = context.getOptions();
+		RecordFormat format = options.getRecordFormat();
+		boolean withScratch = options.getSortKernel().getExtraMemoryFactor() > 0;
+		int blockSize = options.getRunSize();
+		BufferPool pool = context.getBufferPool();
+		List<Long> bounds = new ArrayList<Long>();
+		long count = 0;
+		bounds.add(count);
+		int read = blockSize;
+		// tasks added after a failure are never executed, so no more memory is leased for them
+		while (read == blockSize && !graph.isFailed()) {
+			BufferPool.Lease lease = format.acquireBlock(pool, blockSize, withScratch);
+			boolean submitted = false;
+			try {
+				BlockBuffer block = format.newBlock(lease, withScratch);
+				read = block.read(in, blockSize);
+				if (read > 0) {
+					graph.add(new SpilledBlockSortTask(block, lease, runs, count, read, context));
+					submitted = true;
+					count += read;
+					bounds.add(count);
+				}
+			} finally {
+				if (!submitted) {
+					pool.release(lease);
+				}
+			}
+		}
+		long[] runBounds = new long[bounds.size()];
+		for (int i = 0; i < runBounds.length; i++) {
+			runBounds[i] = bounds.get(i);
+		}
+		return runBounds;
+	}
+	
+	/**
+	 * Waits for completion of all tasks of the graph.
+	 * 
+	 * @param graph graph to wait for
+	 * @throws IOException
+	 * @throws ExecutionException
+	 * @throws InterruptedException
+	 */
+	private static void await(TaskGraph graph) throws IOException, ExecutionException, InterruptedException {
+		try {
+			graph.await();
+		} catch (ExecutionException e) {
+			handleException(e);
+		}
+	}
+
+	/**
+	 * Performs cleanup.
+	 * In case when sort ended up with data in initial file, temporary file is deleted.
+	 * In case when sort ended up with data in temporary file, 
+	 * initial file is deleted and temporary file is renamed to initial file name.
+	 * 
+	 * @param in input file
+	 * @param tmp temporary file created for sorting
+	 * @param resultInTemp true if sorted data is in temporary file
+	 */
+	private static void cleanup(File in, File tmp, boolean resultInTemp) {
+		if (resultInTemp) {
+			in.delete();
+			tmp.renameTo(in);
+		} else {
+			tmp.delete();
+		}
+	}
+
+	/**
+	 * Splits input file into blocks and creates {@link InMemorySortTask} for each block.
+	 * Tasks are added to provided {@link TaskGraph} and will be executed asynchronously.
+	 * 
+	 * @param graph {@link TaskGraph} that will execute tasks
+	 * @param in input file
+	 * @param out created temporary file
+	 * @param count total count of values in the input file
+	 * @param blockSize number of values fitting in block
+	 * @param blocksCount number of blocks
+	 * @param detectOrder true if ordered blocks must be detected and left unsorted 
+	 * @param context sort context
+	 * @return list of created in-memory sort tasks
+	 */
+	private static List<InMemorySortTask> initialSort(TaskGraph graph, File in, File out, 
+			long count, int blockSize, int blocksCount, boolean detectOrder, SortContext context) {
+		List<InMemorySortTask> result = new ArrayList<InMemorySortTask>(blocksCount);
+		for (int i = 0; i < blocksCount; i++) {
+			long c = blockSize;
+			// if it is the last block it may be shorter
+			if (i == blocksCount - 1 && count % blockSize != 0) {
+				c = count % blockSize;
+			}
+			result.add(graph.add(new InMemorySortTask(in, out, (long) i * blockSize, (int) c, detectOrder, context)));
+		}
+		return result;
+	}
+	
+	/**
+	 * Splits input file into segments and creates {@link ReplacementSelectionTask} for each segment.
+	 * Each segment is at least as long as selection heap, and there are no more segments than threads.
+	 * Tasks are added to provided {@link TaskGraph} and will be executed asynchronously.
+	 * 
+	 * @param graph {@link TaskGraph} that will execute tasks
+	 * @param in input file
+	 * @param out created temporary file
+	 * @param count total count of values in the input file
+	 * @param context sort context
+	 * @return list of created replacement selection tasks
+	 */
+	private static List<ReplacementSelectionTask> replacementSelection(TaskGraph graph, File in, File out, 
+			long count, SortContext context) {
+		int heapSize = context.getOptions().getSelectionHeapSize();
+		long segmentsCount = Math.min(context.getOptions().getThreadCount(), (count + heapSize - 1) / heapSize);
+		List<ReplacementSelectionTask> result = new ArrayList<ReplacementSelectionTask>((int) segmentsCount);
+		for (long i = 0; i < segmentsCount; i++) {
+			long startNum = count * i / segmentsCount;
+			long endNum = count * (i + 1) / segmentsCount;
+			result.add(graph.add(new ReplacementSelectionTask(in, out, startNum, endNum - startNum, heapSize, context)));
+		}
+		return result;
+	}
+
+	/**
+	 * Adds tasks merging blocks sorted by given in-memory sort tasks to the graph, see {@link #mergeAll}.
+	 * 
+	 * @param graph {@link TaskGraph} that will execute tasks
+	 * @param sortTasks tasks sorting blocks, one task per block
+	 * @param in input file
+	 * @param out created temporary file containing sorted blocks
+	 * @param count total count of values in the input file
+	 * @param blockSize number of values in a block
+	 * @param context sort context
+	 * @return number of merge passes
+	 */
+	private static int mergeBlocks(TaskGraph graph, List<InMemorySortTask> sortTasks, File in, File out, 
+			long count, int blockSize, SortContext context) {
+		int blocksCount = sortTasks.size();
+		// boundaries of sorted runs, run i occupies [runBounds[i], runBounds[i + 1])
+		long[] runBounds = new long[blocksCount + 1];
+		int[] runTaskBounds = new int[blocksCount + 1];
+		for (int i = 1; i < runBounds.length; i++) {
+			runBounds[i] = Math.min((long) i * blockSize, count);
+			runTaskBounds[i] = i;
+		}
+		return mergeAll(graph, sortTasks, runTaskBounds, in, out, runBounds, false, context);
+	}
+	
+	/**
+	 * Sorts given file by partitioning it to buckets, see {@link SortMethod}.
+	 * Sorted buckets are written back to the input file, so it's never recreated.
+	 * 
+	 * @param in input file
+	 * @param options sort options
+	 * @throws IOException
+	 * @throws ExecutionException 
+	 * @throws InterruptedException 
+	 */
+	private static void partitionSort(File in, SortOptions options) 
+			throws IOException, ExecutionException, InterruptedException {
+		KeyType keyType = options.getKeyType();
+		long count = in.length() / options.getRecordFormat().getSize();
+		if (count == 0) {
+			return;
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(options.getThreadCount());
+		try {
+			SortContext context = new SortContext(options);
+			try {
+				partition(executor, in, count, keyType.getMinKey(), keyType.getMaxKey(), in, 0, 0, context);
+			} finally {
+				context.close();
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+	
+	/**
+	 * Sorts {@code count} values from the beginning of {@code in} file 
+	 * and writes them to {@code out} file starting at {@code outStartNum} value.
+	 * Values fitting to a block are sorted by a single task. 
+	 * Otherwise blocks are scattered in parallel to bucket files of key ranges, 
+	 * which are split by sampled splitters or by prefixes of keys as chosen by {@link SortMethod},
+	 * then buckets fitting to a block are sorted in parallel and written to their places, 
+	 * buckets of a single key are just copied, and larger buckets are partitioned recursively.
+	 * Buckets of too deep partitioning are sorted by merge.
+	 * 
+	 * @param executor executor of sorting threads
+	 * @param in input file
+	 * @param count number of values to sort
+	 * @param minKey the smallest key of sorted values or a smaller one
+	 * @param maxKey the largest key of sorted values or a larger one
+	 * @param out output file, input file is overwritten only when all of it is partitioned
+	 * @param outStartNum index of value in output file to write sorted values from
+	 * @param depth number of partitionings of input file, 0 for file being sorted
+	 * @param context sort context
+	 * @throws IOException
+	 * @throws ExecutionException 
+	 * @throws InterruptedException 
+	 */
+	private static void partition(ExecutorService executor, File in, long count, long minKey, long maxKey, 
+			File out, long outStartNum, int depth, SortContext context) 
+			throws IOException, ExecutionException, InterruptedException {
+		int runSize = context.getOptions().getRunSize();
+		TaskGraph graph = new TaskGraph(executor, context.getIOExecutor());
+		if (count <= runSize || minKey == maxKey) {
+			graph.add(new BucketSortTask(in, count, minKey == maxKey, out, outStartNum, context));
+			await(graph);
+			return;
+		}
+		if (depth == MAX_PARTITION_DEPTH) {
+			mergeBucket(graph, in, count, out, outStartNum, context);
+			return;
+		}
+		
+		// buckets are planned to fill half of a block, so sampling errors rarely make them exceed it
+		int plannedCount = (int) Math.min(MAX_BUCKETS, (2 * count + runSize - 1) / runSize);
+		long[] splitters = null;
+		int shift = 0;
+		int bucketsCount;
+		if (context.getOptions().getSortMethod() == SortMethod.RADIX_PARTITION) {
+			shift = getRadixShift(minKey, maxKey, plannedCount);
+			bucketsCount = (int) ((maxKey - minKey) >>> shift) + 1;
+		} else {
+			splitters = getSplitters(in, count, plannedCount, context);
+			bucketsCount = splitters.length + 1;
+		}
+		File[] buckets = new File[bucketsCount];
+		try {
+			for (int b = 0; b < bucketsCount; b++) {
+				buckets[b] = IOUtils.createTempFile();
+			}
+			// bucket sizes grow as blocks reserve room for their slices
+			AtomicLongArray sizes = new AtomicLongArray(bucketsCount);
+			int blocksCount = (int) ((count + runSize - 1) / runSize);
+			List<ScatterTask> scatterTasks = new ArrayList<ScatterTask>(blocksCount);
+			for (int i = 0; i < blocksCount; i++) {
+				long startNum = (long) i * runSize;
+				int c = (int) Math.min(runSize, count - startNum);
+				scatterTasks.add(graph.add(new ScatterTask(in, startNum, c, splitters, minKey, shift, buckets, sizes, 
+						context)));
+			}
+			await(graph);
+			
+			long[] bucketMin = new long[bucketsCount];
+			long[] bucketMax = new long[bucketsCount];
+			Arrays.fill(bucketMin, Long.MAX_VALUE);
+			Arrays.fill(bucketMax, Long.MIN_VALUE);
+			for (ScatterTask task : scatterTasks) {
+				for (int b = 0; b < bucketsCount; b++) {
+					bucketMin[b] = Math.min(bucketMin[b], task.minKeys[b]);
+					bucketMax[b] = Math.max(bucketMax[b], task.maxKeys[b]);
+				}
+			}
+			
+			// buckets are concatenated in order of their key ranges
+			long[] bucketStartNums = new long[bucketsCount];
+			List<Integer> largeBuckets = new ArrayList<Integer>();
+			long startNum = outStartNum;
+			for (int b = 0; b < bucketsCount; b++) {
+				long size = sizes.get(b);
+				bucketStartNums[b] = startNum;
+				startNum += size;
+				if (size == 0) {
+					continue;
+				}
+				if (size <= runSize || bucketMin[b] == bucketMax[b]) {
+					graph.add(new BucketSortTask(buckets[b], size, bucketMin[b] == bucketMax[b], out, 
+							bucketStartNums[b], context));
+				} else {
+					largeBuckets.add(b);
+				}
+			}
+			await(graph);
+			
+			// only the bucket being partitioned stays open during recursion, so open buckets are bounded 
+			// by the buckets of a single partitioning plus one per level
+			for (int b = 0; b < bucketsCount; b++) {
+				if (largeBuckets.contains(b)) {
+					context.close(buckets[b]);
+				} else {
+					deleteBucket(buckets[b], context);
+				}
+			}
+			for (int b : largeBuckets) {
+				partition(executor, buckets[b], sizes.get(b), bucketMin[b], bucketMax[b], out, bucketStartNums[b], 
+						depth + 1, context);
+				deleteBucket(buckets[b], context);
+			}
+		} finally {
+			for (File bucket : buckets) {
+				if (bucket != null) {
+					deleteBucket(bucket, context);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Chooses splitters of buckets from a stratified sample of keys of given file.
+	 * A key is read from a random position in each of equal strides of the file, 
+	 * so reads go in file order and sorted or clustered files are sampled evenly.
+	 * Splitters are keys of evenly spaced ranks of the sorted sample, and each one is the largest key of its bucket.
+	 * A key chosen more than once is a frequent one, so it's given a bucket of its own, which is copied without sorting.
+	 * 
+	 * @param in input file
+	 * @param count number of values in input file
+	 * @param bucketsCount planned number of buckets
+	 * @param context sort context
+	 * @return ascending distinct splitters, bucket i holds keys greater than splitter {@code i - 1} 
+	 * 		and not greater than splitter {@code i}, the last bucket holds keys greater than the last splitter
+	 * @throws IOException
+	 */
+	private static long[] getSplitters(File in, long count, int bucketsCount, SortContext context) throws IOException {
+		RecordFormat format = context.getOptions().getRecordFormat();
+		FileChannel channel = context.getChannel(in);
+		ByteBuffer buffer = ByteBuffer.allocate(format.getKeyType().getSize());
+		Random random = new Random();
+		int sampleSize = (int) Math.min(count, (long) bucketsCount * OVERSAMPLING);
+		long[] sample = new long[sampleSize];
+		for (int i = 0; i < sampleSize; i++) {
+			long from = count * i / sampleSize;
+			long to = count * (i + 1) / sampleSize;
+			sample[i] = format.readKey(channel, buffer, from + (long) (random.nextDouble() * (to - from)));
+		}
+		Arrays.sort(sample);
+		
+		long[] splitters = new long[2 * bucketsCount];
+		int n = 0;
+		for (int i = 1; i < bucketsCount; i++) {
+			long key = sample[(int) ((long) sampleSize * i / bucketsCount)];
+			if (n > 0 && splitters[n - 1] == key) {
+				// splitter before a frequent key makes its bucket hold the key only
+				if (key != Long.MIN_VALUE && (n == 1 || splitters[n - 2] < key - 1)) {
+					splitters[n - 1] = key - 1;
+					splitters[n++] = key;
+				}
+			} else {
+				splitters[n++] = key;
+			}
+		}
+		return Arrays.copyOf(splitters, n);
+	}
+	
+	/**
+	 * Chooses shift of keys giving prefixes of radix partitioning of given key range.
+	 * Prefixes are at least {@link #MIN_RADIX_BITS} bits, or more when more buckets are planned,
+	 * up to {@link #MAX_BUCKETS} buckets.
+	 * 
+	 * @param minKey the smallest key of the range
+	 * @param maxKey the largest key of the range
+	 * @param plannedCount planned number of buckets
+	 * @return number of low bits of a key not defining its bucket
+	 */
+	private static int getRadixShift(long minKey, long maxKey, int plannedCount) {
+		int bits = Math.max(MIN_RADIX_BITS, 32 - Integer.numberOfLeadingZeros(plannedCount - 1));
+		bits = Math.min(bits, Integer.numberOfTrailingZeros(MAX_BUCKETS));
+		// width of the range as unsigned number, so the whole range of longs takes 64 bits
+		int width = 64 - Long.numberOfLeadingZeros(maxKey - minKey);
+		return Math.max(0, width - bits);
+	}
+	
+	/**
+	 * Sorts a bucket by merge sort of its blocks and copies it to its place in output file.
+	 * 
+	 * @param graph empty {@link TaskGraph} that will execute tasks
+	 * @param in bucket file
+	 * @param count number of values in the bucket
+	 * @param out output file
+	 * @param outStartNum index of value in output file to write sorted values from
+	 * @param context sort context
+	 * @throws IOException
+	 * @throws ExecutionException 
+	 * @throws InterruptedException 
+	 */
+	private static void mergeBucket(TaskGraph graph, File in, long count, File out, long outStartNum, 
+			SortContext context) throws IOException, ExecutionException, InterruptedException {
+		SortOptions options = context.getOptions();
+		int runSize = options.getRunSize();
+		int blocksCount = (int) ((count + runSize - 1) / runSize);
+		int size = options.getRecordFormat().getSize();
+		File tmp = IOUtils.createTempFile(count * size);
+		try {
+			List<InMemorySortTask> sortTasks = initialSort(graph, in, tmp, count, runSize, blocksCount, false, context);
+			int passesCount = mergeBlocks(graph, sortTasks, in, tmp, count, runSize, context);
+			await(graph);
+			File sorted = passesCount % 2 == 0 ? tmp : in;
+			IOUtils.copyBlock(context.getChannel(sorted), 0, context.getChannel(out), outStartNum, count, size, 
+					options.getMappedWindowSize());
+		} finally {
+			deleteBucket(tmp, context);
+		}
+	}
+	
+	/**
+	 * Closes and deletes a temporary file of partitioning.
+	 * 
+	 * @param bucket file to delete
+	 * @param context sort context
+	 * @throws IOException
+	 */
+	private static void deleteBucket(File bucket, SortContext context) throws IOException {
+		try {
+			context.close(bucket);
+		} finally {
+			bucket.delete();
+		}
+	}
+	
+	/**
+	 * Chooses the smallest fan-in that merges given number of runs 
+	 * in the same number of passes as {@code maxFanIn} would.
+	 * This keeps merge groups balanced and reduces memory used for buffers.
+	 * 
+	 * @param runsCount number of runs to merge
+	 * @param maxFanIn max number of runs to merge at once
+	 * @return fan-in to use
+	 */
+	static int getBalancedFanIn(int runsCount, int maxFanIn) {
+		int passes = 0;
+		for (long runs = runsCount; runs > 1; runs = (runs + maxFanIn - 1) / maxFanIn) {
+			passes++;
+		}
+		int fanIn = 2;
+		while (fanIn < maxFanIn && pow(fanIn, passes) < runsCount) {
+			fanIn++;
+		}
+		return fanIn;
+	}
+	
+	private static long pow(long base, int exp) {
+		long result = 1;
+		for (int i = 0; i < exp && result < Integer.MAX_VALUE; i++) {
+			result *= base;
+		}
+		return result;
+	}
+	
+	/**
+	 * Creates {@link MergeTask} tasks and adds them to the provided {@link TaskGraph}. 
+	 * Merge is performed in passes.
+	 * On each pass remaining sorted runs are split into groups of up to {@code mergeFanIn} consequent runs, 
+	 * and each group is merged into one sorted run. 
+	 * So each merge pass generally consists of multiple {@link MergeTask}s. 
+	 * When there are fewer groups than threads on a pass (which is always true for the last pass),
+	 * merge of each group is split into slices of merged output using {@link MergePath},
+	 * and each slice is merged by a separate {@link MergeTask}, so that all threads are busy.
+	 * If the last group on current pass consists of a single run, this run is simply copied to other file 
+	 * to ensure that all data is in the same file before the next pass.
+	 * On each pass already sorted runs are in one file and result is written to the other file.
+	 * On next pass in and out files are swapped.
+	 * Tasks created by this method are executed asynchronously. 
+	 * Each task depends on previous pass tasks that produce its input runs
+	 * and is submitted to the executor only when these tasks are completed.
+	 * Method returns number of merge passes, after completion of all tasks the file will be sorted.
+	 * The last pass may be left to the caller, then passes stop when remaining runs form a single group,
+	 * whose boundaries are given by {@link #getNextRunBounds(long[], int)} applied for each pass.
+	 * 
+	 * @param graph {@link TaskGraph} that will execute tasks
+	 * @param runTasks tasks producing initial runs
+	 * @param runTaskBounds tasks producing initial run i are runTasks[runTaskBounds[i], runTaskBounds[i + 1])
+	 * @param in input file
+	 * @param out created temporary file containing initial runs
+	 * @param initialRunBounds boundaries of initial runs
+	 * @param skipLastPass true if the caller merges the last group of runs itself
+	 * @param context sort context
+	 * @return number of merge passes
+	 */
+	private static int mergeAll(TaskGraph graph, List<? extends TaskGraph.Task> runTasks, int[] runTaskBounds, 
+			File in, File out, long[] initialRunBounds, boolean skipLastPass, SortContext context) {
+		int threadCount = context.getOptions().getThreadCount();
+		File inFile = out;
+		File outFile = in;
+		long[] runBounds = initialRunBounds;
+		int fanIn = getBalancedFanIn(runBounds.length - 1, context.getOptions().getEffectiveMergeFanIn());
+		
+		int passesCount = 0;
+		List<? extends TaskGraph.Task> prevPassTasks = runTasks;
+		// tasks producing run i are prevPassTasks[prevTaskBounds[i], prevTaskBounds[i + 1])
+		int[] prevTaskBounds = runTaskBounds;
+		
+		while (runBounds.length - 1 > (skipLastPass ? fanIn : 1)) {
+			int runsCount = runBounds.length - 1;
+			int groupsCount = (runsCount + fanIn - 1) / fanIn;
+			int slicesPerGroup = (threadCount + groupsCount - 1) / groupsCount;
+			// starting a new merge pass
+			List<TaskGraph.Task> currentPassTasks = new ArrayList<TaskGraph.Task>(groupsCount * slicesPerGroup);
+			int[] taskBounds = new int[groupsCount + 1];
+			// processing remaining runs in groups
+			for (int g = 0; g < groupsCount; g++) {
+				int from = g * fanIn;
+				int to = Math.min(from + fanIn, runsCount);
+				long[] groupBounds = Arrays.copyOfRange(runBounds, from, to + 1);
+				long groupSize = groupBounds[groupBounds.length - 1] - groupBounds[0];
+				List<? extends TaskGraph.Task> deps = prevPassTasks.subList(prevTaskBounds[from], prevTaskBounds[to]);
+				if (to - from == 1) {
+					// this run doesn't have a pair, so it's just copied
+					currentPassTasks.add(graph.add(new CopyBlockTask(inFile, outFile, groupBounds[0], groupSize, context), deps));
+				} else {
+					long slices = Math.max(1, Math.min(slicesPerGroup, groupSize / MIN_MERGE_SLICE_SIZE));
+					for (long i = 0; i < slices; i++) {
+						long fromRank = groupSize * i / slices;
+						long toRank = groupSize * (i + 1) / slices;
+						currentPassTasks.add(graph.add(new MergeTask(inFile, outFile, groupBounds, fromRank, toRank, context), deps));
+					}
+				}
+				taskBounds[g + 1] = currentPassTasks.size();
+			}
+			
+			runBounds = getNextRunBounds(runBounds, fanIn);
+			
+			// swapping in and out files for the next pass 
+			File t = inFile;
+			inFile = outFile;
+			outFile = t;
+			prevPassTasks = currentPassTasks;
+			prevTaskBounds = taskBounds;
+			passesCount++;
+		}
+		return passesCount;
+	}
+	
+	/**
+	 * Returns boundaries of runs produced by a merge pass, 
+	 * which merges groups of up to {@code fanIn} consequent runs.
+	 * 
+	 * @param runBounds boundaries of merged runs
+	 * @param fanIn max number of runs in a group
+	 * @return boundaries of merged groups
+	 */
+	private static long[] getNextRunBounds(long[] runBounds, int fanIn) {
+		int runsCount = runBounds.length - 1;
+		int groupsCount = (runsCount + fanIn - 1) / fanIn;
+		long[] nextRunBounds = new long[groupsCount + 1];
+		nextRunBounds[0] = runBounds[0];
+		for (int g = 0; g < groupsCount; g++) {
+			nextRunBounds[g + 1] = runBounds[Math.min((g + 1) * fanIn, runsCount)];
+		}
+		return nextRunBounds;
+	}
+	
+	/**
+	 * Order of values in a block of input file.
+	 * 
+	 * @author IVotinov
+	 */
+	private enum BlockOrder {
+		/**
+		 * Values are not decreasing, block is left in input file.
+		 */
+		ASCENDING,
+		/**
+		 * Values are not increasing, block is left in input file.
+		 */
+		DESCENDING,
+		/**
+		 * Values are not ordered, sorted block is written to output file.
+		 */
+		UNORDERED
+	}
+	
+	/**
+	 * Asynchronous task for in-memory sort of part of input file.
+	 * If order detection is on, block which is already ascending or descending is not sorted and not written,
+	 * its order and first and last values are available after task completion.
+	 * 
+	 * @author IVotinov
+	 */
+	private static class InMemorySortTask extends TaskGraph.Task {
+		private File in;
+		private File out;
+		private long startNum;
+		private int count;
+		private boolean detectOrder;
+		private SortContext context;
+		private BlockOrder order = BlockOrder.UNORDERED;
+		private long first;
+		private long last;
+		
+		/**
+		 * Constructs new InMemorySortTask.
+		 * 
+		 * @param in input file
+		 * @param out output file
+		 * @param startNum index of value to start from
+		 * @param count count of values to sort
+		 * @param detectOrder true if ordered block must be detected and left unsorted 
+		 * @param context sort context
+		 */
+		public InMemorySortTask(File in, File out, long startNum, int count, boolean detectOrder, SortContext context) {
+			this.in = in;
+			this.out = out;
+			this.startNum = startNum;
+			this.count = count;
+			this.detectOrder = detectOrder;
+			this.context = context;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		protected void execute() throws IOException, InterruptedException {
+			SortKernel kernel = context.getOptions().getSortKernel();
+			RecordFormat format = context.getOptions().getRecordFormat();
+			BufferPool pool = context.getBufferPool();
+			// block is read to a buffer and sorted in arrays, kernel may need scratch arrays
+			boolean withScratch = kernel.getExtraMemoryFactor() > 0;
+			BufferPool.Lease lease = format.acquireBlock(pool, count, withScratch);
+			try {
+				BlockBuffer block = format.newBlock(lease, withScratch);
+				block.read(context.getChannel(in), startNum, count);
+				if (detectOrder) {
+					order = getOrder(block, count);
+				}
+				if (order == BlockOrder.UNORDERED) {
+					sortInMemory(block, context.getChannel(out), startNum, count, kernel);
+				}
+				first = block.getKey(0);
+				last = block.getKey(count - 1);
+			} finally {
+				pool.release(lease);
+			}
+		}
+	}
+	
+	/**
+	 * Detects order of first {@code length} values in given block.
+	 * Equal values are considered ascending.
+	 * Checks stop at the first pair out of order, so order is detected in about one pass.
+	 * 
+	 * @param block block to check
+	 * @param length number of values to check
+	 * @return order of values
+	 */
+	private static BlockOrder getOrder(BlockBuffer block, int length) {
+		if (block.isAscending(length)) {
+			return BlockOrder.ASCENDING;
+		}
+		return block.isDescending(length) ? BlockOrder.DESCENDING : BlockOrder.UNORDERED;
+	}
+	
+	/**
+	 * Asynchronous task sorting a block read from a stream and spilling it to a run file.
+	 * The block is read to memory leased by the reading thread, and the task releases it.
+	 * 
+	 * @author IVotinov
+	 */
+	private static class SpilledBlockSortTask extends TaskGraph.Task {
+		private BlockBuffer block;
+		private BufferPool.Lease lease;
+		private File out;
+		private long startNum;
+		private int count;
+		private SortContext context;
+		
+		/**
+		 * Constructs new SpilledBlockSortTask.
+		 * 
+		 * @param block block holding read values
+		 * @param lease lease holding memory of the block
+		 * @param out run file
+		 * @param startNum index of value in run file to write sorted block to
+		 * @param count number of values in the block
+		 * @param context sort context
+		 */
+		public SpilledBlockSortTask(BlockBuffer block, BufferPool.Lease lease, File out, long startNum, int count, 
+				SortContext context) {
+			this.block = block;
+			this.lease = lease;
+			this.out = out;
+			this.startNum = startNum;
+			this.count = count;
+			this.context = context;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		protected void execute() throws IOException {
+			try {
+				sortInMemory(block, context.getChannel(out), startNum, count, context.getOptions().getSortKernel());
+			} finally {
+				context.getBufferPool().release(lease);
+			}
+		}
+	}
+	
+	/**
+	 * Asynchronous task generating runs from a segment of input file using replacement selection.
+	 * Values are read one by one to a heap of fixed size, 
+	 * the smallest value of the heap that is not less than the last written value is written to current run
+	 * and its place is taken by the next input value.
+	 * Values less than the last written one are left for the next run.
+	 * So runs are twice the heap size on average on random input, 
+	 * and a single run covers the whole segment on sorted input.
+	 * Runs are written to the same position of output file, their boundaries are available after task completion.
+	 * 
+	 * @author IVotinov
+	 */
+	private static class ReplacementSelectionTask extends TaskGraph.Task {
+		private File in;
+		private File out;
+		private long startNum;
+		private long count;
+		private int heapSize;
+		private SortContext context;
+		private List<Long> runBounds = new ArrayList<Long>();
+		
+		/**
+		 * Constructs new ReplacementSelectionTask.
+		 * 
+		 * @param in input file
+		 * @param out output file
+		 * @param startNum index of value to start from
+		 * @param count count of values in the segment
+		 * @param heapSize max number of values in the heap
+		 * @param context sort context
+		 */
+		public ReplacementSelectionTask(File in, File out, long startNum, long count, int heapSize, SortContext context) {
+			this.in = in;
+			this.out = out;
+			this.startNum = startNum;
+			this.count = count;
+			this.heapSize = heapSize;
+			this.context = context;
+		}
+		
+		/**
+		 * Returns boundaries of generated runs, 
+		 * run i occupies [bounds[i], bounds[i + 1]), the last boundary is the end of segment.
+		 * 
+		 * @return boundaries of runs
+		 */
+		public List<Long> getRunBounds() {
+			return runBounds;
+		}
+		
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		protected void execute() throws IOException, InterruptedException {
+			IOBackend backend = context.getOptions().getIOBackend();
+			RecordFormat format = context.getOptions().getRecordFormat();
+			int bufferSize = context.getOptions().getIOBufferSize();
+			BufferPool.Lease lease = acquireIOBuffers(context, 2);
+			try {
+				KeyReader ir = backend.openKeyReader(format, context.getChannel(in), startNum, count, bufferSize, 
+						getIOBuffers(context, lease, 0), context.getAsyncIOExecutor());
+				try {
+					KeyWriter iw = backend.openKeyWriter(format, context.getChannel(out), startNum, count, bufferSize, 
+							getIOBuffers(context, lease, 1), context.getAsyncIOExecutor());
+					try {
+						selectRuns(ir, iw);
+					} finally {
+						iw.close();
+					}
+				} finally {
+					ir.close();
+				}
+			} finally {
+				context.getBufferPool().release(lease);
+			}
+		}
+		
+		/**
+		 * Generates runs from keys of given reader.
+		 * Heap elements are pairs of run number and key kept in parallel arrays,
+		 * and heap orders them by run first.
+		 * 
+		 * @param ir input keys
+		 * @param iw output for runs
+		 * @throws IOException
+		 */
+		private void selectRuns(KeyReader ir, KeyWriter iw) throws IOException {
+			int capacity = (int) Math.min(heapSize, count);
+			long[] keys = new long[capacity];
+			int[] runs = new int[capacity];
+			int size = 0;
+			while (size < capacity && ir.hasNext()) {
+				keys[size] = ir.nextKey();
+				siftUp(keys, runs, size);
+				size++;
+			}
+			long position = startNum;
+			int currentRun = 0;
+			runBounds.add(position);
+			while (size > 0) {
+				long key = keys[0];
+				int run = runs[0];
+				if (run != currentRun) {
+					runBounds.add(position);
+					currentRun = run;
+				}
+				iw.writeKey(key);
+				position++;
+				if (ir.hasNext()) {
+					long next = ir.nextKey();
+					keys[0] = next;
+					runs[0] = next >= key ? run : run + 1;
+				} else {
+					size--;
+					keys[0] = keys[size];
+					runs[0] = runs[size];
+				}
+				siftDown(keys, runs, size);
+			}
+			runBounds.add(position);
+		}
+	}
+	
+	/**
+	 * Asynchronous task selecting the first values of a segment of input file in sort order.
+	 * Segment is scanned once, selected values are kept in memory until the task is completed.
+	 * 
+	 * @author IVotinov
+	 */
+	private static class SelectionTask extends TaskGraph.Task {
+		private File in;
+		private long startNum;
+		private long count;
+		private int k;
+		private SortContext context;
+		private Selection selection;
+		
+		/**
+		 * Constructs new SelectionTask.
+		 * 
+		 * @param in input file
+		 * @param startNum index of value to start from
+		 * @param count count of values in the segment
+		 * @param k number of values to select
+		 * @param context sort context
+		 */
+		public SelectionTask(File in, long startNum, long count, int k, SortContext context) {
+			this.in = in;
+			this.startNum = startNum;
+			this.count = count;
+			this.k = k;
+			this.context = context;
+		}
+		
+		/**
+		 * Returns values selected from the segment, available after task completion.
+		 * 
+		 * @return selected values
+		 */
+		public Selection getSelection() {
+			return selection;
+		}
+		
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		protected void execute() throws IOException, InterruptedException {
+			IOBackend backend = context.getOptions().getIOBackend();
+			RecordFormat format = context.getOptions().getRecordFormat();
+			int bufferSize = context.getOptions().getIOBufferSize();
+			Selection s = new Selection(format, k, count, context.getOptions().getSortKernel());
+			BufferPool.Lease lease = acquireIOBuffers(context, 1);
+			try {
+				KeyReader ir = backend.openKeyReader(format, context.getChannel(in), startNum, count, bufferSize, 
+						getIOBuffers(context, lease, 0), context.getAsyncIOExecutor());
+				try {
+					while (ir.hasNext()) {
+						s.add(ir);
+					}
+				} finally {
+					ir.close();
+				}
+			} finally {
+				context.getBufferPool().release(lease);
+			}
+			selection = s;
+		}
+	}
+	
+	/**
+	 * Asynchronous task scanning a segment of input file for a pass of {@link ParallelSorter#quantiles}.
+	 * Segment is read in blocks as by {@link InMemorySortTask}.
+	 * For each unresolved quantile it counts keys below and inside the window of the pass, 
+	 * sketches keys of the window and collects them up to a limit.
+	 * Windows of all quantiles are the whole key range in the first pass, so equal windows share a sketch.
+	 * 
+	 * @author IVotinov
+	 */
+	private static class QuantileTask extends TaskGraph.Task {
+		private File in;
+		private long startNum;
+		private long count;
+		private long[] windowFrom;
+		private long[] windowTo;
+		private boolean[] resolved;
+		private int collectLimit;
+		private SortContext context;
+		private QuantileSketch[] sketches;
+		private long[] belowWindow;
+		private long[] inWindow;
+		private long[][] collected;
+		private int[] collectedCount;
+		
+		/**
+		 * Constructs new QuantileTask.
+		 * Arrays of windows are indexed by quantile and are not changed during the pass.
+		 * 
+		 * @param in input file
+		 * @param startNum index of value to start from
+		 * @param count count of values in the segment
+		 * @param windowFrom first keys of windows
+		 * @param windowTo last keys of windows
+		 * @param resolved true for quantiles which are already found and skipped
+		 * @param collectLimit max number of keys collected for each window
+		 * @param context sort context
+		 */
+		public QuantileTask(File in, long startNum, long count, long[] windowFrom, long[] windowTo, 
+				boolean[] resolved, int collectLimit, SortContext context) {
+			this.in = in;
+			this.startNum = startNum;
+			this.count = count;
+			this.windowFrom = windowFrom;
+			this.windowTo = windowTo;
+			this.resolved = resolved;
+			this.collectLimit = collectLimit;
+			this.context = context;
+		}
+		
+		/**
+		 * Returns sketch of keys of the window of given quantile.
+		 * 
+		 * @param i index of quantile
+		 * @return sketch
+		 */
+		public QuantileSketch getSketch(int i) {
+			return sketches[i];
+		}
+		
+		/**
+		 * Returns numbers of keys below windows of quantiles.
+		 * 
+		 * @return counts by quantile
+		 */
+		public long[] getBelowWindow() {
+			return belowWindow;
+		}
+		
+		/**
+		 * Returns numbers of keys inside windows of quantiles.
+		 * 
+		 * @return counts by quantile
+		 */
+		public long[] getInWindow() {
+			return inWindow;
+		}
+		
+		/**
+		 * Returns collected keys of windows of quantiles, all keys of a window if their count is within the limit.
+		 * 
+		 * @return collected keys by quantile
+		 */
+		public long[][] getCollected() {
+			return collected;
+		}
+		
+		/**
+		 * Returns numbers of collected keys of windows of quantiles.
+		 * 
+		 * @return counts by quantile
+		 */
+		public int[] getCollectedCount() {
+			return collectedCount;
+		}
+		
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		protected void execute() throws IOException, InterruptedException {
+			int n = resolved.length;
+			sketches = new QuantileSketch[n];
+			belowWindow = new long[n];
+			inWindow = new long[n];
+			collected = new long[n][];
+			collectedCount = new int[n];
+			// active quantiles, the first of quantiles having the same window owns the sketch and counts keys
+			int[] active = new int[n];
+			int[] owners = new int[n];
+			int activeCount = 0;
+			for (int i = 0; i < n; i++) {
+				if (resolved[i]) {
+					continue;
+				}
+				int owner = i;
+				for (int a = 0; a < activeCount && owner == i; a++) {
+					int j = active[a];
+					if (windowFrom[j] == windowFrom[i] && windowTo[j] == windowTo[i]) {
+						owner = j;
+					}
+				}
+				owners[i] = owner;
+				if (owner == i) {
+					active[activeCount++] = i;
+					sketches[i] = new QuantileSketch(SKETCH_SIZE, new Random());
+					collected[i] = new long[Math.min(collectLimit, IOUtils.BUFFER_SIZE)];
+				}
+			}
+			
+			RecordFormat format = context.getOptions().getRecordFormat();
+			BufferPool pool = context.getBufferPool();
+			int blockSize = (int) Math.min(context.getOptions().getRunSize(), count);
+			BufferPool.Lease lease = format.acquireBlock(pool, blockSize, false);
+			try {
+				BlockBuffer block = format.newBlock(lease, false);
+				FileChannel channel = context.getChannel(in);
+				for (long position = 0; position < count; position += blockSize) {
+					int length = (int) Math.min(blockSize, count - position);
+					block.read(channel, startNum + position, length);
+					for (int v = 0; v < length; v++) {
+						long key = block.getKey(v);
+						for (int a = 0; a < activeCount; a++) {
+							int i = active[a];
+							if (key < windowFrom[i]) {
+								belowWindow[i]++;
+							} else if (key <= windowTo[i]) {
+								inWindow[i]++;
+								sketches[i].add(key);
+								collect(i, key);
+							}
+						}
+					}
+				}
+			} finally {
+				pool.release(lease);
+			}
+			// quantiles sharing a window share its results
+			for (int i = 0; i < n; i++) {
+				if (!resolved[i] && owners[i] != i) {
+					int owner = owners[i];
+					sketches[i] = sketches[owner];
+					belowWindow[i] = belowWindow[owner];
+					inWindow[i] = inWindow[owner];
+					collected[i] = collected[owner];
+					collectedCount[i] = collectedCount[owner];
+				}
+			}
+		}
+		
+		/**
+		 * Collects key of window of given quantile unless the limit is reached.
+		 * 
+		 * @param i index of quantile
+		 * @param key key to collect
+		 */
+		private void collect(int i, long key) {
+			int c = collectedCount[i];
+			if (c == collectLimit) {
+				return;
+			}
+			if (c == collected[i].length) {
+				collected[i] = Arrays.copyOf(collected[i], (int) Math.min(2L * c, collectLimit));
+			}
+			collected[i][c] = key;
+			collectedCount[i] = c + 1;
+		}
+	}
+	
 	/**
-	 * Sorts given file in parallel using given number of threads.
-	 * Input file size MUST be a multiple of 4.
-	 * NOTE: call to this method MAY recreate {@code in} file. 
+	 * Moves element at given index of min-heap up to its place.
 	 * 
-	 * @param in input file
-	 * @param threadCount number of threads
-	 * @throws IOException
-	 * @throws ExecutionException 
-	 * @throws InterruptedException 
+	 * @param keys keys of heap elements
+	 * @param runs run numbers of heap elements
+	 * @param index index of moved element
 	 */
-	public static void sort(File in, int threadCount) throws IOException, ExecutionException, InterruptedException {
-		ExecutorService executor = Executors.newFixedThreadPool(threadCount);
-		try{
-			// creating a temporary file to store intermediate results
-			// file size will be the same as provided input file
-			File out = IOUtils.createTempFile();
-	
-			long count = in.length() / IOUtils.INT_SIZE;
-			int blockSize = IOUtils.BUFFER_SIZE / IOUtils.INT_SIZE;
-			int blocksCount = (int) (count / blockSize + (count % blockSize != 0 ? 1 : 0));
-			
-			// submit in-memory sort tasks to the executor
-			// returned list of Futures is used to keep track of tasks dependencies
-			List<Future<Integer>> sortTasks = initialSort(executor, in, out, count, blockSize, blocksCount);
-			
-			// submit merge tasks to the executor
-			Future<Integer> lastTask = mergeAll(executor, sortTasks, in, out, count, blockSize, blocksCount);
-			
-			// waiting for all tasks completion
-			// passesCount will contain number of merge passes performed
-			int passesCount = 0;
-			try {
-				passesCount = lastTask.get();
-			} catch (ExecutionException e) {
-				handleException(e);
+	private static void siftUp(long[] keys, int[] runs, int index) {
+		long key = keys[index];
+		int run = runs[index];
+		while (index > 0) {
+			int parent = (index - 1) >> 1;
+			if (!precedes(run, key, runs[parent], keys[parent])) {
+				break;
 			}
-			
-			cleanup(in, out, passesCount);
-		} finally {
-			executor.shutdown();
+			keys[index] = keys[parent];
+			runs[index] = runs[parent];
+			index = parent;
 		}
+		keys[index] = key;
+		runs[index] = run;
 	}
-
+	
 	/**
-	 * Performs cleanup.
-	 * In case when last merge ended up with data in initial file, temporary file is deleted.
-	 * In case when last merge ended up with data in temporary file, 
-	 * initial file is deleted and temporary file is renamed to initial file name.
+	 * Moves the root of min-heap down to its place.
 	 * 
-	 * @param in input file
-	 * @param tmp temporary file created for sorting
-	 * @param passesCount number of merge passes performed
+	 * @param keys keys of heap elements
+	 * @param runs run numbers of heap elements
+	 * @param size number of elements in the heap
 	 */
-	private static void cleanup(File in, File tmp, int passesCount) {
-		if (passesCount % 2 == 0) {
-			in.delete();
-			tmp.renameTo(in);
-		} else {
-			tmp.delete();
+	private static void siftDown(long[] keys, int[] runs, int size) {
+		if (size == 0) {
+			return;
+		}
+		long key = keys[0];
+		int run = runs[0];
+		int index = 0;
+		int half = size >> 1;
+		while (index < half) {
+			int child = 2 * index + 1;
+			if (child + 1 < size && precedes(runs[child + 1], keys[child + 1], runs[child], keys[child])) {
+				child++;
+			}
+			if (!precedes(runs[child], keys[child], run, key)) {
+				break;
+			}
+			keys[index] = keys[child];
+			runs[index] = runs[child];
+			index = child;
 		}
+		keys[index] = key;
+		runs[index] = run;
 	}
-
+	
 	/**
-	 * Splits input file into blocks and creates {@link InMemorySortTask} for each block.
-	 * Tasks are submitted to provided {@link ExecutorService} and will be executed asynchronously.
+	 * Checks whether heap element goes to output strictly before another one.
 	 * 
-	 * @param es {@link ExecutorService} that will execute tasks
-	 * @param in input file
-	 * @param out created temporary file
-	 * @param count total count of integers in the input file
-	 * @param blockSize number of integers fitting in block
-	 * @param blocksCount number of blocks
-	 * @return list of {@link Future}'s for created in-memory sort tasks
+	 * @param run run of the first element
+	 * @param key key of the first element
+	 * @param otherRun run of the second element
+	 * @param otherKey key of the second element
+	 * @return true if the first element is ordered before the second one
 	 */
-	private static List<Future<Integer>> initialSort(ExecutorService es, File in, File out, 
-			long count, int blockSize, int blocksCount) {
-		List<Future<Integer>> result = new ArrayList<Future<Integer>>(blocksCount);
-		for (int i = 0; i < blocksCount; i++) {
-			long c = blockSize;
-			// if it is the last block it may be shorter
-			if (i == blocksCount - 1 && count % blockSize != 0) {
-				c = count % blockSize;
+	private static boolean precedes(int run, long key, int otherRun, long otherKey) {
+		return run != otherRun ? run < otherRun : key < otherKey;
+	}
+	
+	/**
+	 * Asynchronous task planning merge passes for runs whose boundaries are known 
+	 * only after run generation tasks are completed, 
+	 * so it must be added to {@link TaskGraph} with run generation tasks as dependencies.
+	 * Merge tasks are added to the graph from this task.
+	 * 
+	 * @author IVotinov
+	 */
+	private static class MergePlanTask extends TaskGraph.Task {
+		private TaskGraph graph;
+		private List<ReplacementSelectionTask> runTasks;
+		private File in;
+		private File out;
+		private SortContext context;
+		private boolean resultInTemp;
+		
+		/**
+		 * Constructs new MergePlanTask.
+		 * 
+		 * @param graph graph executing the tasks
+		 * @param runTasks run generation tasks in order of their segments
+		 * @param in input file
+		 * @param out output file containing generated runs
+		 * @param context sort context
+		 */
+		public MergePlanTask(TaskGraph graph, List<ReplacementSelectionTask> runTasks, File in, File out, SortContext context) {
+			this.graph = graph;
+			this.runTasks = runTasks;
+			this.in = in;
+			this.out = out;
+			this.context = context;
+		}
+		
+		/**
+		 * Returns true if sorted data will end up in temporary file.
+		 * 
+		 * @return true if sorted data will be in temporary file
+		 */
+		public boolean isResultInTemp() {
+			return resultInTemp;
+		}
+		
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		protected void execute() {
+			List<Long> bounds = new ArrayList<Long>();
+			bounds.add(0L);
+			for (ReplacementSelectionTask t : runTasks) {
+				List<Long> taskBounds = t.getRunBounds();
+				bounds.addAll(taskBounds.subList(1, taskBounds.size()));
 			}
-			result.add(es.submit(new InMemorySortTask(in, out, i * blockSize, (int) c)));
+			long[] runBounds = new long[bounds.size()];
+			for (int i = 0; i < runBounds.length; i++) {
+				runBounds[i] = bounds.get(i);
+			}
+			int passesCount = mergeAll(graph, new ArrayList<TaskGraph.Task>(0), new int[runBounds.length], in, out, runBounds, 
+					false, context);
+			resultInTemp = passesCount % 2 == 0;
 		}
-		return result;
 	}
-
+	
 	/**
-	 * Creates {@link MergeTask} tasks and submits them to the provided {@link ExecutorService}. 
-	 * Merge is performed in passes.
-	 * On each pass remaining sorted blocks are split into pairs, 
-	 * and each pair is merged into one sorted block. 
-	 * So each merge pass generally consists of multiple {@link MergeTask}s. 
-	 * If the number of blocks on current pass is odd, the last block is simply copied to other file 
-	 * to ensure that all data is in the same file before the next pass.
-	 * On each pass already sorted blocks are in one file and result is written to the other file.
-	 * On next pass in and out files are swapped.
-	 * Tasks created by this method are executed asynchronously. 
-	 * {@link Future}s for previous pass tasks are used to keep track of task dependencies 
-	 * (see {@link MergeTask} and {@link CopyBlockTask} for details).
-	 * Method returns last merge task, after this task completion the file will be sorted.
+	 * Asynchronous task coalescing blocks into natural runs when order of all blocks is detected,
+	 * so it must be added to {@link TaskGraph} with all in-memory sort tasks as dependencies.
+	 * Consequent ascending blocks, where each block starts from a value not less than the end of previous one,
+	 * form an ascending natural run. Descending natural runs are formed in the same way.
+	 * Ascending runs are copied to temporary file and descending runs are reversed to it,
+	 * unordered blocks are already sorted there. 
+	 * Then consequent runs, where each run starts from a value not less than the end of previous one,
+	 * are joined, and merge passes are planned for resulting runs.
+	 * So sorted input is only read once and left in place, 
+	 * and reversed input is read once more and reversed to temporary file without merges.
+	 * Copy, reverse and merge tasks are added to the graph from this task.
 	 * 
-	 * @param es {@link ExecutorService} that will execute tasks
-	 * @param sortTasks {@link Future}s for created in-memory sort tasks
-	 * @param in input file
-	 * @param out created temporary file
-	 * @param count total count of integers in the input file
-	 * @param initialBlockSize number of integers fitting in initial (in-memory sort) block
-	 * @param initialBlocksCount initial number of blocks
-	 * @return last merge task
+	 * @author IVotinov
 	 */
-	private static Future<Integer> mergeAll(ExecutorService es, List<Future<Integer>> sortTasks, File in, File out, 
-			long count, int initialBlockSize, int initialBlocksCount) {
-		File inFile = out;
-		File outFile = in;
-		int blocksCount = initialBlocksCount;
-		int blockSize = initialBlockSize;
+	private static class NaturalRunsPlanTask extends TaskGraph.Task {
+		private TaskGraph graph;
+		private List<InMemorySortTask> blocks;
+		private File in;
+		private File out;
+		private SortContext context;
+		private boolean resultInTemp;
+		
+		/**
+		 * Constructs new NaturalRunsPlanTask.
+		 * 
+		 * @param graph graph executing the tasks
+		 * @param blocks in-memory sort tasks in order of their blocks
+		 * @param in input file
+		 * @param out output file containing sorted unordered blocks
+		 * @param context sort context
+		 */
+		public NaturalRunsPlanTask(TaskGraph graph, List<InMemorySortTask> blocks, File in, File out, SortContext context) {
+			this.graph = graph;
+			this.blocks = blocks;
+			this.in = in;
+			this.out = out;
+			this.context = context;
+		}
 		
-		List<Future<Integer>> prevPassTasks = sortTasks;
+		/**
+		 * Returns true if sorted data will end up in temporary file.
+		 * 
+		 * @return true if sorted data will be in temporary file
+		 */
+		public boolean isResultInTemp() {
+			return resultInTemp;
+		}
 		
-		while (blocksCount > 1) {
-			// starting a new merge pass
-			List<Future<Integer>> currentPassTasks = new ArrayList<Future<Integer>>();
-			// processing remaining blocks in pairs
-			for (int i = 0; i < blocksCount; i += 2) {
-				long c = blockSize;
-				// this is last block and it's odd so it doesn't have a pair
-				if (i == blocksCount - 1) {
-					// also it can be shorter than regular
-					if (count % blockSize != 0) {
-						c = count % blockSize;
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		protected void execute() {
+			int n = blocks.size();
+			// input is sorted already
+			if (n == 0 || isNaturalRun(0, n, BlockOrder.ASCENDING)) {
+				resultInTemp = false;
+				return;
+			}
+			
+			List<TaskGraph.Task> tasks = new ArrayList<TaskGraph.Task>();
+			List<Long> runBounds = new ArrayList<Long>();
+			List<Integer> runTaskBounds = new ArrayList<Integer>();
+			runBounds.add(blocks.get(0).startNum);
+			runTaskBounds.add(0);
+			long prevMax = 0;
+			int i = 0;
+			while (i < n) {
+				BlockOrder order = blocks.get(i).order;
+				int j = i + 1;
+				if (order != BlockOrder.UNORDERED) {
+					while (j < n && isNaturalRun(j - 1, j + 1, order)) {
+						j++;
 					}
-					// adding copy task
-					currentPassTasks.add(es.submit(new CopyBlockTask(inFile, outFile, i * blockSize, c, prevPassTasks.subList(i, i + 1))));
-				} else {
-					// if it's last block it can be shorter
-					if (i == blocksCount - 2 && count % blockSize != 0) {
-						c = count % blockSize;
+				}
+				InMemorySortTask firstBlock = blocks.get(i);
+				InMemorySortTask lastBlock = blocks.get(j - 1);
+				long runStart = firstBlock.startNum;
+				long runEnd = lastBlock.startNum + lastBlock.count;
+				int runTasksStart = tasks.size();
+				for (int b = i; b < j; b++) {
+					InMemorySortTask block = blocks.get(b);
+					if (order == BlockOrder.ASCENDING) {
+						tasks.add(graph.add(new CopyBlockTask(in, out, block.startNum, block.count, context)));
+					} else if (order == BlockOrder.DESCENDING) {
+						long target = runStart + runEnd - block.startNum - block.count;
+						tasks.add(graph.add(new ReverseBlockTask(in, out, block.startNum, block.count, target, context)));
 					}
-					// adding merge task
-					currentPassTasks.add(es.submit(new MergeTask(inFile, outFile, i * blockSize, blockSize, c, prevPassTasks.subList(i, i + 2))));
 				}
+				long min = order == BlockOrder.DESCENDING ? lastBlock.last : firstBlock.first;
+				long max = order == BlockOrder.DESCENDING ? firstBlock.first : lastBlock.last;
+				// starting new run unless this run continues previous one 
+				if (i > 0 && prevMax > min) {
+					runBounds.add(runStart);
+					runTaskBounds.add(runTasksStart);
+				}
+				prevMax = max;
+				i = j;
 			}
+			runBounds.add(blocks.get(n - 1).startNum + blocks.get(n - 1).count);
+			runTaskBounds.add(tasks.size());
 			
-			blockSize = 2 * blockSize;
-			blocksCount = blocksCount / 2 + (blocksCount % 2 != 0 ? 1 : 0);
-			
-			// swapping in and out files for the next pass 
-			File t = inFile;
-			inFile = outFile;
-			outFile = t;
-			prevPassTasks = currentPassTasks;
+			long[] bounds = new long[runBounds.size()];
+			for (int r = 0; r < bounds.length; r++) {
+				bounds[r] = runBounds.get(r);
+			}
+			int[] taskBounds = new int[runTaskBounds.size()];
+			for (int r = 0; r < taskBounds.length; r++) {
+				taskBounds[r] = runTaskBounds.get(r);
+			}
+			int passesCount = mergeAll(graph, tasks, taskBounds, in, out, bounds, false, context);
+			resultInTemp = passesCount % 2 == 0;
+		}
+		
+		/**
+		 * Checks whether blocks [from, to) form a natural run of given order.
+		 * 
+		 * @param from index of first block
+		 * @param to index of block following the last one
+		 * @param order order of the run
+		 * @return true if blocks form a natural run
+		 */
+		private boolean isNaturalRun(int from, int to, BlockOrder order) {
+			for (int b = from; b < to; b++) {
+				if (blocks.get(b).order != order) {
+					return false;
+				}
+				if (b > from) {
+					long prevLast = blocks.get(b - 1).last;
+					long first = blocks.get(b).first;
+					if (order == BlockOrder.ASCENDING ? prevLast > first : prevLast < first) {
+						return false;
+					}
+				}
+			}
+			return true;
 		}
-		return prevPassTasks.get(0);
 	}
 	
 	/**
-	 * Asynchronous task for in-memory sort of part of input file.
-	 * This task returns 0 as a result, so in-memory sort can be considered as 0th merge pass
-	 * (see {@link MergeTask} and {@link CopyBlockTask} for more info on task results).
+	 * Asynchronous task to merge a group of consequent runs from input file to the same position in the output file.
+	 * Task may merge only a slice of the group output given by ranks of its first and last values.
+	 * Each merge task depends on data provided by previous pass tasks that produced these runs,
+	 * or in-memory sort tasks if this is the first merge pass, 
+	 * so it must be added to {@link TaskGraph} with these tasks as dependencies.
 	 * 
 	 * @author IVotinov
 	 */
-	private static class InMemorySortTask implements Callable<Integer> {
+	private static class MergeTask extends TaskGraph.Task {
 		private File in;
 		private File out;
-		private long startNum;
-		private int count;
-		
+		private long[] runBounds;
+		private long fromRank;
+		private long toRank;
+		private SortContext context;
+
 		/**
-		 * Constructs new InMemorySortTask.
+		 * Constructs new MergeTask.
 		 * 
 		 * @param in input file
 		 * @param out output file
-		 * @param startNum index of integer to start from
-		 * @param count count of integers to sort
+		 * @param runBounds boundaries of merged runs, run i occupies [runBounds[i], runBounds[i + 1])
+		 * @param fromRank rank of the first merged value in group output
+		 * @param toRank rank of the value following the last merged value in group output
+		 * @param context sort context
 		 */
-		public InMemorySortTask(File in, File out, long startNum, int count) {
+		public MergeTask(File in, File out, long[] runBounds, long fromRank, long toRank, SortContext context) {
 			this.in = in;
 			this.out = out;
-			this.startNum = startNum;
-			this.count = count;
+			this.runBounds = runBounds;
+			this.fromRank = fromRank;
+			this.toRank = toRank;
+			this.context = context;
 		}
 
 		/**
 		 * {@inheritDoc}
 		 */
-		public Integer call() throws IOException {
-			sortInMemory(in, out, startNum, count);
-			return 0;
+		@Override
+		protected void execute() throws IOException, InterruptedException {
+			merge(in, out, runBounds, fromRank, toRank, context);
 		}
 	}
 	
 	/**
-	 * Asynchronous task to merge two consequent blocks from input file to the same position in the output file.
-	 * Each merge task depends on data provided by two previous pass merge tasks,
-	 * or two in-memory sort tasks if this is the first merge pass.
-	 * {@link Future}s provided in constructor are used to wait for these tasks completion.
-	 * Task returns current merge pass number.
-	 * This result is an increment of dependency task result. 
-	 * 
+	 * Asynchronous task to copy a block of {@code count} values starting from given index 
+	 * from {@code in} file to the same position in {@code out} file.
+	 * Each copy block task depends on data provided by previous pass merge tasks,
+	 * one previous pass copy block task, or one in-memory sort task if this is the first merge pass,
+	 * so it must be added to {@link TaskGraph} with these tasks as dependencies.
+	 *  
 	 * @author IVotinov
 	 */
-	private static class MergeTask implements Callable<Integer> {
+	private static class CopyBlockTask extends TaskGraph.Task {
 		private File in;
 		private File out;
 		private long startNum;
-		private long count1;
-		private long count2;
-		private List<Future<Integer>> futuresToWait;
+		private long count;
+		private SortContext context;
 
 		/**
-		 * Constructs new MergeTask.
+		 * Constructs new CopyBlockTask.
 		 * 
 		 * @param in input file
 		 * @param out output file
-		 * @param startNum index of integer to start from
-		 * @param count1 number of integers to read from first block
-		 * @param count2 number of integers to read from second block
-		 * @param futuresToWait futures for tasks on whose completion this task depends
+		 * @param startNum index of value to start from
+		 * @param count number of values to copy
+		 * @param context sort context
 		 */
-		public MergeTask(File in, File out, long startNum, long count1, long count2, List<Future<Integer>> futuresToWait) {
+		public CopyBlockTask(File in, File out, long startNum, long count, SortContext context) {
 			this.in = in;
 			this.out = out;
 			this.startNum = startNum;
-			this.count1 = count1;
-			this.count2 = count2;
-			this.futuresToWait = futuresToWait;
+			this.count = count;
+			this.context = context;
 		}
 
 		/**
 		 * {@inheritDoc}
 		 */
-		public Integer call() throws IOException, ExecutionException, InterruptedException {
-			int result = waitForFutures(futuresToWait);
-			merge(in, out, startNum, count1, count2);
-			return result + 1;
+		@Override
+		protected void execute() throws IOException {
+			IOUtils.copyBlock(context.getChannel(in), context.getChannel(out), startNum, count, 
+					context.getOptions().getRecordFormat().getSize(), context.getOptions().getMappedWindowSize());
+		}
+
+		/**
+		 * Copy is executed by I/O threads, it's written from mapped input, so it doesn't wait for buffer pool.
+		 */
+		@Override
+		protected boolean isIOBound() {
+			return true;
 		}
 	}
 	
 	/**
-	 * Asynchronous task to copy a block of {@code count} integers starting from given index 
-	 * from {@code in} file to the same position in {@code out} file.
-	 * Each copy block task depends on data provided by one previous pass merge task,
-	 * one previous pass copy block task, or one in-memory sort task if this is the first merge pass.
-	 * {@link Future} provided in constructor is used to wait for such tasks completion.
-	 * Task returns current merge pass number.
-	 * This result is an increment of dependency task result.
-	 *  
+	 * Asynchronous task to reverse a block of {@code count} values starting from given index 
+	 * of {@code in} file and write it to given position of {@code out} file.
+	 * 
 	 * @author IVotinov
 	 */
-	private static class CopyBlockTask implements Callable<Integer> {
+	private static class ReverseBlockTask extends TaskGraph.Task {
 		private File in;
 		private File out;
 		private long startNum;
-		private long count;
-		private List<Future<Integer>> futuresToWait;
+		private int count;
+		private long targetNum;
+		private SortContext context;
 
 		/**
-		 * Constructs new CopyBlockTask.
+		 * Constructs new ReverseBlockTask.
 		 * 
 		 * @param in input file
 		 * @param out output file
-		 * @param startNum index of integer to start from
-		 * @param count number of integers to copy
-		 * @param futuresToWait futures for tasks on whose completion this task depends
+		 * @param startNum index of value to start from
+		 * @param count number of values to reverse
+		 * @param targetNum index of value in output file to write reversed block to
+		 * @param context sort context
 		 */
-		public CopyBlockTask(File in, File out, long startNum, long count, List<Future<Integer>> futuresToWait) {
+		public ReverseBlockTask(File in, File out, long startNum, int count, long targetNum, SortContext context) {
 			this.in = in;
 			this.out = out;
 			this.startNum = startNum;
 			this.count = count;
-			this.futuresToWait = futuresToWait;
+			this.targetNum = targetNum;
+			this.context = context;
 		}
 
 		/**
 		 * {@inheritDoc}
 		 */
-		public Integer call() throws IOException, ExecutionException, InterruptedException {
-			int result = waitForFutures(futuresToWait);
-			IOUtils.copyBlock(in, out, startNum, count);
-			return result + 1;
+		@Override
+		protected void execute() throws IOException, InterruptedException {
+			RecordFormat format = context.getOptions().getRecordFormat();
+			BufferPool pool = context.getBufferPool();
+			BufferPool.Lease lease = format.acquireBlock(pool, count, false);
+			try {
+				BlockBuffer block = format.newBlock(lease, false);
+				block.read(context.getChannel(in), startNum, count);
+				block.reverse(count);
+				block.write(context.getChannel(out), targetNum, count);
+			} finally {
+				pool.release(lease);
+			}
 		}
 	}
 	
 	/**
-	 * Waits for completion of a list of tasks.
-	 * This method returns the result of last task in the list.
+	 * Asynchronous task scattering a block of input file to bucket files.
+	 * Keys are moved to buckets found by binary search of splitters or by their prefixes, 
+	 * see {@link BlockBuffer#partition}, so the block isn't sorted and values are sorted only once, in their buckets.
+	 * Each slice is appended to its bucket at position reserved by increment of bucket size,
+	 * so blocks are written in parallel.
+	 * The smallest and the largest keys of the slices are available after task completion.
 	 * 
-	 * In case when one of the tasks thrown an exception, this method re-throws exception's cause. 
-	 * If multiple tasks return exceptions this method will throw exception from the first task in list that fired exception. 
+	 * @author IVotinov
+	 */
+	private static class ScatterTask extends TaskGraph.Task {
+		private File in;
+		private long startNum;
+		private int count;
+		private long[] splitters;
+		private long minKey;
+		private int shift;
+		private File[] buckets;
+		private AtomicLongArray sizes;
+		private SortContext context;
+		private long[] minKeys;
+		private long[] maxKeys;
+		
+		/**
+		 * Constructs new ScatterTask.
+		 * 
+		 * @param in input file
+		 * @param startNum index of value to start from
+		 * @param count count of values to scatter
+		 * @param splitters splitters of buckets, see {@link ParallelSorter#getSplitters}, 
+		 * 		or null if buckets are key prefixes
+		 * @param minKey key of the first bucket of key prefixes
+		 * @param shift number of low bits of a key not defining its prefix
+		 * @param buckets bucket files
+		 * @param sizes sizes of buckets shared by all scatter tasks
+		 * @param context sort context
+		 */
+		public ScatterTask(File in, long startNum, int count, long[] splitters, long minKey, int shift, 
+				File[] buckets, AtomicLongArray sizes, SortContext context) {
+			this.in = in;
+			this.startNum = startNum;
+			this.count = count;
+			this.splitters = splitters;
+			this.minKey = minKey;
+			this.shift = shift;
+			this.buckets = buckets;
+			this.sizes = sizes;
+			this.context = context;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		protected void execute() throws IOException, InterruptedException {
+			RecordFormat format = context.getOptions().getRecordFormat();
+			BufferPool pool = context.getBufferPool();
+			// partitioning moves keys through the scratch array
+			BufferPool.Lease lease = format.acquireBlock(pool, count, true);
+			try {
+				BlockBuffer block = format.newBlock(lease, true);
+				block.read(context.getChannel(in), startNum, count);
+				
+				int bucketsCount = buckets.length;
+				// slice of bucket b is [bounds[b], bounds[b + 1])
+				int[] bounds = new int[bucketsCount + 1];
+				if (splitters == null) {
+					block.partition(count, minKey, shift, bounds);
+				} else {
+					block.partition(count, splitters, bounds);
+				}
+				
+				FileChannel[] channels = new FileChannel[bucketsCount];
+				long[] bucketStartNums = new long[bucketsCount];
+				minKeys = new long[bucketsCount];
+				maxKeys = new long[bucketsCount];
+				for (int b = 0; b < bucketsCount; b++) {
+					int c = bounds[b + 1] - bounds[b];
+					if (c > 0) {
+						channels[b] = context.getChannel(buckets[b]);
+						bucketStartNums[b] = sizes.getAndAdd(b, c);
+						minKeys[b] = Long.MAX_VALUE;
+						maxKeys[b] = Long.MIN_VALUE;
+						for (int i = bounds[b]; i < bounds[b + 1]; i++) {
+							minKeys[b] = Math.min(minKeys[b], block.getKey(i));
+							maxKeys[b] = Math.max(maxKeys[b], block.getKey(i));
+						}
+					} else {
+						minKeys[b] = Long.MAX_VALUE;
+						maxKeys[b] = Long.MIN_VALUE;
+					}
+				}
+				block.write(channels, bucketStartNums, bounds);
+			} finally {
+				pool.release(lease);
+			}
+		}
+	}
+	
+	/**
+	 * Asynchronous task sorting a bucket in memory and writing it to its place in output file.
+	 * Bucket of a single key is already sorted, so it's copied without memory of the block.
 	 * 
-	 * @param futures tasks to wait for
-	 * @return result of the last task in the list
-	 * @throws IOException
-	 * @throws ExecutionException
-	 * @throws InterruptedException
+	 * @author IVotinov
 	 */
-	private static int waitForFutures(List<Future<Integer>> futures) throws IOException, ExecutionException, InterruptedException {
-		int result = 0;
-		for (Future<Integer> f : futures) {
+	private static class BucketSortTask extends TaskGraph.Task {
+		private File in;
+		private long count;
+		private boolean sorted;
+		private File out;
+		private long outStartNum;
+		private SortContext context;
+		
+		/**
+		 * Constructs new BucketSortTask.
+		 * 
+		 * @param in bucket file
+		 * @param count number of values in the bucket, up to run size if the bucket isn't sorted
+		 * @param sorted true if values of the bucket have a single key
+		 * @param out output file
+		 * @param outStartNum index of value in output file to write sorted bucket from
+		 * @param context sort context
+		 */
+		public BucketSortTask(File in, long count, boolean sorted, File out, long outStartNum, SortContext context) {
+			this.in = in;
+			this.count = count;
+			this.sorted = sorted;
+			this.out = out;
+			this.outStartNum = outStartNum;
+			this.context = context;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		protected void execute() throws IOException, InterruptedException {
+			RecordFormat format = context.getOptions().getRecordFormat();
+			if (sorted) {
+				IOUtils.copyBlock(context.getChannel(in), 0, context.getChannel(out), outStartNum, count, 
+						format.getSize(), context.getOptions().getMappedWindowSize());
+				return;
+			}
+			SortKernel kernel = context.getOptions().getSortKernel();
+			BufferPool pool = context.getBufferPool();
+			boolean withScratch = kernel.getExtraMemoryFactor() > 0;
+			BufferPool.Lease lease = format.acquireBlock(pool, (int) count, withScratch);
 			try {
-				result = f.get();
-			} catch (ExecutionException e) {
-				handleException(e);
+				BlockBuffer block = format.newBlock(lease, withScratch);
+				block.read(context.getChannel(in), 0, (int) count);
+				sortInMemory(block, context.getChannel(out), outStartNum, (int) count, kernel);
+			} finally {
+				pool.release(lease);
 			}
 		}
-		return result;
 	}
 	
 	/**
@@ -365,77 +2316,129 @@ public final class ParallelSorter {
 	}
 	
 	/**
-	 * Merges two consequent blocks from input file to the same position in the output file.
+	 * Merges slice of consequent runs from input file to the same position in the output file.
+	 * Slice is given by ranks of its first and last values in merged output.
 	 * 
 	 * @param in input file
 	 * @param out output file
-	 * @param startNum index of integer to start from
-	 * @param count1 number of integers to read from first block
-	 * @param count2 number of integers to read from second block
+	 * @param runBounds boundaries of merged runs, run i occupies [runBounds[i], runBounds[i + 1])
+	 * @param fromRank rank of the first merged value
+	 * @param toRank rank of the value following the last merged value
+	 * @param context sort context
 	 * @throws IOException
+	 * @throws InterruptedException 
 	 */
-	private static void merge(File in, File out, long startNum, long count1, long count2) throws IOException {
-		IntReader ir1 = new IntReader(in, startNum, count1);
+	private static void merge(File in, File out, long[] runBounds, long fromRank, long toRank, SortContext context) 
+			throws IOException, InterruptedException {
+		IOBackend backend = context.getOptions().getIOBackend();
+		RecordFormat format = context.getOptions().getRecordFormat();
+		int bufferSize = context.getOptions().getIOBufferSize();
+		FileChannel inChannel = context.getChannel(in);
+		FileChannel outChannel = context.getChannel(out);
+		long[] starts = MergePath.split(inChannel, format, runBounds, fromRank);
+		long[] ends = MergePath.split(inChannel, format, runBounds, toRank);
+		KeyReader[] readers = new KeyReader[runBounds.length - 1];
+		// buffers of all readers and the writer are leased at once
+		BufferPool.Lease lease = acquireIOBuffers(context, readers.length + 1);
 		try {
-			IntReader ir2 = new IntReader(in, startNum + count1, count2);
 			try {
-				IntWriter iw = new IntWriter(out, startNum);
+				for (int i = 0; i < readers.length; i++) {
+					readers[i] = backend.openKeyReader(format, inChannel, starts[i], ends[i] - starts[i], bufferSize, 
+							getIOBuffers(context, lease, i), context.getAsyncIOExecutor());
+				}
+				KeyWriter iw = backend.openKeyWriter(format, outChannel, runBounds[0] + fromRank, toRank - fromRank, 
+						bufferSize, getIOBuffers(context, lease, readers.length), context.getAsyncIOExecutor());
 				try {
-					doMerge(ir1, ir2, iw);
+					doMerge(new LoserTree(readers), iw);
 				} finally {
 					iw.close();
 				}
 			} finally {
-				ir2.close();
+				for (KeyReader ir : readers) {
+					if (ir != null) {
+						ir.close();
+					}
+				}
 			}
 		} finally {
-			ir1.close();
+			context.getBufferPool().release(lease);
 		}
 	}
-
+	
 	/**
-	 * Merges two blocks into one using provided {@link IOUtils.IntReader}s and {@link IOUtils.IntWriter}.
+	 * Leases buffers for given number of readers and writers from buffer pool of the sort,
+	 * if chosen {@link IOBackend} uses buffers.
 	 * 
-	 * @param ir1 IntReader for first input block
-	 * @param ir2 IntReader for second input block
-	 * @param iw IntWriter for resulting block
-	 * @throws IOException
+	 * @param context sort context
+	 * @param streams number of readers and writers
+	 * @return lease holding the buffers or null if backend doesn't use buffers
+	 * @throws InterruptedException
 	 */
-	private static void doMerge(IntReader ir1, IntReader ir2, IntWriter iw) throws IOException {
-		while (ir1.hasNext() && ir2.hasNext()) {
-			if (ir1.peek() <= ir2.peek()) {
-				iw.write(ir1.next());
-			} else {
-				iw.write(ir2.next());
-			}
+	private static BufferPool.Lease acquireIOBuffers(SortContext context, int streams) throws InterruptedException {
+		int count = getIOBufferCount(context);
+		if (count == 0) {
+			return null;
 		}
-
-		while (ir1.hasNext()) {
-			iw.write(ir1.next());
+		return context.getBufferPool().acquire(context.getOptions().getIOBufferSize(), streams * count);
+	}
+	
+	/**
+	 * Returns leased I/O buffers of a reader or writer.
+	 * 
+	 * @param context sort context
+	 * @param lease lease holding I/O buffers or null if backend doesn't use buffers
+	 * @param stream index of reader or writer
+	 * @return buffers or null if backend doesn't use buffers
+	 */
+	private static ByteBuffer[] getIOBuffers(SortContext context, BufferPool.Lease lease, int stream) {
+		if (lease == null) {
+			return null;
+		}
+		ByteBuffer[] buffers = new ByteBuffer[getIOBufferCount(context)];
+		for (int i = 0; i < buffers.length; i++) {
+			buffers[i] = lease.getBuffer(stream * buffers.length + i);
 		}
+		return buffers;
+	}
+	
+	/**
+	 * Returns number of buffers used by each reader and writer of the sort.
+	 * 
+	 * @param context sort context
+	 * @return number of buffers, 0 if backend doesn't use buffers
+	 */
+	private static int getIOBufferCount(SortContext context) {
+		return context.getOptions().getIOBackend().getBufferCount(context.getAsyncIOExecutor() != null);
+	}
 
-		while (ir2.hasNext()) {
-			iw.write(ir2.next());
+	/**
+	 * Moves all values of given {@link LoserTree} to provided {@link IOUtils.KeyWriter}.
+	 * Values are copied as is, so records keep their payload.
+	 * 
+	 * @param tree merged runs
+	 * @param iw KeyWriter for resulting run
+	 * @throws IOException
+	 */
+	private static void doMerge(LoserTree tree, KeyWriter iw) throws IOException {
+		while (tree.hasNext()) {
+			tree.transferNext(iw);
 		}
 	}
 	
 	/**
-	 * Performs in-memory sort of block of {@code in} file and writes result to {@code out} file.
-	 * In-memory sorting is performed using {@link Arrays#sort(int[])} method.
-	 * @param in input file
-	 * @param out output file
-	 * @param startNum index of integer to start from
-	 * @param count count of integers to sort
+	 * Performs in-memory sort of block read to given buffer and writes result to output file.
+	 * In-memory sorting is performed using given {@link SortKernel}.
+	 * @param block buffer containing values of the block
+	 * @param out channel of output file
+	 * @param startNum index of value to start from
+	 * @param count number of values in the block
+	 * @param kernel algorithm sorting the block
 	 * @throws IOException
 	 */
-	private static void sortInMemory(File in, File out, long startNum, int count) throws IOException {
-		byte[] buffer = IOUtils.readBufferFromFile(in, startNum, count);
-		int[] array = IOUtils.convertToIntArray(buffer);
-		
-		Arrays.sort(array);
-
-		IOUtils.putToBuffer(array, buffer);
-		IOUtils.writeBufferToFile(out, buffer, startNum * IOUtils.INT_SIZE);
+	private static void sortInMemory(BlockBuffer block, FileChannel out, long startNum, int count, SortKernel kernel) 
+			throws IOException {
+		block.sort(count, kernel);
+		block.write(out, startNum, count);
 	}
 
 	/**
@@ -0,0 +1,222 @@
+package com.example.parallelsort;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+/**
+ * Mergeable sketch estimating quantiles of a stream of keys, the KLL sketch of Karnin, Lang and Liberty.
+ * Keys are kept in levels of compactors, a key at level h stands for {@code 2^h} keys of the stream.
+ * When the sketch exceeds its capacity, the lowest level exceeding its own capacity is sorted
+ * and every other key of it, starting from a random one, goes to the next level.
+ * Capacities decrease geometrically from the top level down, so memory is O(k) for any stream,
+ * while error of estimated ranks is about {@link #getRankError() 2.3 / k} of the stream length.
+ * Sketches built over parts of a stream by different threads are merged level by level.
+ * Keys are longs as returned by {@link IOUtils.KeyReader#nextKey()}, so all key types share the sketch.
+ *
+ * @author IVotinov
+ */
+final class QuantileSketch {
+	/**
+	 * Ratio of capacities of adjacent levels.
+	 */
+	private static final double CAPACITY_DECAY = 2.0 / 3;
+	/**
+	 * Smallest capacity of a level.
+	 */
+	private static final int MIN_CAPACITY = 8;
+
+	private final int k;
+	private final Random random;
+	// levels[h] holds sizes[h] keys of weight 2^h
+	private long[][] levels = new long[0][];
+	private int[] sizes = new int[0];
+	// capacities of levels, they change when a level is added
+	private int[] capacities = new int[0];
+	// number of keys kept in all levels
+	private int size = 0;
+	// sum of capacities of levels
+	private int capacity = 0;
+	// number of keys of the stream
+	private long count = 0;
+	// the smallest and the largest keys of the stream, which are kept exactly
+	private long minKey = Long.MAX_VALUE;
+	private long maxKey = Long.MIN_VALUE;
+
+	/**
+	 * Constructs new empty QuantileSketch.
+	 *
+	 * @param k capacity of the top level, which bounds rank error
+	 * @param random source of random choices of compactions
+	 */
+	public QuantileSketch(int k, Random random) {
+		if (k < MIN_CAPACITY) {
+			throw new IllegalArgumentException("Sketch capacity must be at least " + MIN_CAPACITY);
+		}
+		this.k = k;
+		this.random = random;
+	}
+
+	/**
+	 * Returns number of keys added to the sketch, including keys of merged sketches.
+	 *
+	 * @return stream length
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * Returns estimated error of ranks as fraction of stream length,
+	 * bound with high probability by the empirical formula of the KLL sketch.
+	 *
+	 * @return normalized rank error
+	 */
+	public double getRankError() {
+		return 2.3 / Math.pow(k, 0.9723);
+	}
+
+	/**
+	 * Adds key to the sketch.
+	 *
+	 * @param key key to add
+	 */
+	public void add(long key) {
+		if (levels.length == 0) {
+			addLevel();
+		}
+		append(0, key);
+		count++;
+		minKey = Math.min(minKey, key);
+		maxKey = Math.max(maxKey, key);
+		if (size > capacity) {
+			compress();
+		}
+	}
+
+	/**
+	 * Adds keys of another sketch to this one.
+	 * Other sketch is not changed.
+	 *
+	 * @param other sketch to merge
+	 */
+	public void merge(QuantileSketch other) {
+		while (levels.length < other.levels.length) {
+			addLevel();
+		}
+		for (int h = 0; h < other.levels.length; h++) {
+			for (int i = 0; i < other.sizes[h]; i++) {
+				append(h, other.levels[h][i]);
+			}
+		}
+		count += other.count;
+		minKey = Math.min(minKey, other.minKey);
+		maxKey = Math.max(maxKey, other.maxKey);
+		compress();
+	}
+
+	/**
+	 * Returns key of estimated rank in sorted stream.
+	 * Kept keys are sorted with their weights, and the key whose cumulative weight exceeds the rank is returned.
+	 * The first and the last ranks are exact.
+	 *
+	 * @param rank rank of key, from 0 to {@link #getCount()} exclusive
+	 * @return estimated key
+	 */
+	public long getKey(long rank) {
+		if (size == 0) {
+			throw new NoSuchElementException();
+		}
+		if (rank <= 0) {
+			return minKey;
+		}
+		if (rank >= count - 1) {
+			return maxKey;
+		}
+		long[] keys = new long[size];
+		int[] heights = new int[size];
+		int n = 0;
+		for (int h = 0; h < levels.length; h++) {
+			for (int i = 0; i < sizes[h]; i++) {
+				keys[n] = levels[h][i];
+				heights[n] = h;
+				n++;
+			}
+		}
+		SortKernel.COMPARISON.sort(keys, heights);
+		long weight = 0;
+		for (int i = 0; i < n; i++) {
+			weight += 1L << heights[i];
+			if (weight > rank) {
+				return keys[i];
+			}
+		}
+		return keys[n - 1];
+	}
+
+	/**
+	 * Compacts levels until kept keys fit capacity of the sketch.
+	 */
+	private void compress() {
+		while (size > capacity) {
+			int h = 0;
+			while (sizes[h] < capacities[h]) {
+				h++;
+			}
+			compact(h);
+		}
+	}
+
+	/**
+	 * Moves every other sorted key of given level to the next level, an odd key is left at the level.
+	 * Weight of moved keys doubles, so total weight of the sketch stays the stream length.
+	 *
+	 * @param h level to compact
+	 */
+	private void compact(int h) {
+		if (h == levels.length - 1) {
+			addLevel();
+		}
+		long[] level = levels[h];
+		int n = sizes[h];
+		Arrays.sort(level, 0, n);
+		// the smallest key stays if the number of keys is odd
+		int start = n & 1;
+		for (int i = start + (random.nextBoolean() ? 1 : 0); i < n; i += 2) {
+			append(h + 1, level[i]);
+		}
+		size -= n - start;
+		sizes[h] = start;
+	}
+
+	/**
+	 * Appends key to given level, growing its array if needed.
+	 *
+	 * @param h level to append to
+	 * @param key key to append
+	 */
+	private void append(int h, long key) {
+		if (sizes[h] == levels[h].length) {
+			levels[h] = Arrays.copyOf(levels[h], 2 * levels[h].length);
+		}
+		levels[h][sizes[h]++] = key;
+		size++;
+	}
+
+	/**
+	 * Adds empty top level.
+	 */
+	private void addLevel() {
+		int height = levels.length;
+		levels = Arrays.copyOf(levels, height + 1);
+		sizes = Arrays.copyOf(sizes, height + 1);
+		levels[height] = new long[MIN_CAPACITY];
+		// capacity is k for the top level and decreases geometrically down
+		capacities = new int[height + 1];
+		capacity = 0;
+		for (int h = 0; h <= height; h++) {
+			capacities[h] = Math.max(MIN_CAPACITY, (int) Math.ceil(k * Math.pow(CAPACITY_DECAY, height - h)));
+			capacity += capacities[h];
+		}
+	}
+}
@@ -0,0 +1,213 @@
+package com.example.parallelsort;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import com.example.parallelsort.IOUtils.BlockBuffer;
+import com.example.parallelsort.IOUtils.ByteSink;
+import com.example.parallelsort.IOUtils.ByteSource;
+import com.example.parallelsort.IOUtils.KeyReader;
+import com.example.parallelsort.IOUtils.KeyWriter;
+import com.example.parallelsort.IOUtils.RecordBlockBuffer;
+import com.example.parallelsort.IOUtils.RecordReader;
+import com.example.parallelsort.IOUtils.RecordWriter;
+
+/**
+ * Layout of values in sorted file: either bare keys of a {@link KeyType}
+ * or fixed-width records having a key of the type at fixed offset.
+ * Blocks of bare keys are sorted in primitive arrays of the type,
+ * while blocks of records are sorted as pairs of key and record index,
+ * so records are moved once, when a sorted block is written.
+ * Keys are stored in given byte order, and converted only when they are decoded,
+ * while merges move values as is.
+ * Decoded keys are xor-ed with a {@link #getKeyMask() key mask}, so signed ascending order of keys
+ * is the requested sort order and no pass reverses or maps values.
+ *
+ * @author IVotinov
+ */
+final class RecordFormat {
+	private final KeyType keyType;
+	private final int size;
+	private final int keyOffset;
+	private final ByteOrder order;
+	private final long keyMask;
+
+	/**
+	 * Constructs format of bare keys in {@link IOUtils#BYTE_ORDER default byte order}.
+	 *
+	 * @param keyType type of keys
+	 */
+	public RecordFormat(KeyType keyType) {
+		this(keyType, keyType.getSize(), 0, IOUtils.BYTE_ORDER, false, false);
+	}
+
+	/**
+	 * Constructs format of fixed-width records.
+	 * Record of key size and zero offset is a bare key.
+	 *
+	 * @param keyType type of keys
+	 * @param size size of record in bytes
+	 * @param keyOffset offset of key in record in bytes
+	 * @param order byte order of keys
+	 * @param unsigned true to order integer keys as unsigned numbers
+	 * @param descending true to sort in descending order
+	 */
+	public RecordFormat(KeyType keyType, int size, int keyOffset, ByteOrder order, boolean unsigned, 
+			boolean descending) {
+		if (keyOffset < 0 || keyOffset + keyType.getSize() > size) {
+			throw new IllegalArgumentException("Key of " + keyType + " at offset " + keyOffset
+					+ " doesn't fit record of size " + size);
+		}
+		if (unsigned && keyType.isFloatingPoint()) {
+			throw new IllegalArgumentException("Unsigned order is not defined for " + keyType);
+		}
+		this.keyType = keyType;
+		this.size = size;
+		this.keyOffset = keyOffset;
+		this.order = order;
+		// sign bit flip orders signed keys as unsigned ones, flip of all bits reverses the order
+		this.keyMask = (unsigned ? keyType.getMinKey() : 0) ^ (descending ? -1L : 0);
+	}
+
+	/**
+	 * Returns type of keys.
+	 *
+	 * @return key type
+	 */
+	public KeyType getKeyType() {
+		return keyType;
+	}
+
+	/**
+	 * Returns size of value, either a bare key or a record, in bytes.
+	 *
+	 * @return value size
+	 */
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * Returns byte order of keys.
+	 *
+	 * @return byte order
+	 */
+	public ByteOrder getOrder() {
+		return order;
+	}
+
+	/**
+	 * Returns mask xor-ed to keys decoded by readers and block buffers of this format.
+	 * It's 0 for signed ascending order, the smallest key of the type for unsigned order, 
+	 * and all bits are flipped on top of it for descending order.
+	 * Masked keys stay in range of the key type.
+	 *
+	 * @return key mask
+	 */
+	public long getKeyMask() {
+		return keyMask;
+	}
+
+	/**
+	 * Checks whether values are records having payload besides the key.
+	 *
+	 * @return true for records, false for bare keys
+	 */
+	public boolean isRecord() {
+		return size != keyType.getSize();
+	}
+
+	/**
+	 * Returns memory needed for in-memory sort of one value.
+	 * Bare keys are read to a byte buffer and sorted in an array of the key type,
+	 * records are read to a byte buffer, gathered to another one and sorted as a long key and an int index.
+	 * Memory needed by {@link SortKernel} itself is added for arrays.
+	 *
+	 * @param extraMemoryFactor extra memory factor of sort kernel
+	 * @return memory per value in bytes
+	 */
+	public long getBlockMemory(int extraMemoryFactor) {
+		if (!isRecord()) {
+			return (long) size * (SortOptions.RUN_MEMORY_FACTOR + extraMemoryFactor);
+		}
+		return 2L * size + (long) (IOUtils.LONG_SIZE + IOUtils.INT_SIZE) * (1 + extraMemoryFactor);
+	}
+
+	/**
+	 * Leases buffers and arrays for in-memory sort of a block.
+	 *
+	 * @param pool pool to lease from
+	 * @param count number of values in the block
+	 * @param withScratch true if scratch arrays are needed by {@link SortKernel}
+	 * @return lease to create {@link #newBlock(BufferPool.Lease, boolean) block buffer} from
+	 * @throws InterruptedException
+	 */
+	public BufferPool.Lease acquireBlock(BufferPool pool, int count, boolean withScratch) throws InterruptedException {
+		if (!isRecord()) {
+			return pool.acquire(count * size, 1, keyType.getArrayType(), count, withScratch ? 2 : 1);
+		}
+		Class<?>[] arrayTypes = withScratch
+				? new Class<?>[] {long.class, int.class, long.class, int.class}
+				: new Class<?>[] {long.class, int.class};
+		return pool.acquire(count * size, 2, arrayTypes, count);
+	}
+
+	/**
+	 * Creates block buffer over buffers and arrays leased by {@link #acquireBlock(BufferPool, int, boolean)}.
+	 *
+	 * @param lease leased buffers and arrays
+	 * @param withScratch true if lease holds scratch arrays
+	 * @return created block buffer
+	 */
+	public BlockBuffer newBlock(BufferPool.Lease lease, boolean withScratch) {
+		if (!isRecord()) {
+			return keyType.newBlock(lease.getBuffer(0), lease, withScratch, order, keyMask);
+		}
+		return new RecordBlockBuffer(lease.getBuffer(0), lease.getBuffer(1), keyType, size, keyOffset,
+				lease.getLongArray(0), lease.getArray(1),
+				withScratch ? lease.getLongArray(2) : null, withScratch ? lease.getArray(3) : null, order, keyMask);
+	}
+
+	/**
+	 * Creates reader of values of this format.
+	 *
+	 * @param source source of data
+	 * @param count number of values to read
+	 * @return created reader
+	 */
+	public KeyReader newReader(ByteSource source, long count) {
+		if (!isRecord()) {
+			return keyType.newReader(source, count, order, keyMask);
+		}
+		return new RecordReader(source, count, keyType, size, keyOffset, order, keyMask);
+	}
+
+	/**
+	 * Creates writer of values of this format.
+	 * Records can only be written by {@link KeyReader#transferTo(KeyWriter)}.
+	 *
+	 * @param sink destination of data
+	 * @return created writer
+	 */
+	public KeyWriter newWriter(ByteSink sink) {
+		if (!isRecord()) {
+			return keyType.newWriter(sink, order, keyMask);
+		}
+		return new RecordWriter(sink);
+	}
+
+	/**
+	 * Reads key of a single value at given index of the file.
+	 *
+	 * @param channel channel of the file to read from
+	 * @param buffer buffer of at least key size to read to
+	 * @param index index of value
+	 * @return key as returned by {@link KeyReader#nextKey()}
+	 * @throws IOException
+	 */
+	public long readKey(FileChannel channel, ByteBuffer buffer, long index) throws IOException {
+		return IOUtils.readKey(channel, buffer, keyType, order, index * size + keyOffset) ^ keyMask;
+	}
+}
@@ -0,0 +1,21 @@
+package com.example.parallelsort;
+
+/**
+ * Way of producing initial sorted runs from input file.
+ *
+ * @author IVotinov
+ */
+public enum RunGeneration {
+	/**
+	 * Input file is split into blocks fitting to memory, and each block is sorted in memory.
+	 * Runs are exactly one block long, blocks are sorted in parallel.
+	 */
+	BLOCK_SORT,
+	/**
+	 * Input file is split into a segment per thread, and each segment is streamed through a heap 
+	 * using replacement selection.
+	 * Runs are twice the memory size on average on random data, 
+	 * and nearly sorted segments produce a single run.
+	 */
+	REPLACEMENT_SELECTION
+}
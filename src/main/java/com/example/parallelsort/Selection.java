@@ -0,0 +1,175 @@
+package com.example.parallelsort;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.example.parallelsort.IOUtils.BufferSource;
+import com.example.parallelsort.IOUtils.ByteSink;
+import com.example.parallelsort.IOUtils.KeyReader;
+import com.example.parallelsort.IOUtils.KeyWriter;
+
+/**
+ * Bounded buffer selecting the first K values in sort order from values added one by one.
+ * Candidates are appended to a buffer of twice K values, and when it's full they are sorted
+ * as pairs of key and index and the first K of them are gathered in sorted order,
+ * so the buffer is compacted once per K candidates.
+ * Once K values are kept, a value is rejected without copying unless it precedes the K-th kept key.
+ * Values are copied as is, so records keep their payload.
+ * Buffers and arrays are allocated on heap, as selection heap of replacement selection.
+ *
+ * @author IVotinov
+ */
+final class Selection implements ByteSink {
+	private final int k;
+	private final int size;
+	private final RecordFormat format;
+	private final SortKernel kernel;
+	private final long[] keys;
+	private final int[] indexes;
+	private final long[] keyScratch;
+	private final int[] indexScratch;
+	// candidates in byte order of the file, key i belongs to value i
+	private final ByteBuffer values;
+	// buffer the first K candidates are gathered to
+	private final ByteBuffer gathered;
+	private final KeyWriter writer;
+	private int count = 0;
+	// K-th key of the last compaction, valid when K values are kept
+	private long threshold;
+	private boolean full = false;
+
+	/**
+	 * Constructs new empty Selection.
+	 *
+	 * @param format format of values
+	 * @param k number of values to select
+	 * @param maxCount max number of values that will be added, bounds allocated memory
+	 * @param kernel kernel sorting candidates
+	 */
+	public Selection(RecordFormat format, int k, long maxCount, SortKernel kernel) {
+		this.k = k;
+		this.size = format.getSize();
+		this.format = format;
+		this.kernel = kernel;
+		int capacity = (int) Math.max(1, Math.min(2L * k, maxCount));
+		this.keys = new long[capacity];
+		this.indexes = new int[capacity];
+		boolean withScratch = kernel.getExtraMemoryFactor() > 0;
+		this.keyScratch = withScratch ? new long[capacity] : null;
+		this.indexScratch = withScratch ? new int[capacity] : null;
+		this.values = ByteBuffer.allocate(capacity * size);
+		this.gathered = ByteBuffer.allocate(capacity * size);
+		this.writer = format.newWriter(this);
+	}
+
+	/**
+	 * Returns max number of values a selection may take for given format.
+	 *
+	 * @param format format of values
+	 * @return max K
+	 */
+	public static int getMaxK(RecordFormat format) {
+		return Integer.MAX_VALUE / 2 / format.getSize();
+	}
+
+	/**
+	 * Adds next value of given reader, consuming it.
+	 *
+	 * @param reader reader having next value
+	 * @return true if the value is kept as a candidate, false if it's rejected
+	 * @throws IOException
+	 */
+	public boolean add(KeyReader reader) throws IOException {
+		long key = reader.peekKey();
+		if (full && key >= threshold) {
+			reader.skip();
+			return false;
+		}
+		// a full buffer is compacted by the writer before the value is put
+		reader.transferTo(writer);
+		keys[count++] = key;
+		return true;
+	}
+
+	/**
+	 * Adds values selected by another selection of the same format, consuming them.
+	 *
+	 * @param other selection to add values of
+	 * @throws IOException
+	 */
+	public void addAll(Selection other) throws IOException {
+		ByteBuffer selected = other.getResult();
+		KeyReader reader = format.newReader(new BufferSource(selected), selected.remaining() / size);
+		try {
+			// selected values are sorted, so the first rejected one is followed by rejected ones only
+			while (reader.hasNext() && add(reader)) {
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Returns selected values sorted, at most K of them.
+	 * Returned buffer is in byte order of the file and holds values between its position and limit,
+	 * it's valid until more values are added.
+	 *
+	 * @return selected values
+	 */
+	public ByteBuffer getResult() {
+		compact();
+		ByteBuffer result = values.duplicate();
+		result.flip();
+		return result.order(format.getOrder());
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public ByteBuffer buffer() {
+		return values;
+	}
+
+	/**
+	 * Compacts the full buffer of candidates to the first K of them.
+	 *
+	 * @return buffer having room for more candidates
+	 */
+	public ByteBuffer flush() {
+		compact();
+		return values;
+	}
+
+	/**
+	 * Does nothing, selected values stay in memory.
+	 */
+	public void close() {
+	}
+
+	/**
+	 * Sorts candidates and keeps the first K of them, gathered in sorted order.
+	 */
+	private void compact() {
+		for (int i = 0; i < count; i++) {
+			indexes[i] = i;
+		}
+		kernel.sort(keys, indexes, count, keyScratch, indexScratch);
+		int kept = Math.min(k, count);
+		gathered.clear();
+		for (int i = 0; i < kept; i++) {
+			int position = indexes[i] * size;
+			values.limit(position + size);
+			values.position(position);
+			gathered.put(values);
+		}
+		// kept values are copied back, so writer of candidates keeps its buffer
+		values.clear();
+		gathered.flip();
+		values.put(gathered);
+		count = kept;
+		if (kept == k) {
+			full = true;
+			threshold = keys[k - 1];
+		}
+	}
+}
@@ -0,0 +1,135 @@
+package com.example.parallelsort;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * State shared by all tasks of one sort: sort options and resources created for the sort.
+ * Each file of the sort is opened once, and all tasks read and write it by positional operations 
+ * on its shared {@link FileChannel}, so tasks don't open files and don't seek.
+ * Tasks bound by I/O and background reads and writes of other tasks are performed by I/O threads of the sort,
+ * which are sized independently of sorting threads.
+ *
+ * @author IVotinov
+ */
+final class SortContext implements Closeable {
+	private final SortOptions options;
+	private final BufferPool bufferPool;
+	private final Map<File, RandomAccessFile> files = new HashMap<File, RandomAccessFile>();
+	private final ExecutorService ioExecutor;
+
+	/**
+	 * Constructs new SortContext.
+	 * Buffer pool is limited by memory budget of the sort.
+	 *
+	 * @param options sort options
+	 */
+	public SortContext(SortOptions options) {
+		this.options = options;
+		this.bufferPool = new BufferPool(options.getEffectiveMemoryBudget());
+		this.ioExecutor = Executors.newFixedThreadPool(options.getIOThreadCount());
+	}
+
+	/**
+	 * Returns sort options.
+	 *
+	 * @return sort options
+	 */
+	public SortOptions getOptions() {
+		return options;
+	}
+
+	/**
+	 * Returns pool of buffers used by tasks of the sort.
+	 *
+	 * @return buffer pool
+	 */
+	public BufferPool getBufferPool() {
+		return bufferPool;
+	}
+
+	/**
+	 * Returns executor of I/O threads.
+	 *
+	 * @return I/O executor
+	 */
+	public Executor getIOExecutor() {
+		return ioExecutor;
+	}
+
+	/**
+	 * Returns executor performing background reads and writes of readers and writers,
+	 * if background I/O is on and supported by chosen {@link IOBackend}.
+	 *
+	 * @return I/O executor or null if I/O is synchronous
+	 */
+	public Executor getAsyncIOExecutor() {
+		return options.isAsyncIO() && options.getIOBackend().getBufferCount(true) > 0 ? ioExecutor : null;
+	}
+
+	/**
+	 * Returns channel of given file shared by all tasks, opening the file on first call.
+	 *
+	 * @param file file of the sort
+	 * @return channel opened for reading and writing
+	 * @throws IOException
+	 */
+	public FileChannel getChannel(File file) throws IOException {
+		synchronized (files) {
+			RandomAccessFile raf = files.get(file);
+			if (raf == null) {
+				raf = new RandomAccessFile(file, "rw");
+				files.put(file, raf);
+			}
+			return raf.getChannel();
+		}
+	}
+
+	/**
+	 * Closes given file if it's opened by the sort, so it can be deleted before the sort ends.
+	 * The file is opened again by the next call of {@link #getChannel(File)}.
+	 *
+	 * @param file file of the sort
+	 * @throws IOException
+	 */
+	public void close(File file) throws IOException {
+		RandomAccessFile raf;
+		synchronized (files) {
+			raf = files.remove(file);
+		}
+		if (raf != null) {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Stops I/O threads and closes all files opened by the sort.
+	 *
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		ioExecutor.shutdown();
+		IOException failure = null;
+		synchronized (files) {
+			for (RandomAccessFile raf : files.values()) {
+				try {
+					raf.close();
+				} catch (IOException e) {
+					failure = e;
+				}
+			}
+			files.clear();
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+}
@@ -0,0 +1,380 @@
+package com.example.parallelsort;
+
+import java.util.Arrays;
+
+/**
+ * Algorithm sorting blocks of integers or longs in memory, or pairs of long key and record index.
+ *
+ * @author IVotinov
+ */
+public enum SortKernel {
+	/**
+	 * Comparison sort by {@link Arrays#sort(int[])}, which needs no extra memory.
+	 */
+	COMPARISON(0) {
+		@Override
+		public void sort(int[] array, int length, int[] scratch) {
+			Arrays.sort(array, 0, length);
+		}
+
+		@Override
+		public void sort(long[] array, int length, long[] scratch) {
+			Arrays.sort(array, 0, length);
+		}
+
+		@Override
+		public void sort(long[] keys, int[] indexes, int length, long[] keyScratch, int[] indexScratch) {
+			quickSort(keys, indexes, 0, length);
+		}
+	},
+	/**
+	 * LSD radix sort by 8-bit digits, which needs extra memory of block size.
+	 * Integers have 4 digits and longs have 8 digits.
+	 * Histograms of all digits are counted in a single pass,
+	 * and passes by digits which are the same for all values are skipped.
+	 * Blocks smaller than {@link #RADIX_SORT_THRESHOLD} are sorted by {@link Arrays#sort(int[])}.
+	 */
+	RADIX(1) {
+		@Override
+		public void sort(int[] array, int length, int[] scratch) {
+			if (length < RADIX_SORT_THRESHOLD) {
+				Arrays.sort(array, 0, length);
+				return;
+			}
+			radixSort(array, length, scratch);
+		}
+
+		@Override
+		public void sort(long[] array, int length, long[] scratch) {
+			if (length < RADIX_SORT_THRESHOLD) {
+				Arrays.sort(array, 0, length);
+				return;
+			}
+			radixSort(array, length, scratch);
+		}
+
+		@Override
+		public void sort(long[] keys, int[] indexes, int length, long[] keyScratch, int[] indexScratch) {
+			if (length < RADIX_SORT_THRESHOLD) {
+				quickSort(keys, indexes, 0, length);
+				return;
+			}
+			radixSort(keys, indexes, length, keyScratch, indexScratch);
+		}
+	};
+
+	/**
+	 * Smallest block sorted by radix sort, counting and scanning histograms doesn't pay off for smaller blocks.
+	 */
+	static final int RADIX_SORT_THRESHOLD = 1024;
+	/**
+	 * Largest range of pairs sorted by insertion sort in quicksort.
+	 */
+	private static final int INSERTION_SORT_THRESHOLD = 16;
+	/**
+	 * Bits in one digit of radix sort.
+	 */
+	private static final int DIGIT_BITS = 8;
+	/**
+	 * Number of digits in an integer.
+	 */
+	private static final int DIGITS = 32 / DIGIT_BITS;
+	/**
+	 * Number of digits in a long.
+	 */
+	private static final int LONG_DIGITS = 64 / DIGIT_BITS;
+	/**
+	 * Number of distinct values of a digit.
+	 */
+	private static final int BUCKETS = 1 << DIGIT_BITS;
+
+	private final int extraMemoryFactor;
+
+	private SortKernel(int extraMemoryFactor) {
+		this.extraMemoryFactor = extraMemoryFactor;
+	}
+
+	/**
+	 * Sorts first {@code length} values of given array in ascending order.
+	 *
+	 * @param array array to sort
+	 * @param length number of values to sort
+	 * @param scratch array of at least {@code length} values used by kernel needing extra memory,
+	 * may be null if {@link #getExtraMemoryFactor()} is 0
+	 */
+	public abstract void sort(int[] array, int length, int[] scratch);
+
+	/**
+	 * Sorts first {@code length} values of given array in ascending order.
+	 *
+	 * @param array array to sort
+	 * @param length number of values to sort
+	 * @param scratch array of at least {@code length} values used by kernel needing extra memory,
+	 * may be null if {@link #getExtraMemoryFactor()} is 0
+	 */
+	public abstract void sort(long[] array, int length, long[] scratch);
+
+	/**
+	 * Sorts first {@code length} pairs of key and index by key in ascending order,
+	 * moving each index together with its key.
+	 * Order of pairs having equal keys is not defined.
+	 *
+	 * @param keys keys to sort
+	 * @param indexes indexes moved with keys
+	 * @param length number of pairs to sort
+	 * @param keyScratch array of at least {@code length} keys used by kernel needing extra memory,
+	 * may be null if {@link #getExtraMemoryFactor()} is 0
+	 * @param indexScratch array of at least {@code length} indexes used by kernel needing extra memory,
+	 * may be null if {@link #getExtraMemoryFactor()} is 0
+	 */
+	public abstract void sort(long[] keys, int[] indexes, int length, long[] keyScratch, int[] indexScratch);
+
+	/**
+	 * Sorts given array in ascending order allocating extra memory if needed.
+	 *
+	 * @param array array to sort
+	 */
+	public void sort(int[] array) {
+		sort(array, array.length, extraMemoryFactor == 0 ? null : new int[array.length]);
+	}
+
+	/**
+	 * Sorts given array in ascending order allocating extra memory if needed.
+	 *
+	 * @param array array to sort
+	 */
+	public void sort(long[] array) {
+		sort(array, array.length, extraMemoryFactor == 0 ? null : new long[array.length]);
+	}
+
+	/**
+	 * Sorts given pairs of key and index by key allocating extra memory if needed.
+	 *
+	 * @param keys keys to sort
+	 * @param indexes indexes moved with keys, of the same length
+	 */
+	public void sort(long[] keys, int[] indexes) {
+		int length = keys.length;
+		if (extraMemoryFactor == 0) {
+			sort(keys, indexes, length, null, null);
+		} else {
+			sort(keys, indexes, length, new long[length], new int[length]);
+		}
+	}
+
+	/**
+	 * Returns memory needed by sort besides the sorted array in sizes of the array.
+	 *
+	 * @return extra memory factor
+	 */
+	int getExtraMemoryFactor() {
+		return extraMemoryFactor;
+	}
+
+	/**
+	 * Sorts array by LSD radix sort.
+	 * Sign bit is flipped, so that negative values have smaller most significant digit than positive ones.
+	 *
+	 * @param array array to sort
+	 * @param n number of values to sort
+	 * @param scratch array of at least the same length used for passes
+	 */
+	private static void radixSort(int[] array, int n, int[] scratch) {
+		int[][] counts = new int[DIGITS][BUCKETS];
+		for (int i = 0; i < n; i++) {
+			int key = array[i] ^ Integer.MIN_VALUE;
+			for (int d = 0; d < DIGITS; d++) {
+				counts[d][(key >>> (d * DIGIT_BITS)) & (BUCKETS - 1)]++;
+			}
+		}
+		int[] src = array;
+		int[] dst = scratch;
+		for (int d = 0; d < DIGITS; d++) {
+			int shift = d * DIGIT_BITS;
+			int[] offsets = counts[d];
+			// all values have the same digit, so the pass wouldn't change the order
+			if (offsets[((src[0] ^ Integer.MIN_VALUE) >>> shift) & (BUCKETS - 1)] == n) {
+				continue;
+			}
+			int sum = 0;
+			for (int b = 0; b < BUCKETS; b++) {
+				int c = offsets[b];
+				offsets[b] = sum;
+				sum += c;
+			}
+			for (int i = 0; i < n; i++) {
+				int value = src[i];
+				dst[offsets[((value ^ Integer.MIN_VALUE) >>> shift) & (BUCKETS - 1)]++] = value;
+			}
+			int[] t = src;
+			src = dst;
+			dst = t;
+		}
+		if (src != array) {
+			System.arraycopy(src, 0, array, 0, n);
+		}
+	}
+
+	/**
+	 * Sorts array of longs by LSD radix sort, the same way as {@link #radixSort(int[], int, int[])}.
+	 *
+	 * @param array array to sort
+	 * @param n number of values to sort
+	 * @param scratch array of at least the same length used for passes
+	 */
+	private static void radixSort(long[] array, int n, long[] scratch) {
+		int[][] counts = new int[LONG_DIGITS][BUCKETS];
+		for (int i = 0; i < n; i++) {
+			long key = array[i] ^ Long.MIN_VALUE;
+			for (int d = 0; d < LONG_DIGITS; d++) {
+				counts[d][(int) (key >>> (d * DIGIT_BITS)) & (BUCKETS - 1)]++;
+			}
+		}
+		long[] src = array;
+		long[] dst = scratch;
+		for (int d = 0; d < LONG_DIGITS; d++) {
+			int shift = d * DIGIT_BITS;
+			int[] offsets = counts[d];
+			if (offsets[(int) ((src[0] ^ Long.MIN_VALUE) >>> shift) & (BUCKETS - 1)] == n) {
+				continue;
+			}
+			int sum = 0;
+			for (int b = 0; b < BUCKETS; b++) {
+				int c = offsets[b];
+				offsets[b] = sum;
+				sum += c;
+			}
+			for (int i = 0; i < n; i++) {
+				long value = src[i];
+				dst[offsets[(int) ((value ^ Long.MIN_VALUE) >>> shift) & (BUCKETS - 1)]++] = value;
+			}
+			long[] t = src;
+			src = dst;
+			dst = t;
+		}
+		if (src != array) {
+			System.arraycopy(src, 0, array, 0, n);
+		}
+	}
+
+	/**
+	 * Sorts pairs of key and index by LSD radix sort of keys, the same way as {@link #radixSort(long[], int, long[])}.
+	 *
+	 * @param keys keys to sort
+	 * @param indexes indexes moved with keys
+	 * @param n number of pairs to sort
+	 * @param keyScratch array of at least the same length used for passes
+	 * @param indexScratch array of at least the same length used for passes
+	 */
+	private static void radixSort(long[] keys, int[] indexes, int n, long[] keyScratch, int[] indexScratch) {
+		int[][] counts = new int[LONG_DIGITS][BUCKETS];
+		for (int i = 0; i < n; i++) {
+			long key = keys[i] ^ Long.MIN_VALUE;
+			for (int d = 0; d < LONG_DIGITS; d++) {
+				counts[d][(int) (key >>> (d * DIGIT_BITS)) & (BUCKETS - 1)]++;
+			}
+		}
+		long[] src = keys;
+		long[] dst = keyScratch;
+		int[] srcIndexes = indexes;
+		int[] dstIndexes = indexScratch;
+		for (int d = 0; d < LONG_DIGITS; d++) {
+			int shift = d * DIGIT_BITS;
+			int[] offsets = counts[d];
+			if (offsets[(int) ((src[0] ^ Long.MIN_VALUE) >>> shift) & (BUCKETS - 1)] == n) {
+				continue;
+			}
+			int sum = 0;
+			for (int b = 0; b < BUCKETS; b++) {
+				int c = offsets[b];
+				offsets[b] = sum;
+				sum += c;
+			}
+			for (int i = 0; i < n; i++) {
+				long key = src[i];
+				int j = offsets[(int) ((key ^ Long.MIN_VALUE) >>> shift) & (BUCKETS - 1)]++;
+				dst[j] = key;
+				dstIndexes[j] = srcIndexes[i];
+			}
+			long[] t = src;
+			src = dst;
+			dst = t;
+			int[] ti = srcIndexes;
+			srcIndexes = dstIndexes;
+			dstIndexes = ti;
+		}
+		if (src != keys) {
+			System.arraycopy(src, 0, keys, 0, n);
+			System.arraycopy(srcIndexes, 0, indexes, 0, n);
+		}
+	}
+
+	/**
+	 * Sorts pairs of key and index in range [from, to) by quicksort of keys in place.
+	 * Pivot is a median of three, small ranges are sorted by insertion sort,
+	 * and the larger part is sorted by the loop, so recursion depth is logarithmic.
+	 *
+	 * @param keys keys to sort
+	 * @param indexes indexes moved with keys
+	 * @param from index of the first pair
+	 * @param to index following the last pair
+	 */
+	private static void quickSort(long[] keys, int[] indexes, int from, int to) {
+		while (to - from > INSERTION_SORT_THRESHOLD) {
+			int mid = (from + to) >>> 1;
+			// median of three is moved to the middle
+			if (keys[mid] < keys[from]) {
+				swap(keys, indexes, mid, from);
+			}
+			if (keys[to - 1] < keys[mid]) {
+				swap(keys, indexes, to - 1, mid);
+				if (keys[mid] < keys[from]) {
+					swap(keys, indexes, mid, from);
+				}
+			}
+			long pivot = keys[mid];
+			int i = from;
+			int j = to - 1;
+			while (i <= j) {
+				while (keys[i] < pivot) {
+					i++;
+				}
+				while (keys[j] > pivot) {
+					j--;
+				}
+				if (i <= j) {
+					swap(keys, indexes, i++, j--);
+				}
+			}
+			// smaller part is sorted by recursion
+			if (j + 1 - from < to - i) {
+				quickSort(keys, indexes, from, j + 1);
+				from = i;
+			} else {
+				quickSort(keys, indexes, i, to);
+				to = j + 1;
+			}
+		}
+		for (int i = from + 1; i < to; i++) {
+			long key = keys[i];
+			int index = indexes[i];
+			int j = i - 1;
+			while (j >= from && keys[j] > key) {
+				keys[j + 1] = keys[j];
+				indexes[j + 1] = indexes[j];
+				j--;
+			}
+			keys[j + 1] = key;
+			indexes[j + 1] = index;
+		}
+	}
+
+	private static void swap(long[] keys, int[] indexes, int i, int j) {
+		long key = keys[i];
+		keys[i] = keys[j];
+		keys[j] = key;
+		int index = indexes[i];
+		indexes[i] = indexes[j];
+		indexes[j] = index;
+	}
+}
@@ -0,0 +1,31 @@
+package com.example.parallelsort;
+
+/**
+ * Algorithm sorting a file by {@link ParallelSorter#sort(java.io.File, SortOptions)}.
+ *
+ * @author IVotinov
+ */
+public enum SortMethod {
+	/**
+	 * Sorted runs are produced as chosen by {@link RunGeneration} and merged in passes.
+	 * Passes are split between threads, but the number of passes grows with the number of runs.
+	 */
+	MERGE,
+	/**
+	 * Splitters are chosen from a sample of keys, and blocks are scattered in parallel to bucket files
+	 * of key ranges between splitters, found by binary search without sorting blocks, 
+	 * then each bucket is sorted in memory by its own thread and written to its place in the file.
+	 * Data is read and written twice and there is no merge, buckets not fitting to memory 
+	 * are partitioned again.
+	 * Run generation options are ignored.
+	 */
+	SAMPLE_SORT,
+	/**
+	 * Blocks are scattered in parallel to bucket files by the top 8 or 9 bits of keys, 
+	 * distributed without sampling or comparisons, then buckets are sorted as by {@link #SAMPLE_SORT}.
+	 * Skewed buckets not fitting to memory are partitioned again by the next bits of their key range.
+	 * It's the fastest method for uniformly distributed keys, such as hashes, 
+	 * while {@link #SAMPLE_SORT} adapts to any distribution.
+	 */
+	RADIX_PARTITION
+}
@@ -0,0 +1,555 @@
+package com.example.parallelsort;
+
+import java.nio.ByteOrder;
+
+/**
+ * Options of parallel sort (see {@link ParallelSorter#sort(java.io.File, SortOptions)}).
+ * 
+ * Memory used by sort is limited by memory budget. 
+ * Each thread gets an equal share of the budget, which is used either by in-memory sort of one run
+ * or by buffers of one merge. So initial run size, merge fan-in and merge buffer size are derived from the budget:
+ * larger budget gives longer runs, merges of more runs at once and larger reads and writes, 
+ * and so fewer merge passes over the data.
+ *
+ * @author IVotinov
+ */
+public class SortOptions {
+	/**
+	 * Memory budget value meaning that budget is derived from max heap size.
+	 */
+	public static final long AUTO_MEMORY_BUDGET = 0;
+	/**
+	 * Default max size of memory-mapped window in bytes.
+	 */
+	public static final int DEFAULT_MAPPED_WINDOW_SIZE = 16 * 1024 * 1024;
+	/**
+	 * Default number of I/O threads, a few concurrent requests keep a disk busy.
+	 */
+	public static final int DEFAULT_IO_THREAD_COUNT = 4;
+	
+	/**
+	 * Max size of record in bytes, so that a record fits any I/O buffer.
+	 */
+	public static final int MAX_RECORD_SIZE = 16 * 1024;
+	
+	/**
+	 * Part of the max heap size used as memory budget in auto mode.
+	 */
+	static final double AUTO_MEMORY_FRACTION = 0.5;
+	/**
+	 * Memory needed for in-memory sort of a run in run sizes: the run is read to a byte buffer and sorted in an int array.
+	 * Memory needed by {@link SortKernel} itself is added to this factor.
+	 */
+	static final int RUN_MEMORY_FACTOR = 2;
+	/**
+	 * Upper bound for run size in bytes.
+	 */
+	static final int MAX_RUN_SIZE = 1 << 30;
+	/**
+	 * Upper bound for merge fan-in, each merged run keeps a file open.
+	 */
+	static final int MAX_MERGE_FAN_IN = 128;
+	/**
+	 * Lower bound for size of merge buffers in bytes.
+	 */
+	static final int MIN_IO_BUFFER_SIZE = 16 * 1024;
+	/**
+	 * Upper bound for size of merge buffers in bytes, larger buffers don't make I/O faster.
+	 */
+	static final int MAX_IO_BUFFER_SIZE = 8 * 1024 * 1024;
+
+	private KeyType keyType = KeyType.INT;
+	private int recordSize = 0;
+	private int keyOffset = 0;
+	private ByteOrder byteOrder = IOUtils.BYTE_ORDER;
+	private boolean unsigned = false;
+	private boolean descending = false;
+	private int threadCount = Runtime.getRuntime().availableProcessors();
+	private int ioThreadCount = DEFAULT_IO_THREAD_COUNT;
+	private long memoryBudget = AUTO_MEMORY_BUDGET;
+	private int mergeFanIn = 0;
+	private SortMethod sortMethod = SortMethod.MERGE;
+	private RunGeneration runGeneration = RunGeneration.BLOCK_SORT;
+	private boolean naturalRunDetection = true;
+	private SortKernel sortKernel = SortKernel.RADIX;
+	private IOBackend ioBackend = IOBackend.STREAM;
+	private boolean asyncIO = true;
+	private int mappedWindowSize = DEFAULT_MAPPED_WINDOW_SIZE;
+
+	/**
+	 * Returns type of values in sorted file.
+	 * By default it's {@link KeyType#INT}.
+	 *
+	 * @return key type
+	 */
+	public KeyType getKeyType() {
+		return keyType;
+	}
+
+	/**
+	 * Sets type of values in sorted file.
+	 * File size must be a multiple of value size.
+	 *
+	 * @param keyType key type
+	 */
+	public void setKeyType(KeyType keyType) {
+		if (keyType == null) {
+			throw new IllegalArgumentException("Key type must not be null");
+		}
+		this.keyType = keyType;
+	}
+
+	/**
+	 * Returns size of fixed-width records in sorted file.
+	 * By default it's 0, which means that file consists of bare keys.
+	 *
+	 * @return record size in bytes or 0 for bare keys
+	 */
+	public int getRecordSize() {
+		return recordSize;
+	}
+
+	/**
+	 * Sets size of fixed-width records in sorted file.
+	 * Records are ordered by key of {@link #getKeyType() key type} at {@link #getKeyOffset() key offset}
+	 * and moved as a whole, file size must be a multiple of record size.
+	 * Records are sorted by block sort only, {@link RunGeneration#REPLACEMENT_SELECTION} doesn't support them.
+	 *
+	 * @param recordSize record size in bytes, not greater than {@link #MAX_RECORD_SIZE}, or 0 for bare keys
+	 */
+	public void setRecordSize(int recordSize) {
+		if (recordSize < 0 || recordSize > MAX_RECORD_SIZE) {
+			throw new IllegalArgumentException("Record size must be from 0 to " + MAX_RECORD_SIZE + ": " + recordSize);
+		}
+		this.recordSize = recordSize;
+	}
+
+	/**
+	 * Returns offset of key in record.
+	 * By default it's 0.
+	 *
+	 * @return key offset in bytes
+	 */
+	public int getKeyOffset() {
+		return keyOffset;
+	}
+
+	/**
+	 * Sets offset of key in record, key must fit the record.
+	 * Ignored if file consists of bare keys.
+	 *
+	 * @param keyOffset key offset in bytes, must not be negative
+	 */
+	public void setKeyOffset(int keyOffset) {
+		if (keyOffset < 0) {
+			throw new IllegalArgumentException("Key offset must not be negative: " + keyOffset);
+		}
+		this.keyOffset = keyOffset;
+	}
+
+	/**
+	 * Returns byte order of keys in sorted file.
+	 * By default it's {@link IOUtils#BYTE_ORDER}.
+	 *
+	 * @return byte order
+	 */
+	public ByteOrder getByteOrder() {
+		return byteOrder;
+	}
+
+	/**
+	 * Sets byte order of keys in sorted file.
+	 * File is sorted in its own order, so it doesn't need conversion before and after the sort.
+	 * Keys are converted only when blocks are decoded for in-memory sort and merge comparisons,
+	 * for {@link ByteOrder#nativeOrder() native order} blocks are converted by plain copies.
+	 *
+	 * @param byteOrder byte order
+	 */
+	public void setByteOrder(ByteOrder byteOrder) {
+		if (byteOrder == null) {
+			throw new IllegalArgumentException("Byte order must not be null");
+		}
+		this.byteOrder = byteOrder;
+	}
+
+	/**
+	 * Checks whether integer keys are ordered as unsigned numbers.
+	 * By default it's false.
+	 *
+	 * @return true for unsigned order
+	 */
+	public boolean isUnsigned() {
+		return unsigned;
+	}
+
+	/**
+	 * Sets whether integer keys are ordered as unsigned numbers.
+	 * Floating point {@link #getKeyType() key types} don't support unsigned order.
+	 *
+	 * @param unsigned true for unsigned order
+	 */
+	public void setUnsigned(boolean unsigned) {
+		this.unsigned = unsigned;
+	}
+
+	/**
+	 * Checks whether file is sorted in descending order.
+	 * By default it's false.
+	 *
+	 * @return true for descending order
+	 */
+	public boolean isDescending() {
+		return descending;
+	}
+
+	/**
+	 * Sets whether file is sorted in descending order.
+	 * Sort order is applied when keys are decoded for block sort and merge comparisons, 
+	 * so any {@link SortKernel} sorts in this order and the output needs no extra pass.
+	 *
+	 * @param descending true for descending order
+	 */
+	public void setDescending(boolean descending) {
+		this.descending = descending;
+	}
+
+	/**
+	 * Returns number of threads used for sorting blocks and merging runs.
+	 * By default it's the number of available processors.
+	 *
+	 * @return number of threads
+	 */
+	public int getThreadCount() {
+		return threadCount;
+	}
+
+	/**
+	 * Sets number of threads used for sorting blocks and merging runs.
+	 * Memory budget is shared between these threads.
+	 *
+	 * @param threadCount number of threads, must be positive
+	 */
+	public void setThreadCount(int threadCount) {
+		if (threadCount < 1) {
+			throw new IllegalArgumentException("Thread count must be positive: " + threadCount);
+		}
+		this.threadCount = threadCount;
+	}
+
+	/**
+	 * Returns number of threads copying blocks and performing background reads and writes.
+	 * By default it's {@link #DEFAULT_IO_THREAD_COUNT}.
+	 *
+	 * @return number of I/O threads
+	 */
+	public int getIOThreadCount() {
+		return ioThreadCount;
+	}
+
+	/**
+	 * Sets number of threads copying blocks and performing background reads and writes.
+	 * These threads mostly wait for I/O, so their number is chosen for the storage rather than for processors.
+	 *
+	 * @param ioThreadCount number of I/O threads, must be positive
+	 */
+	public void setIOThreadCount(int ioThreadCount) {
+		if (ioThreadCount < 1) {
+			throw new IllegalArgumentException("I/O thread count must be positive: " + ioThreadCount);
+		}
+		this.ioThreadCount = ioThreadCount;
+	}
+
+	/**
+	 * Returns memory budget of sort.
+	 * {@link #AUTO_MEMORY_BUDGET} means that budget is a part of max heap size (this is the default).
+	 *
+	 * @return memory budget in bytes or {@link #AUTO_MEMORY_BUDGET}
+	 */
+	public long getMemoryBudget() {
+		return memoryBudget;
+	}
+
+	/**
+	 * Sets memory budget of sort.
+	 *
+	 * @param memoryBudget memory budget in bytes or {@link #AUTO_MEMORY_BUDGET}
+	 */
+	public void setMemoryBudget(long memoryBudget) {
+		if (memoryBudget < 0) {
+			throw new IllegalArgumentException("Memory budget must not be negative: " + memoryBudget);
+		}
+		this.memoryBudget = memoryBudget;
+	}
+
+	/**
+	 * Returns max number of runs merged at once.
+	 * 0 means that fan-in is chosen from memory budget (this is the default).
+	 *
+	 * @return merge fan-in or 0
+	 */
+	public int getMergeFanIn() {
+		return mergeFanIn;
+	}
+
+	/**
+	 * Sets max number of runs merged at once.
+	 *
+	 * @param mergeFanIn merge fan-in, at least 2, or 0 to choose it from memory budget
+	 */
+	public void setMergeFanIn(int mergeFanIn) {
+		if (mergeFanIn != 0 && mergeFanIn < 2) {
+			throw new IllegalArgumentException("Merge fan-in must be at least 2: " + mergeFanIn);
+		}
+		this.mergeFanIn = mergeFanIn;
+	}
+
+	/**
+	 * Returns algorithm sorting a file.
+	 * By default it's {@link SortMethod#MERGE}.
+	 *
+	 * @return sort method
+	 */
+	public SortMethod getSortMethod() {
+		return sortMethod;
+	}
+
+	/**
+	 * Sets algorithm sorting a file.
+	 *
+	 * @param sortMethod sort method
+	 */
+	public void setSortMethod(SortMethod sortMethod) {
+		if (sortMethod == null) {
+			throw new IllegalArgumentException("Sort method must not be null");
+		}
+		this.sortMethod = sortMethod;
+	}
+
+	/**
+	 * Returns the way initial sorted runs are produced.
+	 * By default it's {@link RunGeneration#BLOCK_SORT}.
+	 *
+	 * @return run generation method
+	 */
+	public RunGeneration getRunGeneration() {
+		return runGeneration;
+	}
+
+	/**
+	 * Sets the way initial sorted runs are produced.
+	 *
+	 * @param runGeneration run generation method
+	 */
+	public void setRunGeneration(RunGeneration runGeneration) {
+		if (runGeneration == null) {
+			throw new IllegalArgumentException("Run generation must not be null");
+		}
+		this.runGeneration = runGeneration;
+	}
+
+	/**
+	 * Returns true if ascending and descending blocks are detected and coalesced into natural runs
+	 * by {@link RunGeneration#BLOCK_SORT} run generation.
+	 * This is on by default.
+	 *
+	 * @return true if natural runs are detected
+	 */
+	public boolean isNaturalRunDetection() {
+		return naturalRunDetection;
+	}
+
+	/**
+	 * Sets whether ascending and descending blocks are detected and coalesced into natural runs
+	 * by {@link RunGeneration#BLOCK_SORT} run generation.
+	 * With detection sorted input is only read once, and reversed input is reversed in a single pass,
+	 * but merges can't start before all blocks are sorted.
+	 *
+	 * @param naturalRunDetection true if natural runs must be detected
+	 */
+	public void setNaturalRunDetection(boolean naturalRunDetection) {
+		this.naturalRunDetection = naturalRunDetection;
+	}
+
+	/**
+	 * Returns algorithm sorting blocks in memory.
+	 * By default it's {@link SortKernel#RADIX}.
+	 *
+	 * @return sort kernel
+	 */
+	public SortKernel getSortKernel() {
+		return sortKernel;
+	}
+
+	/**
+	 * Sets algorithm sorting blocks in memory.
+	 * Kernel needing extra memory gives shorter runs for the same memory budget.
+	 *
+	 * @param sortKernel sort kernel
+	 */
+	public void setSortKernel(SortKernel sortKernel) {
+		if (sortKernel == null) {
+			throw new IllegalArgumentException("Sort kernel must not be null");
+		}
+		this.sortKernel = sortKernel;
+	}
+
+	/**
+	 * Returns the way merge passes read and write files.
+	 * By default it's {@link IOBackend#STREAM}.
+	 *
+	 * @return I/O backend
+	 */
+	public IOBackend getIOBackend() {
+		return ioBackend;
+	}
+
+	/**
+	 * Sets the way merge passes read and write files.
+	 *
+	 * @param ioBackend I/O backend
+	 */
+	public void setIOBackend(IOBackend ioBackend) {
+		if (ioBackend == null) {
+			throw new IllegalArgumentException("I/O backend must not be null");
+		}
+		this.ioBackend = ioBackend;
+	}
+
+	/**
+	 * Returns true if readers prefetch next buffer and writers flush previous buffer in background.
+	 * This is on by default.
+	 *
+	 * @return true if I/O is performed in background
+	 */
+	public boolean isAsyncIO() {
+		return asyncIO;
+	}
+
+	/**
+	 * Sets whether readers prefetch next buffer and writers flush previous buffer in background,
+	 * so merges don't stall on buffer boundaries.
+	 * Background I/O needs two buffers per reader and writer, so buffers are twice smaller for the same memory budget.
+	 *
+	 * @param asyncIO true if I/O must be performed in background
+	 */
+	public void setAsyncIO(boolean asyncIO) {
+		this.asyncIO = asyncIO;
+	}
+
+	/**
+	 * Returns max size of window mapped by {@link IOBackend#MAPPED} backend.
+	 *
+	 * @return window size in bytes
+	 */
+	public int getMappedWindowSize() {
+		return mappedWindowSize;
+	}
+
+	/**
+	 * Sets max size of window mapped by {@link IOBackend#MAPPED} backend.
+	 * Smaller windows use less address space, larger windows are remapped less often.
+	 * Window is rounded down to a multiple of value size.
+	 *
+	 * @param mappedWindowSize window size in bytes, must be a positive multiple of {@link IOUtils#INT_SIZE}
+	 */
+	public void setMappedWindowSize(int mappedWindowSize) {
+		if (mappedWindowSize <= 0 || mappedWindowSize % IOUtils.INT_SIZE != 0) {
+			throw new IllegalArgumentException("Window size must be a positive multiple of " + IOUtils.INT_SIZE + ": " + mappedWindowSize);
+		}
+		this.mappedWindowSize = mappedWindowSize;
+	}
+
+	/**
+	 * Returns format of values in sorted file.
+	 *
+	 * @return record format
+	 * @throws IllegalArgumentException if key doesn't fit the record
+	 */
+	RecordFormat getRecordFormat() {
+		if (recordSize == 0) {
+			return new RecordFormat(keyType, keyType.getSize(), 0, byteOrder, unsigned, descending);
+		}
+		return new RecordFormat(keyType, recordSize, keyOffset, byteOrder, unsigned, descending);
+	}
+
+	/**
+	 * Returns memory budget resolving auto mode.
+	 *
+	 * @return memory budget in bytes
+	 */
+	long getEffectiveMemoryBudget() {
+		if (memoryBudget != AUTO_MEMORY_BUDGET) {
+			return memoryBudget;
+		}
+		return (long) (Runtime.getRuntime().maxMemory() * AUTO_MEMORY_FRACTION);
+	}
+	
+	/**
+	 * Returns share of memory budget available to one thread.
+	 *
+	 * @return memory in bytes
+	 */
+	private long getThreadMemory() {
+		return getEffectiveMemoryBudget() / threadCount;
+	}
+
+	/**
+	 * Returns number of values in runs produced by in-memory sort.
+	 *
+	 * @return run size
+	 */
+	int getRunSize() {
+		RecordFormat format = getRecordFormat();
+		// bytes of values of the run
+		long size = getThreadMemory() * format.getSize() / format.getBlockMemory(sortKernel.getExtraMemoryFactor());
+		size = Math.max(MIN_IO_BUFFER_SIZE, Math.min(MAX_RUN_SIZE, size));
+		return (int) (size / format.getSize());
+	}
+
+	/**
+	 * Returns number of values in replacement selection heap.
+	 * Heap keeps a long key and a run number per value and shares thread's memory with reader and writer buffers.
+	 * Mapped windows take no memory of the budget, so heap isn't reduced for them.
+	 *
+	 * @return heap size
+	 */
+	int getSelectionHeapSize() {
+		if (ioBackend.getBufferCount(asyncIO) == 0) {
+			return getRunSize();
+		}
+		return Math.max(1, getRunSize() - getIOBufferSize() / getRecordFormat().getSize());
+	}
+
+	/**
+	 * Returns max number of runs merged at once resolving auto mode.
+	 * In auto mode fan-in is the number of default size buffers fitting to thread's share of budget
+	 * without one buffer used for output.
+	 *
+	 * @return merge fan-in
+	 */
+	int getEffectiveMergeFanIn() {
+		if (mergeFanIn != 0) {
+			return mergeFanIn;
+		}
+		long buffers = getThreadMemory() / IOUtils.BUFFER_SIZE;
+		return (int) Math.max(2, Math.min(MAX_MERGE_FAN_IN, buffers - 1));
+	}
+
+	/**
+	 * Returns size of buffer or window used by chosen I/O backend for each merged run and merge output.
+	 * For buffered backend it's thread's share of budget divided between buffers of a merge. 
+	 *
+	 * @return buffer size in bytes
+	 */
+	int getIOBufferSize() {
+		// values must not cross boundaries of buffers
+		int valueSize = getRecordFormat().getSize();
+		int buffersPerStream = ioBackend.getBufferCount(asyncIO);
+		if (buffersPerStream == 0) {
+			return Math.max(valueSize, mappedWindowSize - mappedWindowSize % valueSize);
+		}
+		long size = getThreadMemory() / ((getEffectiveMergeFanIn() + 1) * buffersPerStream);
+		size = Math.max(MIN_IO_BUFFER_SIZE, Math.min(MAX_IO_BUFFER_SIZE, size));
+		return (int) (size - size % valueSize);
+	}
+}
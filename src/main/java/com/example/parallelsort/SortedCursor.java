@@ -0,0 +1,206 @@
+package com.example.parallelsort;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutorService;
+
+import com.example.parallelsort.IOUtils.BufferSink;
+import com.example.parallelsort.IOUtils.KeyReader;
+import com.example.parallelsort.IOUtils.KeyWriter;
+
+/**
+ * Cursor over sorted values, performing the last merge of sorted runs as values are consumed,
+ * so sorted data is never written to a file and read back.
+ * Values are merged to a buffer in batches, which are consumed either value by value
+ * or as a whole by {@link #nextBatch()}, for example as {@link java.nio.IntBuffer} of integers.
+ * Cursor holds threads, memory and temporary files of the sort, so it must be closed.
+ * It's not thread-safe.
+ *
+ * @author IVotinov
+ * @see ParallelSorter#openCursor(File, SortOptions)
+ */
+public final class SortedCursor implements Closeable {
+	private final RecordFormat format;
+	private final KeyReader[] readers;
+	private final LoserTree tree;
+	// merged values between position and limit, in byte order of the file
+	private final ByteBuffer batch;
+	private final KeyWriter writer;
+	private final BufferPool.Lease lease;
+	private final SortContext context;
+	private final ExecutorService executor;
+	private final File[] tempFiles;
+
+	/**
+	 * Constructs new SortedCursor taking ownership of resources of the sort.
+	 *
+	 * @param readers opened readers of sorted runs
+	 * @param lease lease holding I/O buffers of the readers and the buffer for batches
+	 * @param batch buffer for batches of merged values
+	 * @param context context of the sort
+	 * @param executor executor of sorting threads
+	 * @param tempFiles temporary files of the sort, null elements are ignored
+	 * @throws IOException
+	 */
+	SortedCursor(KeyReader[] readers, BufferPool.Lease lease, ByteBuffer batch, SortContext context,
+			ExecutorService executor, File... tempFiles) throws IOException {
+		this.format = context.getOptions().getRecordFormat();
+		this.readers = readers;
+		this.tree = new LoserTree(readers);
+		this.batch = batch;
+		this.writer = format.newWriter(new BufferSink(batch));
+		this.lease = lease;
+		this.context = context;
+		this.executor = executor;
+		this.tempFiles = tempFiles;
+		batch.limit(0);
+	}
+
+	/**
+	 * Returns true if there are values left.
+	 *
+	 * @return true if there are values left
+	 * @throws IOException
+	 */
+	public boolean hasNext() throws IOException {
+		return fill();
+	}
+
+	/**
+	 * Returns next value of {@link KeyType#INT} keys.
+	 * If there are no more values {@link NoSuchElementException} is thrown.
+	 *
+	 * @return next value
+	 * @throws IOException
+	 */
+	public int nextInt() throws IOException {
+		next(KeyType.INT);
+		return batch.getInt();
+	}
+
+	/**
+	 * Returns next value of {@link KeyType#LONG} keys, see {@link #nextInt()}.
+	 *
+	 * @return next value
+	 * @throws IOException
+	 */
+	public long nextLong() throws IOException {
+		next(KeyType.LONG);
+		return batch.getLong();
+	}
+
+	/**
+	 * Returns next value of {@link KeyType#FLOAT} keys, see {@link #nextInt()}.
+	 *
+	 * @return next value
+	 * @throws IOException
+	 */
+	public float nextFloat() throws IOException {
+		next(KeyType.FLOAT);
+		return batch.getFloat();
+	}
+
+	/**
+	 * Returns next value of {@link KeyType#DOUBLE} keys, see {@link #nextInt()}.
+	 *
+	 * @return next value
+	 * @throws IOException
+	 */
+	public double nextDouble() throws IOException {
+		next(KeyType.DOUBLE);
+		return batch.getDouble();
+	}
+
+	/**
+	 * Returns next batch of values, consuming them.
+	 * Batch holds whole values, bare keys or records, between its position and limit,
+	 * in byte order of sorted data, which is the order of returned buffer.
+	 * Batch is valid until the next call of any method of this cursor.
+	 *
+	 * @return next batch of values or null if there are no values left
+	 * @throws IOException
+	 */
+	public ByteBuffer nextBatch() throws IOException {
+		if (!fill()) {
+			return null;
+		}
+		ByteBuffer result = batch.duplicate().order(batch.order());
+		batch.position(batch.limit());
+		return result;
+	}
+
+	/**
+	 * Writes all remaining values to given channel.
+	 *
+	 * @param channel blocking channel to write to, it's not closed
+	 * @throws IOException
+	 */
+	public void transferTo(WritableByteChannel channel) throws IOException {
+		for (ByteBuffer b = nextBatch(); b != null; b = nextBatch()) {
+			while (b.hasRemaining()) {
+				channel.write(b);
+			}
+		}
+	}
+
+	/**
+	 * Stops threads of the sort, releases its memory and deletes its temporary files.
+	 */
+	public void close() throws IOException {
+		try {
+			try {
+				for (KeyReader reader : readers) {
+					reader.close();
+				}
+			} finally {
+				context.getBufferPool().release(lease);
+				context.close();
+			}
+		} finally {
+			executor.shutdown();
+			for (File file : tempFiles) {
+				if (file != null) {
+					file.delete();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Makes sure that next value of given type is at position of the batch.
+	 *
+	 * @param keyType type of bare keys expected by the caller
+	 * @throws IOException
+	 */
+	private void next(KeyType keyType) throws IOException {
+		if (format.isRecord() || format.getKeyType() != keyType) {
+			throw new IllegalStateException("Values are not bare keys of " + keyType);
+		}
+		if (!fill()) {
+			throw new NoSuchElementException();
+		}
+	}
+
+	/**
+	 * Merges next batch of values if the current one is consumed.
+	 *
+	 * @return true if there are values in the batch
+	 * @throws IOException
+	 */
+	private boolean fill() throws IOException {
+		if (!batch.hasRemaining()) {
+			batch.clear();
+			int size = format.getSize();
+			while (batch.remaining() >= size && tree.hasNext()) {
+				// batches are merged only while they have room for a value, so the sink is never flushed
+				tree.transferNext(writer);
+			}
+			batch.flip();
+		}
+		return batch.hasRemaining();
+	}
+}
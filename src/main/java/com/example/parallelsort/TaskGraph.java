@@ -0,0 +1,200 @@
+package com.example.parallelsort;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Graph of dependent tasks executed by {@link Executor}s.
+ * A task is submitted to an executor only when all tasks it depends on are completed,
+ * so executor threads never wait for other tasks and are always doing useful work.
+ * Tasks bound by I/O are submitted to a separate executor, so they don't occupy threads sized for CPU work.
+ * Tasks may be added while the graph is executed, including from inside running tasks.
+ * If a task fails, tasks that are not submitted yet are never submitted.
+ *
+ * @author IVotinov
+ */
+final class TaskGraph {
+	private final Executor executor;
+	private final Executor ioExecutor;
+	private final Object lock = new Object();
+	// tasks added to the graph and not completed yet
+	private int unfinished = 0;
+	// tasks submitted to the executor and not completed yet
+	private int running = 0;
+	private Throwable failure;
+
+	/**
+	 * Constructs new TaskGraph executing all tasks by one executor.
+	 *
+	 * @param executor executor that will execute tasks
+	 */
+	public TaskGraph(Executor executor) {
+		this(executor, executor);
+	}
+
+	/**
+	 * Constructs new TaskGraph.
+	 *
+	 * @param executor executor that will execute tasks bound by CPU
+	 * @param ioExecutor executor that will execute tasks {@link Task#isIOBound() bound by I/O}
+	 */
+	public TaskGraph(Executor executor, Executor ioExecutor) {
+		this.executor = executor;
+		this.ioExecutor = ioExecutor;
+	}
+
+	/**
+	 * Adds a task that will be submitted when given tasks are completed.
+	 *
+	 * @param task task to add
+	 * @param dependencies tasks on whose completion the task depends
+	 * @return added task
+	 */
+	public <T extends Task> T add(T task, List<? extends Task> dependencies) {
+		Task t = task;
+		if (t.graph != null) {
+			throw new IllegalStateException("Task is already added");
+		}
+		t.graph = this;
+		synchronized (lock) {
+			unfinished++;
+		}
+		for (Task d : dependencies) {
+			d.addDependent(t);
+		}
+		t.release();
+		return task;
+	}
+
+	/**
+	 * Adds a task that doesn't depend on other tasks, so it's submitted immediately.
+	 *
+	 * @param task task to add
+	 * @return added task
+	 */
+	public <T extends Task> T add(T task) {
+		return add(task, new ArrayList<Task>(0));
+	}
+
+	/**
+	 * Waits until all tasks added to the graph are completed.
+	 * If a task fails, this method waits until running tasks are completed
+	 * and throws {@link ExecutionException} with the first failure as a cause.
+	 *
+	 * @throws ExecutionException if any task failed
+	 * @throws InterruptedException
+	 */
+	public void await() throws ExecutionException, InterruptedException {
+		synchronized (lock) {
+			while (unfinished > 0 && (failure == null || running > 0)) {
+				lock.wait();
+			}
+			if (failure != null) {
+				throw new ExecutionException(failure);
+			}
+		}
+	}
+
+	/**
+	 * Checks whether a task has failed, so tasks added from now on are never submitted.
+	 *
+	 * @return true if any task failed
+	 */
+	public boolean isFailed() {
+		synchronized (lock) {
+			return failure != null;
+		}
+	}
+
+	private void submit(Task task) {
+		synchronized (lock) {
+			if (failure != null) {
+				return;
+			}
+			running++;
+		}
+		(task.isIOBound() ? ioExecutor : executor).execute(task);
+	}
+
+	private void completed(Throwable e) {
+		synchronized (lock) {
+			running--;
+			if (e == null) {
+				unfinished--;
+			} else if (failure == null) {
+				failure = e;
+			}
+			lock.notifyAll();
+		}
+	}
+
+	/**
+	 * Task of {@link TaskGraph}.
+	 *
+	 * @author IVotinov
+	 */
+	abstract static class Task implements Runnable {
+		private TaskGraph graph;
+		// number of uncompleted dependencies, plus one until the task is added to the graph
+		private final AtomicInteger pending = new AtomicInteger(1);
+		// dependent tasks, null after this task is completed
+		private List<Task> dependents = new ArrayList<Task>(1);
+
+		/**
+		 * Performs the task.
+		 *
+		 * @throws Exception if task fails
+		 */
+		protected abstract void execute() throws Exception;
+
+		/**
+		 * Returns true if the task mostly waits for I/O and must be executed by I/O executor of the graph.
+		 * Such task must not wait for memory or other resources held by CPU tasks.
+		 *
+		 * @return true if task is bound by I/O
+		 */
+		protected boolean isIOBound() {
+			return false;
+		}
+
+		/**
+		 * Executes the task and submits dependent tasks that have no other uncompleted dependencies.
+		 */
+		public final void run() {
+			try {
+				execute();
+			} catch (Throwable e) {
+				graph.completed(e);
+				return;
+			}
+			List<Task> completedDependents;
+			synchronized (this) {
+				completedDependents = dependents;
+				dependents = null;
+			}
+			for (Task d : completedDependents) {
+				d.release();
+			}
+			// dependents are already counted as unfinished, so the graph can't complete before they do
+			graph.completed(null);
+		}
+
+		private void addDependent(Task task) {
+			synchronized (this) {
+				if (dependents != null) {
+					task.pending.incrementAndGet();
+					dependents.add(task);
+				}
+			}
+		}
+
+		private void release() {
+			if (pending.decrementAndGet() == 0) {
+				graph.submit(this);
+			}
+		}
+	}
+}
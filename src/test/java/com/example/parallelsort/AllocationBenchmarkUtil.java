@@ -0,0 +1,170 @@
+package com.example.parallelsort;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+
+import org.junit.Ignore;
+
+import com.example.parallelsort.IOUtils.IntReader;
+import com.example.parallelsort.IOUtils.IntWriter;
+import com.example.parallelsort.TestUtil.IntGenerator;
+
+/**
+ * Utility class for checking that hot paths don't allocate objects per processed integer.
+ * Each scenario is run for {@code n} and {@code 4 * n} integers and bytes allocated by current thread are measured,
+ * difference between these runs divided by {@code 3 * n} gives bytes allocated per integer,
+ * which must be 0 as buffers are allocated once per reader or writer.
+ * Requires HotSpot {@link com.sun.management.ThreadMXBean}.
+ *
+ * @author IVotinov
+ */
+@Ignore
+public final class AllocationBenchmarkUtil {
+	/**
+	 * Number of integers processed by the smaller run of each scenario.
+	 */
+	private static final int COUNT = 4 * 1024 * 1024;
+	/**
+	 * Number of runs merged in merge scenarios.
+	 */
+	private static final int RUNS_COUNT = 16;
+
+	private static final com.sun.management.ThreadMXBean THREAD_MX_BEAN =
+			(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+	private AllocationBenchmarkUtil() {
+	}
+
+	/**
+	 * Main method to run all scenarios and print bytes allocated per integer.
+	 *
+	 * @param args not used
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException {
+		boolean allocationFree = true;
+		allocationFree &= report("pack/unpack", new Scenario() {
+			public void run(long count) {
+				packUnpack(count);
+			}
+		});
+		for (final IOBackend backend : IOBackend.values()) {
+			allocationFree &= report("merge " + backend, new Scenario() {
+				public void run(long count) throws IOException {
+					merge(backend, count);
+				}
+			});
+		}
+		if (!allocationFree) {
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Runs scenario for {@link #COUNT} and {@code 4 * COUNT} integers and prints allocated bytes per integer.
+	 *
+	 * @param name scenario name
+	 * @param scenario scenario to run
+	 * @return true if no bytes are allocated per integer
+	 * @throws IOException
+	 */
+	private static boolean report(String name, Scenario scenario) throws IOException {
+		// warming up, so that JIT compilation and class loading don't affect results
+		scenario.run(COUNT);
+		long small = measure(scenario, COUNT);
+		long large = measure(scenario, 4L * COUNT);
+		double perInt = (double) (large - small) / (3L * COUNT);
+		System.out.println(name + ": " + small + " bytes for " + COUNT + " ints, "
+				+ large + " bytes for " + 4L * COUNT + " ints, " + perInt + " bytes per int");
+		// allow some noise from lazily allocated JDK objects
+		return perInt < 0.01;
+	}
+
+	/**
+	 * Returns number of bytes allocated by current thread while running the scenario.
+	 *
+	 * @param scenario scenario to run
+	 * @param count number of integers to process
+	 * @return allocated bytes
+	 * @throws IOException
+	 */
+	private static long measure(Scenario scenario, long count) throws IOException {
+		long threadId = Thread.currentThread().getId();
+		long before = THREAD_MX_BEAN.getThreadAllocatedBytes(threadId);
+		scenario.run(count);
+		return THREAD_MX_BEAN.getThreadAllocatedBytes(threadId) - before;
+	}
+
+	/**
+	 * Packs and unpacks given count of integers through one buffer.
+	 *
+	 * @param count number of integers
+	 */
+	private static void packUnpack(long count) {
+		byte[] buffer = new byte[IOUtils.BUFFER_SIZE];
+		long sum = 0;
+		for (long l = 0; l < count; l++) {
+			int offset = (int) (l * IOUtils.INT_SIZE % buffer.length);
+			IOUtils.pack((int) l, buffer, offset);
+			sum += IOUtils.unpack(buffer, offset);
+		}
+		// using the result, so that the loop is not removed
+		if (sum == 42) {
+			System.out.println();
+		}
+	}
+
+	/**
+	 * Merges {@link #RUNS_COUNT} sorted runs having given total count of integers.
+	 * Input file is written with {@link IntWriter}, so its creation is measured too.
+	 *
+	 * @param backend backend to read and write runs
+	 * @param count total number of integers
+	 * @throws IOException
+	 */
+	private static void merge(IOBackend backend, long count) throws IOException {
+		File in = TestUtil.createFile(IntGenerator.ASC, count);
+		File out = IOUtils.createTempFile();
+		RandomAccessFile inFile = new RandomAccessFile(in, "r");
+		RandomAccessFile outFile = new RandomAccessFile(out, "rw");
+		try {
+			long runSize = count / RUNS_COUNT;
+			int bufferSize = backend == IOBackend.MAPPED ? SortOptions.DEFAULT_MAPPED_WINDOW_SIZE : IOUtils.BUFFER_SIZE;
+			IntReader[] readers = new IntReader[RUNS_COUNT];
+			for (int i = 0; i < RUNS_COUNT; i++) {
+				readers[i] = backend.openIntReader(inFile.getChannel(), i * runSize, runSize, bufferSize, null, null);
+			}
+			IntWriter iw = backend.openIntWriter(outFile.getChannel(), 0, runSize * RUNS_COUNT, bufferSize, null, null);
+			LoserTree tree = new LoserTree(readers);
+			while (tree.hasNext()) {
+				iw.writeKey(tree.next());
+			}
+			iw.close();
+			for (IntReader ir : readers) {
+				ir.close();
+			}
+		} finally {
+			inFile.close();
+			outFile.close();
+			in.delete();
+			out.delete();
+		}
+	}
+
+	/**
+	 * Measured scenario.
+	 *
+	 * @author IVotinov
+	 */
+	private interface Scenario {
+		/**
+		 * Runs scenario for given count of integers.
+		 *
+		 * @param count number of integers
+		 * @throws IOException
+		 */
+		void run(long count) throws IOException;
+	}
+}
@@ -1,11 +1,36 @@
 package com.example.parallelsort;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import junit.framework.TestCase;
 
+import com.example.parallelsort.IOUtils.DoubleReader;
+import com.example.parallelsort.IOUtils.DoubleWriter;
+import com.example.parallelsort.IOUtils.FloatReader;
+import com.example.parallelsort.IOUtils.FloatWriter;
+import com.example.parallelsort.IOUtils.IntBlockBuffer;
+import com.example.parallelsort.IOUtils.IntReader;
+import com.example.parallelsort.IOUtils.IntWriter;
+import com.example.parallelsort.IOUtils.LongReader;
+import com.example.parallelsort.IOUtils.LongWriter;
 import com.example.parallelsort.TestUtil.IntGenerator;
 
 import org.junit.Test;
@@ -13,6 +38,8 @@ import org.junit.Test;
 public class ParrallelSorterTest extends TestCase {
 	// number of threads to test on
 	private static final int THREADS_COUNT = 4;
+	// merge fan-in giving pairwise merge passes, sizes below are chosen for this fan-in
+	private static final int PAIRWISE_FAN_IN = 2;
 	
 	// number of integers:
 	// sort ends with result in input file
@@ -93,6 +120,1080 @@ public class ParrallelSorterTest extends TestCase {
 	public void testSmallSize() throws IOException, InterruptedException, ExecutionException {
 		doTest(IntGenerator.DESC, SMALL_COUNT, true);
 	}
+
+	/**
+	 * Tests k-way merge with fan-ins leaving partial groups and single runs on merge passes.
+	 * 
+	 * @throws IOException
+	 * @throws ExecutionException 
+	 * @throws InterruptedException 
+	 */
+	@Test
+	public void testKWayMerge() throws IOException, InterruptedException, ExecutionException {
+		doTest(IntGenerator.DESC, OTHER_FILE_WITH_EXCESS_BLOCK_MIDDLE_COUNT, true, 3);
+		doTest(IntGenerator.DESC, OTHER_FILE_WITH_EXCESS_BLOCK_START_COUNT, true, 5);
+		doTest(IntGenerator.DESC, 17 * IOUtils.BUFFER_SIZE / IOUtils.INT_SIZE + 3, true, 4);
+		doTest(IntGenerator.DESC, OTHER_FILE_WITH_EXCESS_BLOCK_MIDDLE_COUNT, true, 0);
+	}
+
+	/**
+	 * Tests that {@link MergePath} splits runs with repeated values at exact ranks 
+	 * and none of values before split is greater than values after it.
+	 * 
+	 * @throws IOException
+	 */
+	@Test
+	public void testMergePathSplit() throws IOException {
+		// three sorted runs: [0, 1, 1, 1, 5], [1, 1, 2], [-3, 1, 7, 9]
+		int[] values = {0, 1, 1, 1, 5, 1, 1, 2, -3, 1, 7, 9};
+		long[] runBounds = {0, 5, 8, 12};
+		File file = IOUtils.createTempFile();
+		try {
+			IntWriter iw = new IntWriter(file, 0);
+			try {
+				for (int v : values) {
+					iw.write(v);
+				}
+			} finally {
+				iw.close();
+			}
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				for (long rank = 0; rank <= values.length; rank++) {
+					long[] split = MergePath.split(raf.getChannel(), new RecordFormat(KeyType.INT), runBounds, rank);
+					long taken = 0;
+					int maxBefore = Integer.MIN_VALUE;
+					int minAfter = Integer.MAX_VALUE;
+					for (int i = 0; i < split.length; i++) {
+						assertTrue(split[i] >= runBounds[i] && split[i] <= runBounds[i + 1]);
+						taken += split[i] - runBounds[i];
+						if (split[i] > runBounds[i]) {
+							maxBefore = Math.max(maxBefore, values[(int) split[i] - 1]);
+						}
+						if (split[i] < runBounds[i + 1]) {
+							minAfter = Math.min(minAfter, values[(int) split[i]]);
+						}
+					}
+					assertEquals(rank, taken);
+					assertTrue("rank: " + rank, maxBefore <= minAfter);
+				}
+			} finally {
+				raf.close();
+			}
+		} finally {
+			file.delete();
+		}
+	}
+
+	/**
+	 * Tests merges through memory-mapped windows, 
+	 * window size is not a divisor of run size, so windows are remapped in the middle of runs.
+	 * 
+	 * @throws IOException
+	 * @throws ExecutionException 
+	 * @throws InterruptedException 
+	 */
+	@Test
+	public void testMappedBackend() throws IOException, InterruptedException, ExecutionException {
+		SortOptions options = createOptions(3);
+		options.setIOBackend(IOBackend.MAPPED);
+		options.setMappedWindowSize(12 * 1024);
+		doTest(IntGenerator.DESC, OTHER_FILE_WITH_EXCESS_BLOCK_START_COUNT, true, options);
+		doTest(IntGenerator.DESC, SMALL_COUNT, true, options);
+		options.setMergeFanIn(0);
+		doTest(IntGenerator.DESC, OTHER_FILE_WITH_EXCESS_BLOCK_MIDDLE_COUNT, true, options);
+	}
+
+	/**
+	 * Tests background reads and writes on buffer boundaries, and sort with synchronous I/O.
+	 * 
+	 * @throws IOException
+	 * @throws ExecutionException 
+	 * @throws InterruptedException 
+	 */
+	@Test
+	public void testAsyncIO() throws IOException, InterruptedException, ExecutionException {
+		ExecutorService executor = Executors.newFixedThreadPool(1);
+		File file = IOUtils.createTempFile();
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			int count = 1001;
+			int bufferSize = 16;
+			IntWriter iw = IOBackend.STREAM.openIntWriter(raf.getChannel(), 1, count, bufferSize, null, executor);
+			try {
+				for (int i = 0; i < count; i++) {
+					iw.write(i);
+				}
+			} finally {
+				iw.close();
+			}
+			assertEquals((count + 1) * IOUtils.INT_SIZE, file.length());
+			IntReader ir = IOBackend.STREAM.openIntReader(raf.getChannel(), 1, count, bufferSize, null, executor);
+			try {
+				for (int i = 0; i < count; i++) {
+					assertTrue(ir.hasNext());
+					assertEquals(i, ir.next());
+				}
+				assertFalse(ir.hasNext());
+			} finally {
+				ir.close();
+			}
+		} finally {
+			raf.close();
+			file.delete();
+			executor.shutdown();
+		}
+		
+		SortOptions options = createOptions(3);
+		options.setAsyncIO(false);
+		doTest(IntGenerator.DESC, OTHER_FILE_WITH_EXCESS_BLOCK_START_COUNT, true, options);
+		options.setRunGeneration(RunGeneration.REPLACEMENT_SELECTION);
+		doTest(IntGenerator.DESC, SMALL_COUNT, true, options);
+	}
+
+	/**
+	 * Tests that {@link TaskGraph} runs tasks after their dependencies 
+	 * and doesn't run dependents of a failed task.
+	 * 
+	 * @throws InterruptedException 
+	 */
+	@Test
+	public void testTaskGraph() throws InterruptedException {
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			final List<String> log = Collections.synchronizedList(new ArrayList<String>());
+			TaskGraph graph = new TaskGraph(executor);
+			TaskGraph.Task first = graph.add(new LoggingTask(log, "first", false));
+			TaskGraph.Task second = graph.add(new LoggingTask(log, "second", false), Arrays.asList(first));
+			TaskGraph.Task failed = graph.add(new LoggingTask(log, "failed", true), Arrays.asList(first, second));
+			graph.add(new LoggingTask(log, "skipped", false), Arrays.asList(failed));
+			try {
+				graph.await();
+				fail("Failure expected");
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof IOException);
+			}
+			assertEquals(Arrays.asList("first", "second", "failed"), log);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Tests that {@link TaskGraph} submits tasks bound by I/O to I/O executor and other tasks to CPU executor.
+	 * 
+	 * @throws InterruptedException 
+	 * @throws ExecutionException 
+	 */
+	@Test
+	public void testIOBoundTasks() throws InterruptedException, ExecutionException {
+		ExecutorService executor = Executors.newFixedThreadPool(1);
+		ExecutorService ioExecutor = Executors.newFixedThreadPool(1);
+		try {
+			Thread ioThread = ioExecutor.submit(new Callable<Thread>() {
+				public Thread call() {
+					return Thread.currentThread();
+				}
+			}).get();
+			List<String> log = Collections.synchronizedList(new ArrayList<String>());
+			TaskGraph graph = new TaskGraph(executor, ioExecutor);
+			ThreadTask cpu = graph.add(new ThreadTask(log, "cpu", false));
+			ThreadTask io = graph.add(new ThreadTask(log, "io", true), Arrays.asList(cpu));
+			graph.await();
+			assertEquals(Arrays.asList("cpu", "io"), log);
+			assertNotSame(ioThread, cpu.thread);
+			assertSame(ioThread, io.thread);
+		} finally {
+			executor.shutdown();
+			ioExecutor.shutdown();
+		}
+	}
+
+	/**
+	 * Tests run generation by replacement selection.
+	 * 
+	 * @throws IOException
+	 * @throws ExecutionException 
+	 * @throws InterruptedException 
+	 */
+	@Test
+	public void testReplacementSelection() throws IOException, InterruptedException, ExecutionException {
+		SortOptions options = createOptions(3);
+		options.setRunGeneration(RunGeneration.REPLACEMENT_SELECTION);
+		doTest(IntGenerator.DESC, OTHER_FILE_WITH_EXCESS_BLOCK_START_COUNT, true, options);
+		doTest(IntGenerator.DESC, SMALL_COUNT, true, options);
+		options.setMergeFanIn(0);
+		doTest(IntGenerator.DESC, SAME_FILE_WITH_EXCESS_BLOCK_MIDDLE_COUNT, true, options);
+	}
+
+	/**
+	 * Tests sizes derived from memory budget and sort with auto memory budget.
+	 * 
+	 * @throws IOException
+	 * @throws ExecutionException 
+	 * @throws InterruptedException 
+	 */
+	@Test
+	public void testMemoryBudget() throws IOException, InterruptedException, ExecutionException {
+		SortOptions options = new SortOptions();
+		options.setThreadCount(2);
+		options.setMemoryBudget(128L * 1024 * 1024);
+		// 64 MB per thread, run is sorted in twice its size plus scratch array of radix sort
+		assertEquals(64 * 1024 * 1024 / 3 / IOUtils.INT_SIZE, options.getRunSize());
+		options.setSortKernel(SortKernel.COMPARISON);
+		assertEquals(32 * 1024 * 1024 / IOUtils.INT_SIZE, options.getRunSize());
+		assertEquals(SortOptions.MAX_MERGE_FAN_IN, options.getEffectiveMergeFanIn());
+		// each merged run and the output have two buffers for background I/O
+		assertEquals(64 * 1024 * 1024 / ((SortOptions.MAX_MERGE_FAN_IN + 1) * 2) / IOUtils.INT_SIZE * IOUtils.INT_SIZE, 
+				options.getIOBufferSize());
+		options.setMemoryBudget(2L * 1024 * 1024);
+		assertEquals(3, options.getEffectiveMergeFanIn());
+		assertEquals(128 * 1024, options.getIOBufferSize());
+		options.setAsyncIO(false);
+		assertEquals(256 * 1024, options.getIOBufferSize());
+		options.setMergeFanIn(7);
+		assertEquals(7, options.getEffectiveMergeFanIn());
+		assertEquals(128 * 1024, options.getIOBufferSize());
+		
+		options = new SortOptions();
+		options.setThreadCount(THREADS_COUNT);
+		assertTrue(options.getRunSize() > 0);
+		doTest(IntGenerator.DESC, OTHER_FILE_WITH_EXCESS_BLOCK_START_COUNT, true, options);
+	}
+
+	/**
+	 * Tests sort of file consisting of ascending, descending and unordered parts,
+	 * with natural run detection on and off.
+	 * 
+	 * @throws IOException
+	 * @throws ExecutionException 
+	 * @throws InterruptedException 
+	 */
+	@Test
+	public void testNaturalRuns() throws IOException, InterruptedException, ExecutionException {
+		SortOptions options = createOptions(3);
+		int blockSize = options.getRunSize();
+		long count = 9L * blockSize;
+		for (boolean detection : new boolean[] {true, false}) {
+			options.setNaturalRunDetection(detection);
+			File file = createMixedFile(blockSize);
+			try {
+				ParallelSorter.sort(file, options);
+				TestUtil.checkAsc(file, count, true);
+			} finally {
+				file.delete();
+			}
+		}
+	}
+
+	/**
+	 * Tests in-memory sort kernels on arrays of different sizes and value ranges,
+	 * and sort of a file with comparison sort kernel.
+	 * 
+	 * @throws IOException
+	 * @throws ExecutionException 
+	 * @throws InterruptedException 
+	 */
+	@Test
+	public void testSortKernel() throws IOException, InterruptedException, ExecutionException {
+		Random random = new Random(42);
+		int[] sizes = {0, 1, SortKernel.RADIX_SORT_THRESHOLD - 1, SortKernel.RADIX_SORT_THRESHOLD, 100000};
+		// masks keeping all bits, small non-negative values, only high bits, only sign bit
+		int[] masks = {-1, 0xFF, 0xFF000000, Integer.MIN_VALUE};
+		for (SortKernel kernel : SortKernel.values()) {
+			for (int size : sizes) {
+				for (int mask : masks) {
+					int[] array = new int[size];
+					for (int i = 0; i < size; i++) {
+						array[i] = random.nextInt() & mask;
+					}
+					int[] expected = array.clone();
+					Arrays.sort(expected);
+					kernel.sort(array);
+					assertTrue(kernel + " " + size + " " + mask, Arrays.equals(expected, array));
+				}
+			}
+		}
+		
+		SortOptions options = createOptions(3);
+		options.setSortKernel(SortKernel.COMPARISON);
+		doTest(IntGenerator.RANDOM, OTHER_FILE_WITH_EXCESS_BLOCK_START_COUNT, false, options);
+	}
+
+	/**
+	 * Tests sort of a file of longs with each sort kernel, run generation and I/O backend.
+	 * File has a descending block, random values of both signs and an ascending tail,
+	 * so both natural and sorted runs are merged.
+	 *
+	 * @throws IOException
+	 * @throws ExecutionException
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void testLongKeys() throws IOException, InterruptedException, ExecutionException {
+		Random random = new Random(42);
+		long[] array = new long[100000];
+		for (int i = 0; i < array.length; i++) {
+			array[i] = random.nextLong();
+		}
+		long[] expected = array.clone();
+		Arrays.sort(expected);
+		for (SortKernel kernel : SortKernel.values()) {
+			long[] sorted = array.clone();
+			kernel.sort(sorted);
+			assertTrue(kernel.toString(), Arrays.equals(expected, sorted));
+		}
+
+		SortOptions options = createOptions(3);
+		options.setKeyType(KeyType.LONG);
+		int blockSize = options.getRunSize();
+		long[] values = new long[5 * blockSize + 7];
+		for (int i = 0; i < blockSize; i++) {
+			values[i] = Long.MAX_VALUE - i;
+		}
+		for (int i = blockSize; i < 4 * blockSize; i++) {
+			values[i] = random.nextLong();
+		}
+		for (int i = 4 * blockSize; i < values.length; i++) {
+			values[i] = Long.MIN_VALUE + i;
+		}
+		doLongTest(values, options);
+		options.setSortKernel(SortKernel.COMPARISON);
+		options.setNaturalRunDetection(true);
+		doLongTest(values, options);
+		options.setRunGeneration(RunGeneration.REPLACEMENT_SELECTION);
+		doLongTest(values, options);
+		options.setIOBackend(IOBackend.MAPPED);
+		doLongTest(values, options);
+	}
+
+	/**
+	 * Tests sort of floats and doubles in total order, including infinities, NaN and both zeros,
+	 * by all sort kernels, run generation methods and both I/O backends.
+	 *
+	 * @throws IOException
+	 * @throws ExecutionException
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void testFloatingPointKeys() throws IOException, InterruptedException, ExecutionException {
+		Random random = new Random(42);
+		double[] specials = {Double.NaN, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, -0.0, 0.0, 
+				-Double.MIN_VALUE, Double.MIN_VALUE, -Float.MAX_VALUE, Float.MAX_VALUE};
+		SortOptions options = createOptions(3);
+		double[] values = new double[5 * options.getRunSize() + 7];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = i % 10 < specials.length ? specials[i % 10] : (random.nextDouble() - 0.5) * i;
+		}
+		for (KeyType type : new KeyType[] {KeyType.FLOAT, KeyType.DOUBLE}) {
+			options = createOptions(3);
+			options.setKeyType(type);
+			doFloatingPointTest(values, options);
+			options.setSortKernel(SortKernel.COMPARISON);
+			doFloatingPointTest(values, options);
+			options.setRunGeneration(RunGeneration.REPLACEMENT_SELECTION);
+			doFloatingPointTest(values, options);
+			options.setIOBackend(IOBackend.MAPPED);
+			doFloatingPointTest(values, options);
+		}
+	}
+
+	/**
+	 * Tests unsigned and descending sort orders by both sort kernels, all run generation methods
+	 * and both I/O backends, and rejection of unsigned order of floating point keys.
+	 *
+	 * @throws IOException
+	 * @throws ExecutionException
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void testSortOrder() throws IOException, InterruptedException, ExecutionException {
+		Random random = new Random(42);
+		SortOptions options = createOptions(3);
+		int[] values = new int[5 * options.getRunSize() + 7];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = i < options.getRunSize() ? i - options.getRunSize() / 2 : random.nextInt();
+		}
+		for (int mode = 1; mode < 4; mode++) {
+			options = createOptions(3);
+			options.setUnsigned((mode & 1) != 0);
+			options.setDescending((mode & 2) != 0);
+			doSortOrderTest(values, options);
+			options.setSortKernel(SortKernel.COMPARISON);
+			doSortOrderTest(values, options);
+			options.setRunGeneration(RunGeneration.REPLACEMENT_SELECTION);
+			doSortOrderTest(values, options);
+			options.setIOBackend(IOBackend.MAPPED);
+			doSortOrderTest(values, options);
+		}
+
+		options = createOptions(3);
+		options.setKeyType(KeyType.DOUBLE);
+		options.setUnsigned(true);
+		File file = IOUtils.createTempFile();
+		try {
+			ParallelSorter.sort(file, options);
+			fail("Unsigned order of doubles must be rejected");
+		} catch (IllegalArgumentException e) {
+			// expected
+		} finally {
+			file.delete();
+		}
+	}
+
+	/**
+	 * Tests streaming sort of integers and records read from a stream of unknown length, 
+	 * with even and odd numbers of intermediate merge passes and without them, and of empty and truncated streams.
+	 *
+	 * @throws IOException
+	 * @throws ExecutionException
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void testStreamingSort() throws IOException, InterruptedException, ExecutionException {
+		Random random = new Random(42);
+		SortOptions options = createOptions(3);
+		int[] values = new int[10 * options.getRunSize() + 7];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = random.nextInt();
+		}
+		int[] expected = values.clone();
+		Arrays.sort(expected);
+		ByteBuffer buffer = ByteBuffer.allocate(values.length * IOUtils.INT_SIZE);
+		buffer.asIntBuffer().put(values);
+		for (int fanIn : new int[] {3, 4, 16}) {
+			for (IOBackend backend : IOBackend.values()) {
+				options = createOptions(fanIn);
+				options.setIOBackend(backend);
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				ParallelSorter.sort(new ByteArrayInputStream(buffer.array()), out, options);
+				IntBuffer sorted = ByteBuffer.wrap(out.toByteArray()).asIntBuffer();
+				assertEquals(expected.length, sorted.remaining());
+				for (int i = 0; i < expected.length; i++) {
+					assertEquals(fanIn + " " + backend + " index: " + i, expected[i], sorted.get(i));
+				}
+			}
+		}
+
+		options = createOptions(3);
+		options.setRecordSize(8);
+		options.setDescending(true);
+		ByteBuffer records = ByteBuffer.allocate(values.length * 8);
+		for (int i = 0; i < values.length; i++) {
+			records.putInt(values[i]).putInt(i);
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ParallelSorter.sort(new ByteArrayInputStream(records.array()), out, options);
+		ByteBuffer sorted = ByteBuffer.wrap(out.toByteArray());
+		assertEquals(records.capacity(), sorted.capacity());
+		for (int i = 0; i < values.length; i++) {
+			int key = sorted.getInt(i * 8);
+			assertEquals(expected[values.length - 1 - i], key);
+			assertEquals(values[sorted.getInt(i * 8 + 4)], key);
+		}
+
+		out = new ByteArrayOutputStream();
+		ParallelSorter.sort(new ByteArrayInputStream(new byte[0]), out, createOptions(3));
+		assertEquals(0, out.size());
+		try {
+			ParallelSorter.sort(new ByteArrayInputStream(new byte[6]), out, createOptions(3));
+			fail("Stream ending inside a value must be rejected");
+		} catch (EOFException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * Tests cursor over sorted file consumed value by value and in batches, 
+	 * with and without intermediate merge passes, leaving input file intact.
+	 *
+	 * @throws IOException
+	 * @throws ExecutionException
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void testSortedCursor() throws IOException, InterruptedException, ExecutionException {
+		Random random = new Random(42);
+		SortOptions options = createOptions(3);
+		long[] values = new long[10 * options.getRunSize() + 7];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = random.nextInt();
+		}
+		long[] expected = values.clone();
+		Arrays.sort(expected);
+		File file = IOUtils.createTempFile();
+		try {
+			IntWriter iw = new IntWriter(file, 0);
+			try {
+				for (long value : values) {
+					iw.write((int) value);
+				}
+			} finally {
+				iw.close();
+			}
+			for (int fanIn : new int[] {3, 4, 16}) {
+				for (IOBackend backend : IOBackend.values()) {
+					options = createOptions(fanIn);
+					options.setIOBackend(backend);
+					SortedCursor cursor = ParallelSorter.openCursor(file, options);
+					try {
+						for (int i = 0; i < expected.length; i++) {
+							assertTrue(cursor.hasNext());
+							assertEquals(fanIn + " " + backend + " index: " + i, expected[i], cursor.nextInt());
+						}
+						assertFalse(cursor.hasNext());
+					} finally {
+						cursor.close();
+					}
+				}
+			}
+			IntReader ir = new IntReader(file, 0, values.length);
+			try {
+				for (long value : values) {
+					assertEquals(value, ir.next());
+				}
+			} finally {
+				ir.close();
+			}
+
+			options = createOptions(3);
+			SortedCursor cursor = ParallelSorter.openCursor(file, options);
+			try {
+				try {
+					cursor.nextLong();
+					fail("Reading longs from cursor over integers must be rejected");
+				} catch (IllegalStateException e) {
+					// expected
+				}
+				int i = 0;
+				for (ByteBuffer batch = cursor.nextBatch(); batch != null; batch = cursor.nextBatch()) {
+					IntBuffer ints = batch.asIntBuffer();
+					while (ints.hasRemaining()) {
+						assertEquals("index: " + i, expected[i++], ints.get());
+					}
+				}
+				assertEquals(expected.length, i);
+			} finally {
+				cursor.close();
+			}
+		} finally {
+			file.delete();
+		}
+
+		file = IOUtils.createTempFile();
+		try {
+			SortedCursor cursor = ParallelSorter.openCursor(file, createOptions(3));
+			try {
+				assertFalse(cursor.hasNext());
+				assertNull(cursor.nextBatch());
+			} finally {
+				cursor.close();
+			}
+		} finally {
+			file.delete();
+		}
+	}
+
+	/**
+	 * Tests sample sort of integers, longs and records in all sort orders, of frequent keys 
+	 * getting buckets of their own, and of a file whose buckets exceed memory and are partitioned again.
+	 *
+	 * @throws IOException
+	 * @throws ExecutionException
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void testSampleSort() throws IOException, InterruptedException, ExecutionException {
+		SortOptions options = createOptions(3);
+		options.setSortMethod(SortMethod.SAMPLE_SORT);
+		doTest(IntGenerator.RANDOM, OTHER_FILE_WITH_EXCESS_BLOCK_MIDDLE_COUNT, false, options);
+		doTest(IntGenerator.DESC, SAME_FILE_WITH_EXCESS_BLOCK_START_COUNT, true, options);
+		doTest(IntGenerator.ASC, SMALL_COUNT, true, options);
+
+		Random random = new Random(42);
+		int[] values = new int[5 * options.getRunSize() + 7];
+		for (int i = 0; i < values.length; i++) {
+			// most values are one of two keys, the rest are spread
+			int r = random.nextInt(10);
+			values[i] = r < 4 ? 7 : r < 8 ? 8 : random.nextInt();
+		}
+		for (int mode = 0; mode < 4; mode++) {
+			options.setUnsigned((mode & 1) != 0);
+			options.setDescending((mode & 2) != 0);
+			doSortOrderTest(values, options);
+		}
+
+		options = createOptions(3);
+		options.setSortMethod(SortMethod.SAMPLE_SORT);
+		options.setSortKernel(SortKernel.COMPARISON);
+		options.setKeyType(KeyType.LONG);
+		long[] longs = new long[3 * options.getRunSize() + 1];
+		for (int i = 0; i < longs.length; i++) {
+			longs[i] = i % 3 == 0 ? Long.MIN_VALUE + i : i % 3 == 1 ? Long.MAX_VALUE - i : random.nextLong();
+		}
+		doLongTest(longs, options);
+		options.setRecordSize(16);
+		for (int i = 0; i < longs.length; i++) {
+			longs[i] = random.nextInt(100);
+		}
+		doRecordTest(longs, options);
+		for (int i = 0; i < longs.length; i++) {
+			// a frequent key is chosen as several splitters, so it gets a bucket of its own
+			longs[i] = random.nextInt(10) < 7 ? 5 : random.nextInt(1000) - 500;
+		}
+		doRecordTest(longs, options);
+
+		// scatter moves keys to buckets between splitters without sorting them
+		int[] keys = new int[1000];
+		ByteBuffer bytes = ByteBuffer.allocate(keys.length * IOUtils.INT_SIZE).order(IOUtils.BYTE_ORDER);
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = random.nextInt(10) < 5 ? 5 : random.nextInt(20);
+			bytes.putInt(keys[i]);
+		}
+		IntBlockBuffer block = new IntBlockBuffer(ByteBuffer.allocate(bytes.capacity()), new int[keys.length], 
+				new int[keys.length]);
+		block.read(Channels.newChannel(new ByteArrayInputStream(bytes.array())), keys.length);
+		long[] splitters = {4, 5, 10};
+		int[] bounds = new int[splitters.length + 2];
+		block.partition(keys.length, splitters, bounds);
+		assertEquals(0, bounds[0]);
+		assertEquals(keys.length, bounds[bounds.length - 1]);
+		for (int b = 0; b < bounds.length - 1; b++) {
+			for (int i = bounds[b]; i < bounds[b + 1]; i++) {
+				long key = block.getKey(i);
+				assertTrue("index: " + i, b == 0 || key > splitters[b - 1]);
+				assertTrue("index: " + i, b == splitters.length || key <= splitters[b]);
+			}
+		}
+		// bucket between splitters 4 and 5 holds the frequent key only
+		assertTrue(bounds[2] - bounds[1] >= keys.length / 3);
+		int[] partitioned = Arrays.copyOf(block.array(), keys.length);
+		Arrays.sort(partitioned);
+		Arrays.sort(keys);
+		assertTrue(Arrays.equals(keys, partitioned));
+
+		// the smallest memory makes more blocks than buckets, so buckets are partitioned again
+		options = createOptions(3);
+		options.setSortMethod(SortMethod.SAMPLE_SORT);
+		options.setMemoryBudget(1);
+		doTest(IntGenerator.RANDOM, 600L * options.getRunSize(), false, options);
+	}
+
+	/**
+	 * Tests radix partitioning of integers in all sort orders, of longs and records with skewed keys 
+	 * whose buckets are partitioned again, and of keys having a few distinct values.
+	 *
+	 * @throws IOException
+	 * @throws ExecutionException
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void testRadixPartition() throws IOException, InterruptedException, ExecutionException {
+		SortOptions options = createOptions(3);
+		options.setSortMethod(SortMethod.RADIX_PARTITION);
+		doTest(IntGenerator.RANDOM, OTHER_FILE_WITH_EXCESS_BLOCK_MIDDLE_COUNT, false, options);
+		doTest(IntGenerator.ASC, SAME_FILE_WITH_EXCESS_BLOCK_START_COUNT, true, options);
+		doTest(IntGenerator.DESC, SMALL_COUNT, true, options);
+
+		Random random = new Random(42);
+		int[] values = new int[5 * options.getRunSize() + 7];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = random.nextInt();
+		}
+		for (int mode = 1; mode < 4; mode++) {
+			options.setUnsigned((mode & 1) != 0);
+			options.setDescending((mode & 2) != 0);
+			doSortOrderTest(values, options);
+		}
+
+		options = createOptions(3);
+		options.setSortMethod(SortMethod.RADIX_PARTITION);
+		options.setSortKernel(SortKernel.COMPARISON);
+		options.setKeyType(KeyType.LONG);
+		long[] longs = new long[4 * options.getRunSize() + 1];
+		for (int i = 0; i < longs.length; i++) {
+			// most keys share the top bits, so their bucket is partitioned by the next bits
+			longs[i] = i % 4 == 0 ? random.nextLong() : random.nextInt(1000000);
+		}
+		doLongTest(longs, options);
+		options.setRecordSize(16);
+		doRecordTest(longs, options);
+		for (int i = 0; i < longs.length; i++) {
+			longs[i] = random.nextInt(3);
+		}
+		doRecordTest(longs, options);
+	}
+
+	/**
+	 * Tests sort of fixed-width records keeping their payload,
+	 * with long keys at the start of records and integer keys in the middle of records.
+	 *
+	 * @throws IOException
+	 * @throws ExecutionException
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void testSelectFirst() throws IOException, InterruptedException, ExecutionException {
+		Random random = new Random(42);
+		SortOptions options = createOptions(3);
+		long[] values = new long[10 * options.getRunSize() + 7];
+		for (int i = 0; i < values.length; i++) {
+			// duplicates around the K-th value must be selected as well
+			values[i] = random.nextInt(values.length / 4);
+		}
+		long[] expected = values.clone();
+		Arrays.sort(expected);
+		File file = IOUtils.createTempFile();
+		try {
+			IntWriter iw = new IntWriter(file, 0);
+			try {
+				for (long value : values) {
+					iw.write((int) value);
+				}
+			} finally {
+				iw.close();
+			}
+			// a quarter of values makes segments of 3 threads shorter than 2K
+			for (int k : new int[] {0, 1, 100, options.getRunSize() + 3, values.length / 4, values.length + 5}) {
+				for (IOBackend backend : IOBackend.values()) {
+					for (boolean descending : new boolean[] {false, true}) {
+						options = createOptions(3);
+						options.setIOBackend(backend);
+						options.setDescending(descending);
+						IntBuffer selected = ParallelSorter.selectFirst(file, k, options).asIntBuffer();
+						assertEquals(Math.min(k, values.length), selected.remaining());
+						for (int i = 0; i < selected.remaining(); i++) {
+							long value = descending ? expected[expected.length - 1 - i] : expected[i];
+							assertEquals(k + " " + backend + " " + descending + " index: " + i, value, selected.get(i));
+						}
+					}
+				}
+			}
+			IntReader ir = new IntReader(file, 0, values.length);
+			try {
+				for (long value : values) {
+					assertEquals(value, ir.next());
+				}
+			} finally {
+				ir.close();
+			}
+		} finally {
+			file.delete();
+		}
+
+		// records keep their payload
+		options = createOptions(3);
+		options.setKeyType(KeyType.LONG);
+		options.setRecordSize(16);
+		long[] keys = new long[3 * options.getRunSize()];
+		File records = IOUtils.createTempFile();
+		try {
+			ByteBuffer data = ByteBuffer.allocate(keys.length * 16);
+			for (int i = 0; i < keys.length; i++) {
+				keys[i] = random.nextLong();
+				data.putLong(keys[i]).putLong(~keys[i]);
+			}
+			RandomAccessFile raf = new RandomAccessFile(records, "rw");
+			try {
+				raf.write(data.array());
+			} finally {
+				raf.close();
+			}
+			Arrays.sort(keys);
+			ByteBuffer selected = ParallelSorter.selectFirst(records, 1000, options);
+			assertEquals(1000 * 16, selected.remaining());
+			for (int i = 0; i < 1000; i++) {
+				assertEquals("index: " + i, keys[i], selected.getLong());
+				assertEquals(~keys[i], selected.getLong());
+			}
+		} finally {
+			records.delete();
+		}
+
+		try {
+			ParallelSorter.selectFirst(records, -1, options);
+			fail("Negative K must be rejected");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testQuantiles() throws IOException, InterruptedException, ExecutionException {
+		Random random = new Random(42);
+		SortOptions options = createOptions(3);
+		long[] values = new long[10 * options.getRunSize() + 7];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = random.nextInt(values.length / 4) - values.length / 8;
+		}
+		long[] expected = values.clone();
+		Arrays.sort(expected);
+		double[] fractions = {0, 0.001, 0.5, 0.99, 0.999, 1};
+		File file = IOUtils.createTempFile();
+		try {
+			IntWriter iw = new IntWriter(file, 0);
+			try {
+				for (long value : values) {
+					iw.write((int) value);
+				}
+			} finally {
+				iw.close();
+			}
+			for (IOBackend backend : IOBackend.values()) {
+				for (boolean descending : new boolean[] {false, true}) {
+					options = createOptions(3);
+					options.setIOBackend(backend);
+					options.setDescending(descending);
+					IntBuffer exact = ParallelSorter.quantiles(file, fractions, true, options).asIntBuffer();
+					IntBuffer approximate = ParallelSorter.quantiles(file, fractions, false, options).asIntBuffer();
+					assertEquals(fractions.length, exact.remaining());
+					assertEquals(fractions.length, approximate.remaining());
+					for (int i = 0; i < fractions.length; i++) {
+						long index = (long) Math.floor(fractions[i] * (values.length - 1));
+						long value = descending ? expected[(int) (values.length - 1 - index)] : expected[(int) index];
+						String message = backend + " " + descending + " " + fractions[i];
+						assertEquals(message, value, exact.get(i));
+						// sorted values equal to the estimate must be within rank error of the quantile
+						int from = lowerBound(expected, approximate.get(i));
+						int to = lowerBound(expected, approximate.get(i) + 1L);
+						if (descending) {
+							int f = values.length - to;
+							to = values.length - from;
+							from = f;
+						}
+						long error = values.length / 100;
+						assertTrue(message, from <= index + error && to > index - error);
+					}
+				}
+			}
+		} finally {
+			file.delete();
+		}
+
+		// total order of doubles, with few distinct values
+		double[] doubles = new double[3 * options.getRunSize()];
+		for (int i = 0; i < doubles.length; i++) {
+			doubles[i] = (random.nextInt(5) - 2) * 0.5;
+		}
+		doubles[7] = -0.0;
+		doubles[8] = Double.NaN;
+		file = IOUtils.createTempFile();
+		try {
+			DoubleWriter dw = new DoubleWriter(file, 0);
+			try {
+				for (double value : doubles) {
+					dw.write(value);
+				}
+			} finally {
+				dw.close();
+			}
+			Arrays.sort(doubles);
+			options = createOptions(3);
+			options.setKeyType(KeyType.DOUBLE);
+			ByteBuffer quantiles = ParallelSorter.quantiles(file, fractions, true, options);
+			for (int i = 0; i < fractions.length; i++) {
+				double expectedValue = doubles[(int) Math.floor(fractions[i] * (doubles.length - 1))];
+				assertEquals(Double.doubleToRawLongBits(expectedValue), 
+						Double.doubleToRawLongBits(quantiles.getDouble(i * IOUtils.LONG_SIZE)));
+			}
+		} finally {
+			file.delete();
+		}
+
+		try {
+			ParallelSorter.quantiles(file, new double[] {1.5}, true, options);
+			fail("Fraction above 1 must be rejected");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testRecords() throws IOException, InterruptedException, ExecutionException {
+		Random random = new Random(42);
+		for (SortKernel kernel : SortKernel.values()) {
+			long[] keys = new long[5000];
+			int[] indexes = new int[keys.length];
+			for (int i = 0; i < keys.length; i++) {
+				keys[i] = random.nextInt(1000) - 500;
+				indexes[i] = i;
+			}
+			long[] original = keys.clone();
+			long[] expected = keys.clone();
+			Arrays.sort(expected);
+			kernel.sort(keys, indexes);
+			assertTrue(kernel.toString(), Arrays.equals(expected, keys));
+			for (int i = 0; i < keys.length; i++) {
+				assertEquals(original[indexes[i]], keys[i]);
+			}
+		}
+
+		SortOptions options = createOptions(3);
+		options.setKeyType(KeyType.LONG);
+		options.setRecordSize(16);
+		long[] keys = new long[5 * options.getRunSize() + 7];
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = i < options.getRunSize() ? keys.length - i : random.nextLong();
+		}
+		doRecordTest(keys, options);
+		options.setSortKernel(SortKernel.COMPARISON);
+		doRecordTest(keys, options);
+		options.setIOBackend(IOBackend.MAPPED);
+		doRecordTest(keys, options);
+		options.setDescending(true);
+		doRecordTest(keys, options);
+
+		options = createOptions(3);
+		options.setRecordSize(12);
+		options.setKeyOffset(4);
+		keys = new long[3 * options.getRunSize() + 1];
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = random.nextInt(100);
+		}
+		doRecordTest(keys, options);
+
+		File file = IOUtils.createTempFile();
+		try {
+			options.setRunGeneration(RunGeneration.REPLACEMENT_SELECTION);
+			try {
+				ParallelSorter.sort(file, options);
+				fail("Replacement selection of records must be rejected");
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+			options.setRunGeneration(RunGeneration.BLOCK_SORT);
+			options.setKeyOffset(9);
+			try {
+				ParallelSorter.sort(file, options);
+				fail("Key outside of record must be rejected");
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+		} finally {
+			file.delete();
+		}
+	}
+
+	/**
+	 * Tests sort of little-endian files of integers and records in their own byte order,
+	 * by all run generation methods and both I/O backends.
+	 *
+	 * @throws IOException
+	 * @throws ExecutionException
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void testByteOrder() throws IOException, InterruptedException, ExecutionException {
+		Random random = new Random(42);
+		SortOptions options = createOptions(3);
+		options.setByteOrder(ByteOrder.LITTLE_ENDIAN);
+		int[] values = new int[5 * options.getRunSize() + 7];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = random.nextInt();
+		}
+		int[] expected = values.clone();
+		Arrays.sort(expected);
+		ByteBuffer buffer = ByteBuffer.allocate(values.length * IOUtils.INT_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		for (RunGeneration runGeneration : RunGeneration.values()) {
+			for (IOBackend backend : IOBackend.values()) {
+				options.setRunGeneration(runGeneration);
+				options.setIOBackend(backend);
+				File file = IOUtils.createTempFile();
+				try {
+					buffer.clear();
+					buffer.asIntBuffer().put(values);
+					RandomAccessFile raf = new RandomAccessFile(file, "rw");
+					try {
+						raf.write(buffer.array());
+					} finally {
+						raf.close();
+					}
+					ParallelSorter.sort(file, options);
+					raf = new RandomAccessFile(file, "r");
+					try {
+						raf.readFully(buffer.array());
+					} finally {
+						raf.close();
+					}
+					for (int i = 0; i < expected.length; i++) {
+						assertEquals(runGeneration + " " + backend + " index: " + i, expected[i], buffer.getInt(i * IOUtils.INT_SIZE));
+					}
+				} finally {
+					file.delete();
+				}
+			}
+		}
+
+		options = createOptions(3);
+		options.setByteOrder(ByteOrder.LITTLE_ENDIAN);
+		options.setKeyType(KeyType.LONG);
+		options.setRecordSize(20);
+		options.setKeyOffset(8);
+		long[] keys = new long[3 * options.getRunSize() + 1];
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = random.nextLong();
+		}
+		doRecordTest(keys, options);
+		options.setIOBackend(IOBackend.MAPPED);
+		doRecordTest(keys, options);
+	}
+
+	/**
+	 * Tests reuse of released buffers, capacity limit and waiting for released memory.
+	 * 
+	 * @throws InterruptedException 
+	 */
+	@Test
+	public void testBufferPool() throws InterruptedException {
+		final BufferPool pool = new BufferPool(100);
+		BufferPool.Lease lease = pool.acquire(40, 2);
+		ByteBuffer buffer = lease.getBuffer(0);
+		pool.release(lease);
+		lease = pool.acquire(40, 1);
+		assertSame(buffer, lease.getBuffer(0));
+		pool.release(lease);
+		assertEquals(80, pool.getAllocatedBytes());
+		
+		// free buffers of other size are dropped to stay within capacity
+		lease = pool.acquire(0, 0, 15, 1);
+		assertEquals(100, pool.getAllocatedBytes());
+		
+		// request waits until leased memory is released
+		final List<String> log = Collections.synchronizedList(new ArrayList<String>());
+		Thread thread = new Thread() {
+			@Override
+			public void run() {
+				try {
+					pool.release(pool.acquire(50, 1));
+					log.add("acquired");
+				} catch (InterruptedException e) {
+					log.add("interrupted");
+				}
+			}
+		};
+		thread.start();
+		thread.join(200);
+		assertTrue(log.isEmpty());
+		pool.release(lease);
+		thread.join();
+		assertEquals(Arrays.asList("acquired"), log);
+		
+		// request larger than capacity is served when nothing is leased
+		pool.release(pool.acquire(200, 1));
+	}
+
+	/**
+	 * Tests choice of balanced merge fan-in.
+	 */
+	@Test
+	public void testBalancedFanIn() {
+		assertEquals(2, ParallelSorter.getBalancedFanIn(1, 100));
+		assertEquals(2, ParallelSorter.getBalancedFanIn(2, 100));
+		assertEquals(100, ParallelSorter.getBalancedFanIn(100, 100));
+		assertEquals(11, ParallelSorter.getBalancedFanIn(101, 100));
+		assertEquals(64, ParallelSorter.getBalancedFanIn(4096, 128));
+		assertEquals(3, ParallelSorter.getBalancedFanIn(9, 3));
+	}
 	
 	/**
 	 * Creates a temp file containing {@code count} integers provided by given {@link IntGenerator}, 
@@ -106,10 +1207,43 @@ public class ParrallelSorterTest extends TestCase {
 	 * @throws InterruptedException 
 	 */
 	private void doTest(IntGenerator generator, long count, boolean sequentialNumbers) throws IOException, InterruptedException, ExecutionException {
+		doTest(generator, count, sequentialNumbers, PAIRWISE_FAN_IN);
+	}
+	
+	/**
+	 * Creates a temp file containing {@code count} integers provided by given {@link IntGenerator}, 
+	 * sorts it merging up to {@code mergeFanIn} runs at once 
+	 * and checks that resulting file contains values sorted in ascending order.
+	 * 
+	 * @param generator test file will be filled with integers provided by this generator
+	 * @param count number of integers to store in the input file
+	 * @param sequentialNumbers true if each next integer must be an increment of previous one, false otherwise
+	 * @param mergeFanIn max number of runs merged at once
+	 * @throws IOException
+	 * @throws ExecutionException 
+	 * @throws InterruptedException 
+	 */
+	private void doTest(IntGenerator generator, long count, boolean sequentialNumbers, int mergeFanIn) throws IOException, InterruptedException, ExecutionException {
+		doTest(generator, count, sequentialNumbers, createOptions(mergeFanIn));
+	}
+	
+	/**
+	 * Creates a temp file containing {@code count} integers provided by given {@link IntGenerator}, 
+	 * sorts it with given options and checks that resulting file contains values sorted in ascending order.
+	 * 
+	 * @param generator test file will be filled with integers provided by this generator
+	 * @param count number of integers to store in the input file
+	 * @param sequentialNumbers true if each next integer must be an increment of previous one, false otherwise
+	 * @param options sort options
+	 * @throws IOException
+	 * @throws ExecutionException 
+	 * @throws InterruptedException 
+	 */
+	private void doTest(IntGenerator generator, long count, boolean sequentialNumbers, SortOptions options) throws IOException, InterruptedException, ExecutionException {
 		File file = null;
 		try {
-			file = TestUtil.createFile(IntGenerator.DESC, count);
-			ParallelSorter.sort(file, THREADS_COUNT);
+			file = TestUtil.createFile(generator, count);
+			ParallelSorter.sort(file, options);
 			TestUtil.checkAsc(file, count, sequentialNumbers);
 		} finally {
 			if (file != null) {
@@ -118,4 +1252,325 @@ public class ParrallelSorterTest extends TestCase {
 		}
 	}
 	
+	/**
+	 * Creates a temp file containing given longs, sorts it with given options
+	 * and checks that resulting file contains the same values sorted in ascending order.
+	 *
+	 * @param values values to store in the input file
+	 * @param options sort options, key type must be {@link KeyType#LONG}
+	 * @throws IOException
+	 * @throws ExecutionException
+	 * @throws InterruptedException
+	 */
+	private void doLongTest(long[] values, SortOptions options) throws IOException, InterruptedException, ExecutionException {
+		File file = IOUtils.createTempFile();
+		try {
+			LongWriter lw = new LongWriter(file, 0);
+			try {
+				for (long value : values) {
+					lw.write(value);
+				}
+			} finally {
+				lw.close();
+			}
+			ParallelSorter.sort(file, options);
+			long[] expected = values.clone();
+			Arrays.sort(expected);
+			assertEquals((long) values.length * IOUtils.LONG_SIZE, file.length());
+			LongReader lr = new LongReader(file, 0, values.length);
+			try {
+				for (int i = 0; i < expected.length; i++) {
+					assertEquals("index: " + i, expected[i], lr.next());
+				}
+			} finally {
+				lr.close();
+			}
+		} finally {
+			file.delete();
+		}
+	}
+
+	/**
+	 * Creates a temp file of given integers, sorts it with given options 
+	 * and checks the result against integers sorted as longs in the order defined by the options.
+	 *
+	 * @param values values to sort
+	 * @param options sort options with {@link KeyType#INT} key type
+	 * @throws IOException
+	 * @throws ExecutionException
+	 * @throws InterruptedException
+	 */
+	private void doSortOrderTest(int[] values, SortOptions options) throws IOException, InterruptedException, ExecutionException {
+		long[] expected = new long[values.length];
+		for (int i = 0; i < values.length; i++) {
+			expected[i] = options.isUnsigned() ? values[i] & 0xFFFFFFFFL : values[i];
+		}
+		Arrays.sort(expected);
+		File file = IOUtils.createTempFile();
+		try {
+			IntWriter iw = new IntWriter(file, 0);
+			try {
+				for (int value : values) {
+					iw.write(value);
+				}
+			} finally {
+				iw.close();
+			}
+			ParallelSorter.sort(file, options);
+			IntReader ir = new IntReader(file, 0, values.length);
+			try {
+				for (int i = 0; i < expected.length; i++) {
+					int index = options.isDescending() ? expected.length - 1 - i : i;
+					assertEquals("index: " + i, (int) expected[index], ir.next());
+				}
+			} finally {
+				ir.close();
+			}
+		} finally {
+			file.delete();
+		}
+	}
+
+	/**
+	 * Creates a temp file of given floating point values, sorts it with given options 
+	 * and checks that bits of the values are in the order of {@link Arrays#sort(double[])}.
+	 *
+	 * @param values values to sort, rounded to floats for {@link KeyType#FLOAT}
+	 * @param options sort options, key type must be {@link KeyType#FLOAT} or {@link KeyType#DOUBLE}
+	 * @throws IOException
+	 * @throws ExecutionException
+	 * @throws InterruptedException
+	 */
+	private void doFloatingPointTest(double[] values, SortOptions options) throws IOException, InterruptedException, ExecutionException {
+		boolean isFloat = options.getKeyType() == KeyType.FLOAT;
+		File file = IOUtils.createTempFile();
+		try {
+			double[] expected = new double[values.length];
+			if (isFloat) {
+				FloatWriter fw = new FloatWriter(file, 0);
+				try {
+					for (int i = 0; i < values.length; i++) {
+						fw.write((float) values[i]);
+						expected[i] = (float) values[i];
+					}
+				} finally {
+					fw.close();
+				}
+			} else {
+				DoubleWriter dw = new DoubleWriter(file, 0);
+				try {
+					for (int i = 0; i < values.length; i++) {
+						dw.write(values[i]);
+						expected[i] = values[i];
+					}
+				} finally {
+					dw.close();
+				}
+			}
+			ParallelSorter.sort(file, options);
+			Arrays.sort(expected);
+			assertEquals((long) values.length * options.getKeyType().getSize(), file.length());
+			if (isFloat) {
+				FloatReader fr = new FloatReader(file, 0, values.length);
+				try {
+					for (int i = 0; i < expected.length; i++) {
+						assertEquals("index: " + i, Float.floatToIntBits((float) expected[i]), 
+								Float.floatToIntBits(fr.next()));
+					}
+				} finally {
+					fr.close();
+				}
+			} else {
+				DoubleReader dr = new DoubleReader(file, 0, values.length);
+				try {
+					for (int i = 0; i < expected.length; i++) {
+						assertEquals("index: " + i, Double.doubleToLongBits(expected[i]), 
+								Double.doubleToLongBits(dr.next()));
+					}
+				} finally {
+					dr.close();
+				}
+			}
+		} finally {
+			file.delete();
+		}
+	}
+
+	/**
+	 * Creates a temp file of records having given keys, sorts it with given options
+	 * and checks that keys are sorted and each record keeps its payload.
+	 * Payload is the index of record in input file, repeated to fill the record.
+	 *
+	 * @param keys keys of records, integer keys must fit integers
+	 * @param options sort options defining record format, byte order and signed sort order
+	 * @throws IOException
+	 * @throws ExecutionException
+	 * @throws InterruptedException
+	 */
+	private void doRecordTest(long[] keys, SortOptions options) throws IOException, InterruptedException, ExecutionException {
+		int recordSize = options.getRecordSize();
+		int keyOffset = options.getKeyOffset();
+		KeyType type = options.getKeyType();
+		File file = IOUtils.createTempFile();
+		try {
+			ByteBuffer records = ByteBuffer.allocate(keys.length * recordSize).order(options.getByteOrder());
+			for (int i = 0; i < keys.length; i++) {
+				for (int p = 0; p + IOUtils.INT_SIZE <= recordSize; p += IOUtils.INT_SIZE) {
+					records.putInt(i * recordSize + p, i);
+				}
+				if (type == KeyType.LONG) {
+					records.putLong(i * recordSize + keyOffset, keys[i]);
+				} else {
+					records.putInt(i * recordSize + keyOffset, (int) keys[i]);
+				}
+			}
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				raf.write(records.array());
+			} finally {
+				raf.close();
+			}
+			ParallelSorter.sort(file, options);
+			assertEquals(records.capacity(), file.length());
+			raf = new RandomAccessFile(file, "r");
+			try {
+				raf.readFully(records.array());
+			} finally {
+				raf.close();
+			}
+			boolean[] seen = new boolean[keys.length];
+			boolean descending = options.isDescending();
+			long prevKey = descending ? Long.MAX_VALUE : Long.MIN_VALUE;
+			for (int i = 0; i < keys.length; i++) {
+				long key = type == KeyType.LONG ? records.getLong(i * recordSize + keyOffset)
+						: records.getInt(i * recordSize + keyOffset);
+				int payloadOffset = keyOffset == 0 ? recordSize - IOUtils.INT_SIZE : 0;
+				int index = records.getInt(i * recordSize + payloadOffset);
+				assertTrue("index: " + i, descending ? key <= prevKey : key >= prevKey);
+				assertFalse(seen[index]);
+				seen[index] = true;
+				assertEquals(keys[index], key);
+				prevKey = key;
+			}
+		} finally {
+			file.delete();
+		}
+	}
+
+	/**
+	 * Creates a temp file containing integers from 0 to {@code 9 * blockSize - 1}:
+	 * two ascending blocks followed by two descending blocks continuing them, 
+	 * unordered part not aligned to blocks followed by ascending part,
+	 * and a descending block of smallest values, which must be merged with the rest.
+	 * 
+	 * @param blockSize number of integers in block sorted in memory
+	 * @return created file
+	 * @throws IOException
+	 */
+	private File createMixedFile(int blockSize) throws IOException {
+		List<Integer> unordered = new ArrayList<Integer>();
+		for (int i = 5 * blockSize; i < 6 * blockSize + 100; i++) {
+			unordered.add(i);
+		}
+		Collections.shuffle(unordered);
+		
+		File file = IOUtils.createTempFile();
+		IntWriter iw = new IntWriter(file, 0);
+		try {
+			for (int i = blockSize; i < 3 * blockSize; i++) {
+				iw.write(i);
+			}
+			for (int i = 5 * blockSize - 1; i >= 3 * blockSize; i--) {
+				iw.write(i);
+			}
+			for (int value : unordered) {
+				iw.write(value);
+			}
+			for (int i = 6 * blockSize + 100; i < 9 * blockSize; i++) {
+				iw.write(i);
+			}
+			for (int i = blockSize - 1; i >= 0; i--) {
+				iw.write(i);
+			}
+		} finally {
+			iw.close();
+		}
+		return file;
+	}
+	
+	/**
+	 * Task adding its name to a log, used to test {@link TaskGraph}.
+	 * 
+	 * @author IVotinov
+	 */
+	private static class LoggingTask extends TaskGraph.Task {
+		private List<String> log;
+		private String name;
+		private boolean fail;
+		
+		public LoggingTask(List<String> log, String name, boolean fail) {
+			this.log = log;
+			this.name = name;
+			this.fail = fail;
+		}
+		
+		@Override
+		protected void execute() throws IOException {
+			log.add(name);
+			if (fail) {
+				throw new IOException(name);
+			}
+		}
+	}
+	
+	private static class ThreadTask extends LoggingTask {
+		private boolean ioBound;
+		private volatile Thread thread;
+		
+		public ThreadTask(List<String> log, String name, boolean ioBound) {
+			super(log, name, false);
+			this.ioBound = ioBound;
+		}
+		
+		@Override
+		protected void execute() throws IOException {
+			thread = Thread.currentThread();
+			super.execute();
+		}
+		
+		@Override
+		protected boolean isIOBound() {
+			return ioBound;
+		}
+	}
+	
+	/**
+	 * Creates sort options for {@link #THREADS_COUNT} threads and given merge fan-in.
+	 * Memory budget gives runs of {@link IOUtils#BUFFER_SIZE} bytes, sizes above are chosen for this run size.
+	 * 
+	 * @param mergeFanIn max number of runs merged at once
+	 * @return created options
+	 */
+	private static int lowerBound(long[] sorted, long value) {
+		int from = 0;
+		int to = sorted.length;
+		while (from < to) {
+			int middle = (from + to) >>> 1;
+			if (sorted[middle] < value) {
+				from = middle + 1;
+			} else {
+				to = middle;
+			}
+		}
+		return from;
+	}
+
+	private static SortOptions createOptions(int mergeFanIn) {
+		SortOptions options = new SortOptions();
+		options.setThreadCount(THREADS_COUNT);
+		options.setMemoryBudget((long) THREADS_COUNT * SortOptions.RUN_MEMORY_FACTOR * IOUtils.BUFFER_SIZE);
+		options.setMergeFanIn(mergeFanIn);
+		return options;
+	}
+	
 }